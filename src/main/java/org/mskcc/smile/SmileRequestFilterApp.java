@@ -1,19 +1,40 @@
 package org.mskcc.smile;
 
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mskcc.cmo.messaging.Gateway;
+import org.mskcc.smile.service.ArchiveReplayer;
+import org.mskcc.smile.service.BatchValidator;
+import org.mskcc.smile.service.MessageJournal;
+import org.mskcc.smile.service.MessagePipeline;
+import org.mskcc.smile.service.MessagePublisher;
 import org.mskcc.smile.service.PromotedRequestMsgHandlingService;
 import org.mskcc.smile.service.RequestFilterMessageHandlingService;
+import org.mskcc.smile.service.ValidRequestChecker;
 import org.mskcc.smile.service.ValidateUpdatesMessageHandlingService;
+import org.mskcc.smile.service.WarmupService;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.event.ApplicationEnvironmentPreparedEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.MapPropertySource;
 
-@SpringBootApplication(scanBasePackages = {"org.mskcc.cmo.messaging",
-    "org.mskcc.smile.commons.*", "org.mskcc.smile.*"})
+@SpringBootApplication(scanBasePackages = {"org.mskcc.cmo.messaging", "org.mskcc.smile.*"})
 public class SmileRequestFilterApp implements CommandLineRunner {
     private static final Log LOG = LogFactory.getLog(SmileRequestFilterApp.class);
 
@@ -21,26 +42,75 @@ public class SmileRequestFilterApp implements CommandLineRunner {
     private Gateway messagingGateway;
 
     @Autowired
-    private RequestFilterMessageHandlingService requestFilterHandlingService;
+    private ObjectProvider<RequestFilterMessageHandlingService> requestFilterServiceProvider;
 
     @Autowired
-    private ValidateUpdatesMessageHandlingService updatesMessageHandlingService;
+    private ObjectProvider<ValidateUpdatesMessageHandlingService> updatesServiceProvider;
 
     @Autowired
-    private PromotedRequestMsgHandlingService promotedRequestHandlingService;
+    private ObjectProvider<PromotedRequestMsgHandlingService> promotedRequestServiceProvider;
 
+    @Autowired
+    private ValidRequestChecker validRequestChecker;
+
+    @Autowired
+    private WarmupService warmupService;
+
+    @Autowired
+    private BatchValidator batchValidator;
+
+    @Autowired
+    private ArchiveReplayer archiveReplayer;
+
+    @Value("${pipeline.instances:}")
+    private String pipelineInstances;
+
+    @Value("${startup.training_corpus:}")
+    private String trainingCorpus;
+
+    @Autowired
+    private MessagePublisher messagePublisher;
+
+    @Autowired
+    private MessageJournal messageJournal;
+
+    @Autowired
+    private MessagePipeline messagePipeline;
+
+    private final List<RequestFilterMessageHandlingService> requestFilterHandlingServices =
+            new ArrayList<>();
+    private final List<ValidateUpdatesMessageHandlingService> updatesMessageHandlingServices =
+            new ArrayList<>();
+    private final List<PromotedRequestMsgHandlingService> promotedRequestHandlingServices =
+            new ArrayList<>();
     private Thread shutdownHook;
     final CountDownLatch smileRequestFilterAppClose = new CountDownLatch(1);
 
     @Override
     public void run(String... args) throws Exception {
+        if (batchValidator.isEnabled()) {
+            batchValidator.validate();
+            return;
+        }
+        if (!trainingCorpus.isBlank()) {
+            runTrainingCorpus();
+            return;
+        }
         LOG.info("Starting up SMILE Request Filter application...");
         try {
             installShutdownHook();
+            // warm up before subscribing so the first live messages aren't interpreted
+            warmupService.warmUp();
             messagingGateway.connect();
-            requestFilterHandlingService.initialize(messagingGateway);
-            updatesMessageHandlingService.initialize(messagingGateway);
-            promotedRequestHandlingService.initialize(messagingGateway);
+            messagePublisher.initialize(messagingGateway);
+            for (String instanceName : getInstanceNames()) {
+                initializeInstance(instanceName);
+            }
+            LOG.info("Ready to receive messages " + ManagementFactory.getRuntimeMXBean().getUptime()
+                    + " ms after JVM start");
+            if (archiveReplayer.isEnabled()) {
+                archiveReplayer.replay();
+            }
             smileRequestFilterAppClose.await();
         } catch (Exception e) {
             e.printStackTrace();
@@ -49,6 +119,64 @@ public class SmileRequestFilterApp implements CommandLineRunner {
         }
     }
 
+    /**
+     * Returns the names of the pipeline instances to run. A single unnamed instance
+     * configured by the top level properties is run when none are listed.
+     */
+    private List<String> getInstanceNames() {
+        List<String> instanceNames = new ArrayList<>();
+        if (pipelineInstances != null) {
+            for (String name : pipelineInstances.split(",")) {
+                if (!name.isBlank() && !instanceNames.contains(name.trim())) {
+                    instanceNames.add(name.trim());
+                }
+            }
+        }
+        if (instanceNames.isEmpty()) {
+            instanceNames.add(null);
+        }
+        return instanceNames;
+    }
+
+    private void initializeInstance(String instanceName) throws Exception {
+        if (instanceName != null) {
+            LOG.info("Starting pipeline instance: " + instanceName);
+        }
+        RequestFilterMessageHandlingService requestFilterService = requestFilterServiceProvider.getObject();
+        requestFilterHandlingServices.add(requestFilterService);
+        requestFilterService.initialize(messagingGateway, instanceName);
+        ValidateUpdatesMessageHandlingService updatesService = updatesServiceProvider.getObject();
+        updatesMessageHandlingServices.add(updatesService);
+        updatesService.initialize(messagingGateway, instanceName);
+        PromotedRequestMsgHandlingService promotedService = promotedRequestServiceProvider.getObject();
+        promotedRequestHandlingServices.add(promotedService);
+        promotedService.initialize(messagingGateway, instanceName);
+    }
+
+    /**
+     * Validates every request JSON file in the training corpus and exits without connecting
+     * to the messaging gateway. Used by the startup build profile to record the classes
+     * loaded while handling messages in the class data sharing archive.
+     */
+    private void runTrainingCorpus() throws Exception {
+        LOG.info("Running training corpus: " + trainingCorpus);
+        int count = 0;
+        try (Stream<Path> paths = Files.walk(Paths.get(trainingCorpus))) {
+            for (Path path : paths.filter(p -> p.toString().endsWith(".json")).toList()) {
+                String requestJson = Files.readString(path);
+                try {
+                    String filteredRequestJson = validRequestChecker.getFilteredValidRequestJson(requestJson);
+                    validRequestChecker.generateValidationReport(requestJson, filteredRequestJson);
+                    count++;
+                } catch (Exception e) {
+                    LOG.warn("Skipping training corpus file that could not be validated: " + path);
+                }
+            }
+        }
+        LOG.info("Validated " + count + " training corpus request(s) "
+                + ManagementFactory.getRuntimeMXBean().getUptime() + " ms after JVM start");
+    }
+
     private void installShutdownHook() {
         shutdownHook =
             new Thread() {
@@ -56,9 +184,18 @@ public class SmileRequestFilterApp implements CommandLineRunner {
                     System.err.printf("\nCaught CTRL-C, shutting down gracefully...\n");
                     try {
                         messagingGateway.shutdown();
-                        requestFilterHandlingService.shutdown();
-                        updatesMessageHandlingService.shutdown();
-                        promotedRequestHandlingService.shutdown();
+                        for (RequestFilterMessageHandlingService service : requestFilterHandlingServices) {
+                            service.shutdown();
+                        }
+                        for (ValidateUpdatesMessageHandlingService service : updatesMessageHandlingServices) {
+                            service.shutdown();
+                        }
+                        for (PromotedRequestMsgHandlingService service : promotedRequestHandlingServices) {
+                            service.shutdown();
+                        }
+                        messagePipeline.shutdown();
+                        messagePublisher.shutdown();
+                        messageJournal.close();
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
@@ -69,7 +206,28 @@ public class SmileRequestFilterApp implements CommandLineRunner {
     }
 
     public static void main(String[] args) {
-        SpringApplication.run(SmileRequestFilterApp.class, args);
+        SpringApplication app = new SpringApplication(SmileRequestFilterApp.class);
+        app.addListeners(new WebServerSwitch());
+        app.run(args);
+    }
+
+    /**
+     * Sets spring.main.web-application-type to none when the validation endpoints are
+     * switched off with validation.http.enabled=false, and for batch validation and training
+     * runs, which exit when done. Runs once application.properties, system properties and
+     * command line arguments have all been loaded into the environment.
+     */
+    private static class WebServerSwitch implements ApplicationListener<ApplicationEnvironmentPreparedEvent> {
+        @Override
+        public void onApplicationEvent(ApplicationEnvironmentPreparedEvent event) {
+            ConfigurableEnvironment environment = event.getEnvironment();
+            if (!environment.getProperty("validation.http.enabled", Boolean.class, Boolean.TRUE)
+                    || StringUtils.isNotBlank(environment.getProperty("batch.input"))
+                    || StringUtils.isNotBlank(environment.getProperty("startup.training_corpus"))) {
+                environment.getPropertySources().addFirst(new MapPropertySource("webServerSwitch",
+                        Map.of("spring.main.web-application-type", "none")));
+            }
+        }
     }
 
 }
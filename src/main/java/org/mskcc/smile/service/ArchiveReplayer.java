@@ -0,0 +1,6 @@
+package org.mskcc.smile.service;
+
+public interface ArchiveReplayer {
+    boolean isEnabled();
+    void replay() throws Exception;
+}
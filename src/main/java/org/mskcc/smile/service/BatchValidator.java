@@ -0,0 +1,6 @@
+package org.mskcc.smile.service;
+
+public interface BatchValidator {
+    boolean isEnabled();
+    void validate() throws Exception;
+}
@@ -0,0 +1,7 @@
+package org.mskcc.smile.service;
+
+import org.mskcc.smile.service.util.HandlerGroup;
+
+public interface ConcurrencyController {
+    void register(HandlerGroup<?> handlerGroup);
+}
@@ -0,0 +1,49 @@
+package org.mskcc.smile.service;
+
+import org.mskcc.smile.service.util.HandlerGroup;
+import org.mskcc.smile.service.util.MessageSource;
+import org.mskcc.smile.service.util.QueuedMessage;
+
+/**
+ * Limits the number of message handlers running at once across all message classes.
+ * When enabled, the queues of the message flows are registered with the gate and its
+ * workers take the next message from them by the weight of each message class.
+ */
+public interface HandlerConcurrencyGate {
+    String NEW_REQUEST = "new_request";
+    String PROMOTED_REQUEST = "promoted_request";
+    String REQUEST_UPDATE = "request_update";
+    String SAMPLE_UPDATE = "sample_update";
+
+    boolean isEnabled();
+
+    /**
+     * Registers the queue of a message flow. The gate's workers take its messages
+     * in turns with the other queues of the message class.
+     * @param <T>
+     * @param messageClass
+     * @param source
+     * @param handler
+     * @param errorMessage logged along with any exception thrown by the handler
+     * @return Registration
+     */
+    <T> Registration register(String messageClass, MessageSource<QueuedMessage<T>> source,
+            HandlerGroup.MessageHandler<QueuedMessage<T>> handler, String errorMessage);
+
+    /**
+     * Wakes an idle worker once a message has been queued in a registered queue.
+     */
+    void messageQueued();
+
+    /**
+     * A queue registered with the gate.
+     */
+    interface Registration {
+        /**
+         * Blocks until the queue has been drained and none of its messages are still
+         * being handled, then removes it from the gate.
+         * @throws InterruptedException
+         */
+        void drainAndRemove() throws InterruptedException;
+    }
+}
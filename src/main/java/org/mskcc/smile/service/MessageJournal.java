@@ -0,0 +1,15 @@
+package org.mskcc.smile.service;
+
+public interface MessageJournal {
+    boolean isEnabled();
+    void append(String stream, String payload, Object... messages) throws Exception;
+    void ack(Object message);
+    void release(Object message);
+    void replay(String stream, ReplayHandler handler) throws Exception;
+    void close() throws Exception;
+
+    @FunctionalInterface
+    interface ReplayHandler {
+        void replay(String payload) throws Exception;
+    }
+}
@@ -0,0 +1,40 @@
+package org.mskcc.smile.service;
+
+import io.nats.client.Message;
+import org.mskcc.cmo.messaging.Gateway;
+import org.mskcc.smile.service.util.InstanceProperties;
+import org.mskcc.smile.service.util.MessageFlow;
+
+public interface MessagePipeline {
+    InstanceProperties getInstanceProperties(String instanceName);
+    <T> RunningFlow<T> run(Gateway gateway, MessageFlow<T> flow) throws Exception;
+    void subscribe(Gateway gateway, String topic, MessageReceiver receiver) throws Exception;
+    boolean deliver(String topic, byte[] data);
+    void shutdown() throws Exception;
+
+    @FunctionalInterface
+    interface MessageReceiver {
+        void receive(Message msg) throws Exception;
+    }
+
+    /**
+     * A message flow started by the pipeline.
+     * @param <T> message type
+     */
+    interface RunningFlow<T> {
+        /**
+         * Queues a message for the flow's handlers as though it had been received on
+         * the flow's topic, without checking which instance owns it.
+         * @param message
+         * @throws Exception
+         */
+        void submit(T message) throws Exception;
+
+        /**
+         * Stops the flow's handlers once they have drained its queues, after which
+         * messages are no longer accepted.
+         * @throws Exception
+         */
+        void shutdown() throws Exception;
+    }
+}
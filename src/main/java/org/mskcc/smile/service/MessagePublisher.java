@@ -0,0 +1,47 @@
+package org.mskcc.smile.service;
+
+import org.mskcc.cmo.messaging.Gateway;
+
+public interface MessagePublisher {
+    void initialize(Gateway gateway) throws Exception;
+    void publish(String msgId, String topic, Object message) throws Exception;
+    void publishInOrder(String orderingKey, String topic, Object message) throws Exception;
+
+    /**
+     * Publishes the message and runs onPublished once it has been sent, or once it has
+     * been dead-lettered after its last retry. onPublished is not run if the message is
+     * rejected or lost.
+     * @param msgId
+     * @param topic
+     * @param message
+     * @param onPublished
+     * @throws Exception
+     */
+    void publish(String msgId, String topic, Object message, Runnable onPublished) throws Exception;
+
+    /**
+     * Publishes the message in order with the other messages of the ordering key, and
+     * runs onPublished the same way as publish.
+     * @param orderingKey
+     * @param topic
+     * @param message
+     * @param onPublished
+     * @throws Exception
+     */
+    void publishInOrder(String orderingKey, String topic, Object message, Runnable onPublished)
+            throws Exception;
+
+    /**
+     * Dead-letters a message that was never published, the same way as a message that
+     * failed its last publish retry, and runs onDeadLettered once it has been written.
+     * @param topic
+     * @param message
+     * @param attempts
+     * @param error
+     * @param onDeadLettered
+     */
+    void deadLetter(String topic, Object message, int attempts, String error, Runnable onDeadLettered);
+    void shutdown() throws Exception;
+    int getRetryQueueDepth();
+    long getDeadLetterCount();
+}
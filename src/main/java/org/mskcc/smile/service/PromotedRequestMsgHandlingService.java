@@ -8,6 +8,7 @@ import org.mskcc.cmo.messaging.Gateway;
  */
 public interface PromotedRequestMsgHandlingService {
     void initialize(Gateway gateway) throws Exception;
+    void initialize(Gateway gateway, String instanceName) throws Exception;
     void promotedRequestHandler(String requestJson) throws Exception;
     void shutdown() throws Exception;
 }
@@ -4,6 +4,7 @@ import org.mskcc.cmo.messaging.Gateway;
 
 public interface RequestFilterMessageHandlingService {
     void initialize(Gateway gateway) throws Exception;
+    void initialize(Gateway gateway, String instanceName) throws Exception;
     void requestFilterHandler(String requestJson) throws Exception;
     void shutdown() throws Exception;
 }
@@ -3,23 +3,43 @@ package org.mskcc.smile.service;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
+import org.mskcc.smile.service.util.RequestHeader;
+import org.mskcc.smile.service.util.RuleProfiler;
+import org.mskcc.smile.service.util.SampleUpdateBatch;
+import org.mskcc.smile.service.util.ValidationRuleSet;
 
 public interface ValidRequestChecker {
     String getFilteredValidRequestJson(String requestJson)
             throws JsonMappingException, JsonProcessingException, IOException;
+    String getFilteredValidRequestJson(String requestJson, RequestHeader header)
+            throws JsonMappingException, JsonProcessingException, IOException;
     Map<String, Object> generateRequestStatusValidationMap(String requestJson)
             throws JsonMappingException, JsonProcessingException, IOException;
+    Map<String, Object> generateRequestStatusValidationMap(String requestJson, RequestHeader header)
+            throws JsonMappingException, JsonProcessingException, IOException;
     Map<String, Object> generateCmoSampleValidationMap(Map<String, Object> sampleMap)
             throws JsonMappingException, JsonProcessingException;
     Map<String, Object> generateNonCmoSampleValidationMap(Map<String, Object> sampleMap)
             throws JsonMappingException, JsonProcessingException;
+    RequestHeader probeRequestHeader(String json) throws JsonProcessingException;
     Boolean isCmo(String json) throws JsonProcessingException;
     String getRequestId(String json) throws JsonProcessingException;
     Boolean hasRequestId(String json) throws JsonProcessingException;
     Map<String, Object> generatePromotedRequestValidationMap(String requestJson) throws JsonMappingException,
             JsonProcessingException, IOException;
+    Boolean isValidPromotedRequest(String requestJson) throws JsonProcessingException, IOException;
+    Boolean isValidPromotedRequest(String requestJson, RequestHeader header)
+            throws JsonProcessingException, IOException;
     Map<String, Object> generatePromotedSampleValidationMap(Map<String, Object> sampleMap)
             throws JsonMappingException, JsonProcessingException;
+    SampleUpdateBatch validateSampleUpdates(List<Object> samples) throws JsonProcessingException;
     String generateValidationReport(String originalJson, String filteredJson) throws JsonProcessingException;
+    String generateValidationReport(String originalJson, String filteredJson, String requestId)
+            throws JsonProcessingException;
+    String updateJsonWithValidationMap(String inputJson, Map<String, Object> validationMap)
+            throws JsonProcessingException;
+    RuleProfiler getRuleProfiler();
+    ValidationRuleSet getValidationRuleSet();
 }
@@ -5,6 +5,7 @@ import org.mskcc.cmo.messaging.Gateway;
 
 public interface ValidateUpdatesMessageHandlingService {
     void initialize(Gateway gateway) throws Exception;
+    void initialize(Gateway gateway, String instanceName) throws Exception;
     void requestUpdateFilterHandler(String requestJson) throws Exception;
     void sampleUpdateFilterHandler(List<Object> sampleJsonList) throws Exception;
     void shutdown() throws Exception;
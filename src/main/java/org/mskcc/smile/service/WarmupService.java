@@ -0,0 +1,5 @@
+package org.mskcc.smile.service;
+
+public interface WarmupService {
+    void warmUp() throws Exception;
+}
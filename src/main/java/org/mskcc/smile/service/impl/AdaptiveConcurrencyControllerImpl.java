@@ -0,0 +1,166 @@
+package org.mskcc.smile.service.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.smile.service.ConcurrencyController;
+import org.mskcc.smile.service.util.HandlerGroup;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Resizes registered handler groups at runtime using an AIMD policy.
+ *
+ * <p>On every evaluation interval each group is checked in the following order:
+ * - process CPU load above the configured max: multiplicative decrease
+ * - average handling latency well above the group's baseline: multiplicative decrease,
+ *   since adding handlers while they are slowing each other down only makes it worse
+ * - messages backed up in the group's queue: additive increase
+ * - no messages handled and nothing queued: shrink by one
+ * The group size always stays within the configured min and max handler threads.
+ */
+@Component
+public class AdaptiveConcurrencyControllerImpl implements ConcurrencyController {
+    private static final Log LOG = LogFactory.getLog(AdaptiveConcurrencyControllerImpl.class);
+    private static final double DECREASE_FACTOR = 0.75;
+    // fraction of the gap closed per interval when latency is above the baseline
+    private static final double BASELINE_SMOOTHING = 0.1;
+
+    @Value("${concurrency.adaptive.enabled:false}")
+    private Boolean enabled;
+
+    @Value("${concurrency.adaptive.interval_seconds:10}")
+    private int intervalSeconds;
+
+    @Value("${concurrency.adaptive.min_handler_threads:1}")
+    private int minHandlers;
+
+    @Value("${concurrency.adaptive.max_handler_threads:8}")
+    private int maxHandlers;
+
+    @Value("${concurrency.adaptive.max_cpu_load:0.85}")
+    private double maxCpuLoad;
+
+    @Value("${concurrency.adaptive.latency_tolerance:3.0}")
+    private double latencyTolerance;
+
+    private final Map<HandlerGroup<?>, GroupStats> handlerGroups = new ConcurrentHashMap<>();
+    private ScheduledExecutorService controllerExec;
+
+    @Override
+    public synchronized void register(HandlerGroup<?> handlerGroup) {
+        if (!enabled) {
+            return;
+        }
+        handlerGroups.put(handlerGroup, new GroupStats());
+        if (controllerExec == null) {
+            LOG.info("Adaptive handler concurrency enabled: bounds [" + minHandlers + ", " + maxHandlers
+                    + "], max cpu load: " + maxCpuLoad + ", interval (s): " + intervalSeconds);
+            controllerExec = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "adaptive-concurrency-controller");
+                t.setDaemon(true);
+                return t;
+            });
+            controllerExec.scheduleAtFixedRate(this::evaluate, intervalSeconds, intervalSeconds,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    private void evaluate() {
+        try {
+            double cpuLoad = getCpuLoad();
+            for (Map.Entry<HandlerGroup<?>, GroupStats> entry : handlerGroups.entrySet()) {
+                evaluate(entry.getKey(), entry.getValue(), cpuLoad);
+            }
+        } catch (Exception e) {
+            LOG.error("Error during adaptive concurrency evaluation", e);
+        }
+    }
+
+    private void evaluate(HandlerGroup<?> group, GroupStats stats, double cpuLoad) {
+        long handledCount = group.getHandledCount();
+        long handlingNanos = group.getTotalHandlingNanos();
+        long handled = handledCount - stats.lastHandledCount;
+        long avgLatencyNanos = (handled > 0) ? (handlingNanos - stats.lastHandlingNanos) / handled : 0;
+        stats.lastHandledCount = handledCount;
+        stats.lastHandlingNanos = handlingNanos;
+
+        int current = group.getTargetSize();
+        int queueDepth = group.getQueueDepth();
+        int target = current;
+        String reason = null;
+        if (cpuLoad >= maxCpuLoad && current > minHandlers) {
+            target = decrease(current);
+            reason = "cpu load " + String.format("%.2f", cpuLoad);
+        } else if (avgLatencyNanos > 0 && stats.baselineLatencyNanos > 0
+                && avgLatencyNanos > latencyTolerance * stats.baselineLatencyNanos
+                && current > minHandlers) {
+            target = decrease(current);
+            reason = "avg latency " + TimeUnit.NANOSECONDS.toMillis(avgLatencyNanos) + "ms vs baseline "
+                    + TimeUnit.NANOSECONDS.toMillis(stats.baselineLatencyNanos) + "ms";
+        } else if (queueDepth > 0 && current < maxHandlers) {
+            target = current + 1;
+            reason = "queue depth " + queueDepth;
+        } else if (queueDepth == 0 && handled == 0 && current > minHandlers) {
+            target = current - 1;
+            reason = "idle";
+        }
+        stats.updateBaseline(avgLatencyNanos);
+        target = Math.max(minHandlers, Math.min(maxHandlers, target));
+        if (target != current) {
+            LOG.info("[concurrency-controller] Resizing handler group '" + group.getName() + "' from "
+                    + current + " to " + target + " (" + reason + ")");
+            group.resize(target);
+        } else if (LOG.isDebugEnabled()) {
+            LOG.debug("[concurrency-controller] Handler group '" + group.getName() + "' unchanged at "
+                    + current + ": queue depth=" + queueDepth + ", handled=" + handled
+                    + ", cpu load=" + String.format("%.2f", cpuLoad));
+        }
+    }
+
+    private int decrease(int current) {
+        int target = (int) Math.floor(current * DECREASE_FACTOR);
+        return (target == current) ? current - 1 : target;
+    }
+
+    private double getCpuLoad() {
+        OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+            double load = ((com.sun.management.OperatingSystemMXBean) osBean).getProcessCpuLoad();
+            if (load >= 0) {
+                return load;
+            }
+        }
+        // fall back on system load average per core when process cpu load is not available
+        double loadAverage = osBean.getSystemLoadAverage();
+        return (loadAverage < 0) ? 0 : loadAverage / osBean.getAvailableProcessors();
+    }
+
+    private static class GroupStats {
+        long lastHandledCount = 0;
+        long lastHandlingNanos = 0;
+        long baselineLatencyNanos = 0;
+
+        /**
+         * The baseline follows lower latencies immediately and drifts slowly towards higher
+         * ones so that a shift in message sizes is eventually absorbed into the baseline.
+         */
+        void updateBaseline(long avgLatencyNanos) {
+            if (avgLatencyNanos <= 0) {
+                return;
+            }
+            if (baselineLatencyNanos == 0 || avgLatencyNanos < baselineLatencyNanos) {
+                baselineLatencyNanos = avgLatencyNanos;
+            } else {
+                baselineLatencyNanos +=
+                        (long) ((avgLatencyNanos - baselineLatencyNanos) * BASELINE_SMOOTHING);
+            }
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package org.mskcc.smile.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.cmo.messaging.Gateway;
+import org.mskcc.smile.service.MessagePublisher;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Publish stage shared by all message handlers.
+ *
+ * <p>When num.publish_in_flight is greater than zero, handlers hand validated messages
+ * off to a bounded buffer and move on to their next message while a set of publisher
+ * lanes sends them. Each lane publishes one message at a time and messages with the same
+ * ordering key (request id) always go to the same lane, so they are sent in the order the
+ * handlers produced them. Handlers block when a lane's buffer is full.
+ *
+ * <p>When num.publish_in_flight is zero, messages are published inline by the handler thread.
+ *
+ * <p>Messages that fail to publish are handed to a retry worker and re-sent with exponential
+ * backoff and jitter, so neither handler threads nor publisher lanes ever wait on a retry.
+ * Retried messages may be published after newer messages with the same ordering key. After
+ * publish.retry_max_attempts the message is written to the dead-letter topic if configured,
+ * or otherwise appended to the local dead-letter file as NDJSON.
+ *
+ * <p>A publish can carry a callback that is run once the message has been sent or
+ * dead-lettered, which is when the journaled message it came from can be acknowledged.
+ */
+@Service
+public class AsyncMessagePublisherImpl implements MessagePublisher {
+    private static final Log LOG = LogFactory.getLog(AsyncMessagePublisherImpl.class);
+
+    private final int NUM_PUBLISH_IN_FLIGHT;
+    private final int PUBLISH_BUFFER_CAPACITY;
+    private final int RETRY_MAX_ATTEMPTS;
+    private final long RETRY_BASE_DELAY_MILLIS;
+    private final long RETRY_MAX_DELAY_MILLIS;
+    private final String DEAD_LETTER_TOPIC;
+    private final String DEAD_LETTER_FILE;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private boolean initialized = false;
+    private volatile boolean shutdownInitiated;
+    private Gateway messagingGateway;
+    private final ExecutorService exec = Executors.newCachedThreadPool();
+    private BlockingQueue<PublishTask>[] publishLanes;
+    private CountDownLatch publishLaneShutdownLatch;
+    private final DelayQueue<RetryTask> retryQueue = new DelayQueue<>();
+    private final AtomicLong deadLetterCount = new AtomicLong();
+    private Thread retryWorker;
+    private final Object deadLetterFileLock = new Object();
+
+    /**
+     * AsyncMessagePublisherImpl constructor.
+     * @param publishInFlight 0 publishes inline
+     * @param publishBufferCapacity
+     * @param retryMaxAttempts
+     * @param retryBaseDelayMillis
+     * @param retryMaxDelayMillis
+     * @param deadLetterTopic blank writes dead letters to deadLetterFile
+     * @param deadLetterFile
+     */
+    @Autowired
+    public AsyncMessagePublisherImpl(@Value("${num.publish_in_flight:0}") int publishInFlight,
+            @Value("${publish.buffer_capacity:100}") int publishBufferCapacity,
+            @Value("${publish.retry_max_attempts:5}") int retryMaxAttempts,
+            @Value("${publish.retry_base_delay_millis:500}") long retryBaseDelayMillis,
+            @Value("${publish.retry_max_delay_millis:30000}") long retryMaxDelayMillis,
+            @Value("${publish.dead_letter_topic:}") String deadLetterTopic,
+            @Value("${publish.dead_letter_file:dead_letter_messages.ndjson}") String deadLetterFile) {
+        this.NUM_PUBLISH_IN_FLIGHT = publishInFlight;
+        this.PUBLISH_BUFFER_CAPACITY = publishBufferCapacity;
+        this.RETRY_MAX_ATTEMPTS = retryMaxAttempts;
+        this.RETRY_BASE_DELAY_MILLIS = retryBaseDelayMillis;
+        this.RETRY_MAX_DELAY_MILLIS = retryMaxDelayMillis;
+        this.DEAD_LETTER_TOPIC = deadLetterTopic;
+        this.DEAD_LETTER_FILE = deadLetterFile;
+    }
+
+    private static class PublishTask {
+        final String msgId;
+        final String topic;
+        final Object message;
+        final Runnable onPublished;
+
+        PublishTask(String msgId, String topic, Object message, Runnable onPublished) {
+            this.msgId = msgId;
+            this.topic = topic;
+            this.message = message;
+            this.onPublished = onPublished;
+        }
+    }
+
+    private static class RetryTask implements Delayed {
+        final PublishTask task;
+        final int attempt;
+        final long dueNanos;
+
+        RetryTask(PublishTask task, int attempt, long delayMillis) {
+            this.task = task;
+            this.attempt = attempt;
+            this.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    private class RetryWorker implements Runnable {
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    RetryTask retry = retryQueue.take();
+                    LOG.info("Retrying publish to topic: " + retry.task.topic + " (attempt "
+                            + (retry.attempt + 1) + " of " + RETRY_MAX_ATTEMPTS + ", retry queue depth: "
+                            + retryQueue.size() + ")");
+                    trySend(retry.task, retry.attempt + 1);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private class PublishLane implements Runnable {
+        final BlockingQueue<PublishTask> laneQueue;
+        boolean interrupted = false;
+
+        PublishLane(BlockingQueue<PublishTask> laneQueue) {
+            this.laneQueue = laneQueue;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    PublishTask task = laneQueue.poll(100, TimeUnit.MILLISECONDS);
+                    if (task != null) {
+                        trySend(task, 1);
+                    }
+                    if ((interrupted || shutdownInitiated) && laneQueue.isEmpty()) {
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (Exception e) {
+                    LOG.error("Error during message publishing", e);
+                }
+            }
+            publishLaneShutdownLatch.countDown();
+        }
+    }
+
+    @Override
+    public synchronized void initialize(Gateway gateway) throws Exception {
+        if (!initialized) {
+            messagingGateway = gateway;
+            if (NUM_PUBLISH_IN_FLIGHT > 0) {
+                initializePublishLanes();
+            }
+            retryWorker = new Thread(new RetryWorker(), "publish-retry-worker");
+            retryWorker.setDaemon(true);
+            retryWorker.start();
+            initialized = true;
+        } else {
+            LOG.error("Message publisher has already been initialized, ignoring request.\n");
+        }
+    }
+
+    @Override
+    public void publish(String msgId, String topic, Object message) throws Exception {
+        publish(msgId, topic, message, null);
+    }
+
+    @Override
+    public void publishInOrder(String orderingKey, String topic, Object message) throws Exception {
+        publishInOrder(orderingKey, topic, message, null);
+    }
+
+    @Override
+    public void publish(String msgId, String topic, Object message, Runnable onPublished)
+            throws Exception {
+        enqueue(msgId, new PublishTask(msgId, topic, message, onPublished));
+    }
+
+    @Override
+    public void publishInOrder(String orderingKey, String topic, Object message, Runnable onPublished)
+            throws Exception {
+        enqueue(orderingKey, new PublishTask(null, topic, message, onPublished));
+    }
+
+    @Override
+    public void deadLetter(String topic, Object message, int attempts, String error,
+            Runnable onDeadLettered) {
+        deadLetter(new PublishTask(null, topic, message, onDeadLettered), attempts, error);
+    }
+
+    @Override
+    public void shutdown() throws Exception {
+        if (!initialized) {
+            throw new IllegalStateException("Message publisher has not been initialized");
+        }
+        // stop accepting new messages and let the lanes drain what is already buffered
+        shutdownInitiated = true;
+        if (publishLanes != null) {
+            publishLaneShutdownLatch.await();
+            exec.shutdown();
+        }
+        // anything still waiting to be retried is dead-lettered so that it isn't lost
+        retryWorker.interrupt();
+        retryWorker.join();
+        RetryTask retry;
+        while ((retry = retryQueue.poll()) != null) {
+            deadLetter(retry.task, retry.attempt, "shutdown before retry");
+        }
+    }
+
+    @Override
+    public int getRetryQueueDepth() {
+        return retryQueue.size();
+    }
+
+    @Override
+    public long getDeadLetterCount() {
+        return deadLetterCount.get();
+    }
+
+    private void enqueue(String orderingKey, PublishTask task) throws Exception {
+        if (!initialized) {
+            throw new IllegalStateException("Message publisher has not been initialized");
+        }
+        if (shutdownInitiated) {
+            LOG.error("Shutdown initiated, not accepting message for topic: " + task.topic);
+            throw new IllegalStateException("Shutdown initiated, not publishing any more messages");
+        }
+        if (publishLanes == null) {
+            trySend(task, 1);
+            return;
+        }
+        int lane = (orderingKey == null) ? 0 : Math.floorMod(orderingKey.hashCode(), publishLanes.length);
+        publishLanes[lane].put(task);
+    }
+
+    /**
+     * Publishes the message and schedules a retry if it fails.
+     * @param task
+     * @param attempt number of this attempt, starting at 1
+     */
+    private void trySend(PublishTask task, int attempt) {
+        try {
+            send(task);
+            complete(task);
+        } catch (Exception e) {
+            if (attempt >= RETRY_MAX_ATTEMPTS) {
+                LOG.error("Failed to publish message to topic: " + task.topic + " after " + attempt
+                        + " attempts", e);
+                deadLetter(task, attempt, e.toString());
+            } else {
+                long delayMillis = getBackoffDelayMillis(attempt);
+                LOG.warn("Failed to publish message to topic: " + task.topic + ", retrying in "
+                        + delayMillis + "ms", e);
+                retryQueue.put(new RetryTask(task, attempt, delayMillis));
+            }
+        }
+    }
+
+    /**
+     * Exponential backoff capped at the max delay with 'equal jitter' - the delay is
+     * randomized between half and all of the backoff so that messages which failed
+     * together don't all retry at the same time.
+     */
+    private long getBackoffDelayMillis(int attempt) {
+        long backoff = RETRY_BASE_DELAY_MILLIS << Math.min(attempt - 1, 30);
+        backoff = Math.min(RETRY_MAX_DELAY_MILLIS, Math.max(1L, backoff));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    private void deadLetter(PublishTask task, int attempts, String error) {
+        long count = deadLetterCount.incrementAndGet();
+        if (!StringUtils.isBlank(DEAD_LETTER_TOPIC)) {
+            try {
+                if (messagingGateway == null) {
+                    throw new IllegalStateException("Message publisher has not been initialized");
+                }
+                messagingGateway.publish(DEAD_LETTER_TOPIC, task.message);
+                LOG.error("Message for topic: " + task.topic + " published to dead-letter topic: "
+                        + DEAD_LETTER_TOPIC + " (total dead-lettered: " + count + ")");
+                complete(task);
+                return;
+            } catch (Exception e) {
+                LOG.error("Failed to publish to dead-letter topic: " + DEAD_LETTER_TOPIC
+                        + ", falling back on dead-letter file", e);
+            }
+        }
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("timestamp", Instant.now().toString());
+        record.put("topic", task.topic);
+        record.put("msgId", task.msgId);
+        record.put("attempts", attempts);
+        record.put("error", error);
+        record.put("message", task.message);
+        synchronized (deadLetterFileLock) {
+            try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(DEAD_LETTER_FILE),
+                    StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(mapper.writeValueAsString(record));
+                writer.newLine();
+                LOG.error("Message for topic: " + task.topic + " written to dead-letter file: "
+                        + DEAD_LETTER_FILE + " (total dead-lettered: " + count + ")");
+                complete(task);
+            } catch (IOException e) {
+                // not completed, so the journaled message it came from is replayed on startup
+                LOG.error("Failed to write to dead-letter file, message contents: " + task.message, e);
+            }
+        }
+    }
+
+    /**
+     * Runs the callback of a message that has been sent or dead-lettered.
+     */
+    private void complete(PublishTask task) {
+        if (task.onPublished == null) {
+            return;
+        }
+        try {
+            task.onPublished.run();
+        } catch (RuntimeException e) {
+            LOG.error("Error completing publish to topic: " + task.topic, e);
+        }
+    }
+
+    private void send(PublishTask task) throws Exception {
+        if (task.msgId != null) {
+            messagingGateway.publish(task.msgId, task.topic, task.message);
+        } else {
+            messagingGateway.publish(task.topic, task.message);
+        }
+    }
+
+    private void initializePublishLanes() {
+        int laneCapacity = Math.max(1, PUBLISH_BUFFER_CAPACITY / NUM_PUBLISH_IN_FLIGHT);
+        LOG.info("Publishing asynchronously with " + NUM_PUBLISH_IN_FLIGHT + " sends in flight and "
+                + "buffer capacity of " + laneCapacity + " messages per lane");
+        publishLanes = new BlockingQueue[NUM_PUBLISH_IN_FLIGHT];
+        publishLaneShutdownLatch = new CountDownLatch(NUM_PUBLISH_IN_FLIGHT);
+        for (int lc = 0; lc < NUM_PUBLISH_IN_FLIGHT; lc++) {
+            publishLanes[lc] = new ArrayBlockingQueue<>(laneCapacity);
+            exec.execute(new PublishLane(publishLanes[lc]));
+        }
+    }
+}
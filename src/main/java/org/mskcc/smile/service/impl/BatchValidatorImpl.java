@@ -0,0 +1,241 @@
+package org.mskcc.smile.service.impl;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.smile.service.BatchValidator;
+import org.mskcc.smile.service.ValidRequestChecker;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Offline validation of request JSON files for backfills, without connecting to NATS.
+ * Enabled by giving batch.input on the command line, e.g.
+ * java -jar smile_request_filter.jar --batch.input=requests/ --batch.output=validated.ndjson
+ *
+ * <p>The input is either a directory of request JSON files (one request per file) or
+ * an NDJSON file with one request per line ('-' reads NDJSON from stdin). Requests are
+ * validated in parallel and the results are written as NDJSON in input order, one line
+ * per request with the filtered request and its validation report. At most a few
+ * requests per thread are held in memory at once, however large the input.
+ */
+@Component
+public class BatchValidatorImpl implements BatchValidator {
+    private static final Log LOG = LogFactory.getLog(BatchValidatorImpl.class);
+    private static final String STDIN = "-";
+    // requests read ahead per thread, bounds the memory held by pending results
+    private static final int PENDING_PER_THREAD = 4;
+
+    private final ValidRequestChecker validRequestChecker;
+    private final String input;
+    private final String output;
+    private final int threads;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final AtomicLong validCount = new AtomicLong();
+    private final AtomicLong reportedCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private BufferedReader ndjsonReader;
+    private Stream<Path> directoryStream;
+
+    private static class BatchRequest {
+        final String source;
+        final String requestJson;
+
+        BatchRequest(String source, String requestJson) {
+            this.source = source;
+            this.requestJson = requestJson;
+        }
+    }
+
+    /**
+     * BatchValidatorImpl constructor.
+     * @param validRequestChecker
+     * @param input
+     * @param output
+     * @param threads 0 uses the number of cores
+     */
+    @Autowired
+    public BatchValidatorImpl(ValidRequestChecker validRequestChecker,
+            @Value("${batch.input:}") String input,
+            @Value("${batch.output:batch_validation.ndjson}") String output,
+            @Value("${batch.threads:0}") int threads) {
+        this.validRequestChecker = validRequestChecker;
+        this.input = input;
+        this.output = output;
+        this.threads = threads;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return !StringUtils.isBlank(input);
+    }
+
+    /**
+     * Validates every request in batch.input and writes the results to batch.output,
+     * logging a throughput summary at the end.
+     * @throws Exception
+     */
+    @Override
+    public void validate() throws Exception {
+        int numThreads = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+        int maxPending = numThreads * PENDING_PER_THREAD;
+        LOG.info("Validating requests from: " + input + " with " + numThreads + " thread(s), writing to: "
+                + output);
+        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+        ArrayDeque<Future<String>> pending = new ArrayDeque<>();
+        long start = System.nanoTime();
+        long total = 0;
+        long inputBytes = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8)) {
+            Iterator<BatchRequest> requests = readRequests();
+            while (requests.hasNext()) {
+                BatchRequest request = requests.next();
+                inputBytes += request.requestJson.length();
+                total++;
+                pending.add(exec.submit(() -> validateRequest(request)));
+                // results are written in input order, the reader waits on the oldest
+                // request once enough are in flight
+                while (pending.size() >= maxPending || (!pending.isEmpty() && pending.peek().isDone())) {
+                    writeResult(writer, pending.poll());
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeResult(writer, pending.poll());
+            }
+        } finally {
+            exec.shutdownNow();
+            closeInput();
+        }
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        LOG.info("Batch validation finished: " + total + " request(s) in " + elapsedMillis + " ms ("
+                + String.format("%.1f", total * 1000.0 / elapsedMillis) + " requests/sec, "
+                + String.format("%.2f", inputBytes / 1048576.0 * 1000.0 / elapsedMillis) + " MB/sec), valid: "
+                + validCount.get() + ", with validation reports: " + reportedCount.get()
+                + ", errors: " + errorCount.get());
+    }
+
+    private String validateRequest(BatchRequest request) throws Exception {
+        StringWriter result = new StringWriter();
+        try (JsonGenerator gen = jsonFactory.createGenerator(result)) {
+            gen.writeStartObject();
+            gen.writeStringField("source", request.source);
+            try {
+                gen.writeStringField("requestId", validRequestChecker.getRequestId(request.requestJson));
+                String filteredRequestJson =
+                        validRequestChecker.getFilteredValidRequestJson(request.requestJson);
+                String report = null;
+                if (filteredRequestJson != null) {
+                    // serialized without indentation so it stays on the one line
+                    gen.writeFieldName("filteredRequest");
+                    gen.writeRawValue(filteredRequestJson);
+                    report = validRequestChecker.generateValidationReport(request.requestJson,
+                            filteredRequestJson);
+                }
+                gen.writeStringField("validationReport", report);
+                if (report == null && filteredRequestJson != null) {
+                    validCount.incrementAndGet();
+                } else {
+                    reportedCount.incrementAndGet();
+                }
+            } catch (Exception e) {
+                errorCount.incrementAndGet();
+                gen.writeStringField("error", e.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+            gen.writeEndObject();
+        }
+        return result.toString();
+    }
+
+    private void writeResult(BufferedWriter writer, Future<String> result) throws Exception {
+        writer.write(result.get());
+        writer.newLine();
+    }
+
+    private Iterator<BatchRequest> readRequests() throws Exception {
+        Path inputPath = Paths.get(input);
+        if (!STDIN.equals(input) && Files.isDirectory(inputPath)) {
+            directoryStream = Files.walk(inputPath)
+                    .filter(path -> path.toString().endsWith(".json") && Files.isRegularFile(path))
+                    .sorted();
+            Iterator<Path> paths = directoryStream.iterator();
+            return new Iterator<BatchRequest>() {
+                @Override
+                public boolean hasNext() {
+                    return paths.hasNext();
+                }
+
+                @Override
+                public BatchRequest next() {
+                    Path path = paths.next();
+                    try {
+                        return new BatchRequest(path.toString(), Files.readString(path));
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Failed to read request file: " + path, e);
+                    }
+                }
+            };
+        }
+        ndjsonReader = STDIN.equals(input)
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(inputPath, StandardCharsets.UTF_8);
+        return new Iterator<BatchRequest>() {
+            private String nextLine;
+            private long lineNumber;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    while (nextLine == null) {
+                        String line = ndjsonReader.readLine();
+                        if (line == null) {
+                            return false;
+                        }
+                        lineNumber++;
+                        if (!line.isBlank()) {
+                            nextLine = line;
+                        }
+                    }
+                    return true;
+                } catch (Exception e) {
+                    throw new IllegalStateException("Failed to read NDJSON input: " + input, e);
+                }
+            }
+
+            @Override
+            public BatchRequest next() {
+                hasNext();
+                BatchRequest request = new BatchRequest(input + ":" + lineNumber, nextLine);
+                nextLine = null;
+                return request;
+            }
+        };
+    }
+
+    private void closeInput() throws Exception {
+        if (directoryStream != null) {
+            directoryStream.close();
+        }
+        if (ndjsonReader != null) {
+            ndjsonReader.close();
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package org.mskcc.smile.service.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.smile.service.HandlerConcurrencyGate;
+import org.mskcc.smile.service.util.HandlerGroup;
+import org.mskcc.smile.service.util.MessageSource;
+import org.mskcc.smile.service.util.QueuedMessage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Shared dispatcher that runs the handlers of the three message handling services on a
+ * fixed number of worker threads, and decides which message class is handled next.
+ *
+ * <p>Each message flow registers its queue with the gate instead of starting handler
+ * threads of its own. A free worker picks a message class with smooth weighted round-robin
+ * across the classes that have messages queued, so a class gets workers in proportion to
+ * its configured weight while still being guaranteed a turn as long as its weight is
+ * non-zero, and takes the next message from that class's queues (in turns, when several
+ * pipeline instances each registered one). Messages stay in their flow's queue until a
+ * worker takes them, so weights apply to the whole backlog of each class.
+ *
+ * <p>Bulk request handlers are not registered with the gate and keep their fixed size.
+ * Latency is measured from the time a message was queued.
+ */
+@Component
+public class HandlerConcurrencyGateImpl implements HandlerConcurrencyGate {
+    private static final Log LOG = LogFactory.getLog(HandlerConcurrencyGateImpl.class);
+    // how long idle workers wait before looking again at queues that are holding messages back
+    private static final long HELD_RECHECK_MILLIS = 10;
+
+    private final boolean enabled;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition messageQueued = lock.newCondition();
+    private final Condition queueDrained = lock.newCondition();
+    private final Map<String, MessageClassState> messageClasses = new LinkedHashMap<>();
+    private final AtomicInteger idleWorkers = new AtomicInteger();
+
+    /**
+     * HandlerConcurrencyGateImpl constructor.
+     * @param enabled
+     * @param maxConcurrentHandlers
+     * @param newRequestWeight
+     * @param promotedRequestWeight
+     * @param requestUpdateWeight
+     * @param sampleUpdateWeight
+     * @param metricsIntervalSeconds
+     */
+    @Autowired
+    public HandlerConcurrencyGateImpl(
+            @Value("${concurrency.gate.enabled:false}") Boolean enabled,
+            @Value("${concurrency.gate.max_concurrent_handlers:0}") int maxConcurrentHandlers,
+            @Value("${concurrency.gate.weight.new_request:8}") int newRequestWeight,
+            @Value("${concurrency.gate.weight.promoted_request:4}") int promotedRequestWeight,
+            @Value("${concurrency.gate.weight.request_update:2}") int requestUpdateWeight,
+            @Value("${concurrency.gate.weight.sample_update:1}") int sampleUpdateWeight,
+            @Value("${concurrency.gate.metrics_interval_seconds:60}") int metricsIntervalSeconds) {
+        this.enabled = enabled;
+        addMessageClass(NEW_REQUEST, newRequestWeight);
+        addMessageClass(PROMOTED_REQUEST, promotedRequestWeight);
+        addMessageClass(REQUEST_UPDATE, requestUpdateWeight);
+        addMessageClass(SAMPLE_UPDATE, sampleUpdateWeight);
+        if (enabled) {
+            int workers = (maxConcurrentHandlers > 0) ? maxConcurrentHandlers
+                    : Runtime.getRuntime().availableProcessors();
+            LOG.info("Handler concurrency gate enabled with " + workers
+                    + " handler workers and weights: " + getWeights());
+            for (int i = 0; i < workers; i++) {
+                Thread worker = new Thread(this::runWorker, "handler-concurrency-gate-" + i);
+                worker.setDaemon(true);
+                worker.start();
+            }
+            if (metricsIntervalSeconds > 0) {
+                ScheduledExecutorService metricsExec = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "handler-concurrency-gate-metrics");
+                    t.setDaemon(true);
+                    return t;
+                });
+                metricsExec.scheduleAtFixedRate(this::logMetrics, metricsIntervalSeconds,
+                        metricsIntervalSeconds, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public <T> Registration register(String messageClass, MessageSource<QueuedMessage<T>> source,
+            HandlerGroup.MessageHandler<QueuedMessage<T>> handler, String errorMessage) {
+        MessageClassState state = messageClasses.get(messageClass);
+        if (state == null) {
+            throw new IllegalArgumentException("Unknown message class: " + messageClass);
+        }
+        QueueRegistration<T> registration = new QueueRegistration<>(state, source, handler, errorMessage);
+        lock.lock();
+        try {
+            state.queues.add(registration);
+            messageQueued.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return registration;
+    }
+
+    @Override
+    public void messageQueued() {
+        // a worker counts itself idle before it looks at the queues, so either it sees the
+        // message or the message is followed by a signal
+        if (idleWorkers.get() == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            messageQueued.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addMessageClass(String name, int weight) {
+        // a weight of zero would starve the class entirely, so treat it as the lowest priority
+        messageClasses.put(name, new MessageClassState(name, Math.max(1, weight)));
+    }
+
+    private void runWorker() {
+        while (true) {
+            QueueRegistration<?> registration;
+            try {
+                registration = next();
+            } catch (InterruptedException e) {
+                return;
+            }
+            registration.handleNext();
+        }
+    }
+
+    /**
+     * Blocks until a queue of some message class has messages and returns the queue
+     * the next message is taken from.
+     */
+    private QueueRegistration<?> next() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                idleWorkers.incrementAndGet();
+                QueueRegistration<?> selected = select();
+                if (selected != null) {
+                    idleWorkers.decrementAndGet();
+                    selected.inFlight++;
+                    return selected;
+                }
+                boolean signalled = messageQueued.await(HELD_RECHECK_MILLIS, TimeUnit.MILLISECONDS);
+                idleWorkers.decrementAndGet();
+                if (!signalled) {
+                    for (MessageClassState state : messageClasses.values()) {
+                        state.queues.forEach(queue -> queue.held = false);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Picks the message class with smooth weighted round-robin among the classes with
+     * messages queued, then the next of its queues that has messages. Must be called
+     * with the lock held.
+     */
+    private QueueRegistration<?> select() {
+        MessageClassState selected = null;
+        int totalWeight = 0;
+        for (MessageClassState state : messageClasses.values()) {
+            if (!state.hasQueuedMessages()) {
+                continue;
+            }
+            state.currentWeight += state.weight;
+            totalWeight += state.weight;
+            if (selected == null || state.currentWeight > selected.currentWeight) {
+                selected = state;
+            }
+        }
+        if (selected == null) {
+            return null;
+        }
+        selected.currentWeight -= totalWeight;
+        return selected.nextQueue();
+    }
+
+    private String getWeights() {
+        StringBuilder builder = new StringBuilder();
+        for (MessageClassState state : messageClasses.values()) {
+            builder.append(builder.length() == 0 ? "" : ", ")
+                    .append(state.name).append("=").append(state.weight);
+        }
+        return builder.toString();
+    }
+
+    private void logMetrics() {
+        lock.lock();
+        try {
+            for (MessageClassState state : messageClasses.values()) {
+                if (state.count == 0) {
+                    continue;
+                }
+                LOG.info("[handler-concurrency-gate] " + state.name + ": handled=" + state.count
+                        + ", queued=" + state.getQueuedCount()
+                        + ", avg_wait_ms=" + toMillis(state.totalWaitNanos / state.count)
+                        + ", max_wait_ms=" + toMillis(state.maxWaitNanos)
+                        + ", avg_handling_ms=" + toMillis(state.totalServiceNanos / state.count)
+                        + ", max_handling_ms=" + toMillis(state.maxServiceNanos));
+                state.resetLatency();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private class QueueRegistration<T> implements Registration {
+        final MessageClassState state;
+        final MessageSource<QueuedMessage<T>> source;
+        final HandlerGroup.MessageHandler<QueuedMessage<T>> handler;
+        final String errorMessage;
+        // guarded by the gate's lock
+        int inFlight = 0;
+        // set when the queue has messages but is holding them back, e.g. to coalesce them
+        boolean held = false;
+
+        QueueRegistration(MessageClassState state, MessageSource<QueuedMessage<T>> source,
+                HandlerGroup.MessageHandler<QueuedMessage<T>> handler, String errorMessage) {
+            this.state = state;
+            this.source = source;
+            this.handler = handler;
+            this.errorMessage = errorMessage;
+        }
+
+        boolean hasQueuedMessages() {
+            return !held && !source.isEmpty();
+        }
+
+        void handleNext() {
+            QueuedMessage<T> message = null;
+            try {
+                message = source.poll(0, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long started = System.nanoTime();
+            if (message != null) {
+                try {
+                    handler.handle(message);
+                } catch (Exception e) {
+                    LOG.error(errorMessage, e);
+                }
+            }
+            long completed = System.nanoTime();
+            lock.lock();
+            try {
+                inFlight--;
+                if (message == null) {
+                    held = true;
+                } else {
+                    state.recordLatency(started - message.getEnqueuedNanos(), completed - started);
+                }
+                queueDrained.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void drainAndRemove() throws InterruptedException {
+            lock.lock();
+            try {
+                while (inFlight > 0 || !source.isEmpty()) {
+                    queueDrained.await(HELD_RECHECK_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                state.queues.remove(this);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class MessageClassState {
+        final String name;
+        final int weight;
+        final List<QueueRegistration<?>> queues = new ArrayList<>();
+        long currentWeight = 0;
+        int nextQueue = 0;
+        // latency metrics since last metrics report
+        long count = 0;
+        long totalWaitNanos = 0;
+        long maxWaitNanos = 0;
+        long totalServiceNanos = 0;
+        long maxServiceNanos = 0;
+
+        MessageClassState(String name, int weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+
+        boolean hasQueuedMessages() {
+            for (QueueRegistration<?> queue : queues) {
+                if (queue.hasQueuedMessages()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        QueueRegistration<?> nextQueue() {
+            for (int i = 0; i < queues.size(); i++) {
+                QueueRegistration<?> queue = queues.get((nextQueue + i) % queues.size());
+                if (queue.hasQueuedMessages()) {
+                    nextQueue = (nextQueue + i + 1) % queues.size();
+                    return queue;
+                }
+            }
+            return null;
+        }
+
+        int getQueuedCount() {
+            int queued = 0;
+            for (QueueRegistration<?> queue : queues) {
+                queued += queue.source.size();
+            }
+            return queued;
+        }
+
+        void recordLatency(long waitNanos, long serviceNanos) {
+            count++;
+            totalWaitNanos += waitNanos;
+            maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+            totalServiceNanos += serviceNanos;
+            maxServiceNanos = Math.max(maxServiceNanos, serviceNanos);
+        }
+
+        void resetLatency() {
+            count = 0;
+            totalWaitNanos = 0;
+            maxWaitNanos = 0;
+            totalServiceNanos = 0;
+            maxServiceNanos = 0;
+        }
+    }
+}
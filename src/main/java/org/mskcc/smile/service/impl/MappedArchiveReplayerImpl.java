@@ -0,0 +1,211 @@
+package org.mskcc.smile.service.impl;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.smile.service.ArchiveReplayer;
+import org.mskcc.smile.service.MessagePipeline;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Replays an NDJSON capture of received messages (see pipeline.capture_file) through the
+ * same receivers as live messages, so captured traffic runs through the real decoding,
+ * partitioning, queueing and handler code. Meant for regression runs and reconstructing
+ * incidents against a test environment since the handlers publish their results as usual.
+ *
+ * <p>The capture is memory-mapped in line-aligned chunks of up to replay.chunk_mb, so
+ * captures larger than 2GB can be mapped, and lines are parsed in place. Only the
+ * payload of each message is copied out, since the receivers take it as a byte array.
+ * With replay.rate greater than 0 messages are paced by their capture timestamps
+ * (2 replays twice as fast as captured), 0 replays as fast as possible.
+ */
+@Component
+public class MappedArchiveReplayerImpl implements ArchiveReplayer {
+    private static final Log LOG = LogFactory.getLog(MappedArchiveReplayerImpl.class);
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final MessagePipeline messagePipeline;
+    private final String replayFile;
+    private final double rate;
+    private final int chunkMb;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final Map<String, Long> deliveredByTopic = new TreeMap<>();
+    private long delivered;
+    private long skipped;
+    private long firstTimestamp = -1;
+    private long paceStartNanos;
+
+    /**
+     * MappedArchiveReplayerImpl constructor.
+     * @param messagePipeline
+     * @param replayFile blank disables the replay
+     * @param rate
+     * @param chunkMb
+     */
+    @Autowired
+    public MappedArchiveReplayerImpl(MessagePipeline messagePipeline,
+            @Value("${replay.file:}") String replayFile,
+            @Value("${replay.rate:0}") double rate,
+            @Value("${replay.chunk_mb:256}") int chunkMb) {
+        this.messagePipeline = messagePipeline;
+        this.replayFile = replayFile;
+        this.rate = rate;
+        this.chunkMb = chunkMb;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return !StringUtils.isBlank(replayFile);
+    }
+
+    /**
+     * Replays every message in replay.file, then logs the throughput.
+     * @throws Exception
+     */
+    @Override
+    public void replay() throws Exception {
+        Path path = Paths.get(replayFile);
+        LOG.info("Replaying captured messages from: " + path.toAbsolutePath()
+                + (rate > 0 ? " at " + rate + "x the captured rate" : " as fast as possible"));
+        long bytes = 0;
+        long startNanos = System.nanoTime();
+        long lastProgress = startNanos;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long chunkSize = Math.min(Integer.MAX_VALUE, Math.max(1, (long) chunkMb) * 1024 * 1024);
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(chunkSize, size - position);
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int end = lineAlignedEnd(chunk, position + chunk.capacity() == size);
+                if (end == 0) {
+                    throw new IllegalStateException("Line at offset " + position + " of " + path
+                            + " is longer than replay.chunk_mb, increase it to replay this capture");
+                }
+                replayChunk(chunk, end);
+                position += end;
+                bytes = position;
+                if (System.nanoTime() - lastProgress > PROGRESS_INTERVAL_NANOS) {
+                    lastProgress = System.nanoTime();
+                    LOG.info("Replayed " + delivered + " message(s), " + bytes / (1024 * 1024) + " of "
+                            + size / (1024 * 1024) + " MB");
+                }
+            }
+        }
+        long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        LOG.info("Replay finished: " + delivered + " message(s) in " + elapsedMillis + " ms ("
+                + String.format("%.1f", delivered * 1000.0 / elapsedMillis) + " messages/sec, "
+                + String.format("%.2f", bytes / 1048576.0 * 1000.0 / elapsedMillis) + " MB/sec), skipped: "
+                + skipped + ", per topic: " + deliveredByTopic);
+    }
+
+    /**
+     * Returns the end of the last complete line in the chunk, the whole chunk if it is
+     * the end of the file.
+     */
+    private int lineAlignedEnd(ByteBuffer chunk, boolean lastChunk) {
+        if (lastChunk) {
+            return chunk.capacity();
+        }
+        for (int i = chunk.capacity() - 1; i >= 0; i--) {
+            if (chunk.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private void replayChunk(ByteBuffer chunk, int end) throws Exception {
+        int lineStart = 0;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && chunk.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd > lineStart) {
+                replayLine(chunk.slice(lineStart, lineEnd - lineStart));
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    private void replayLine(ByteBuffer line) throws Exception {
+        String topic = null;
+        long timestamp = -1;
+        byte[] data = null;
+        try (JsonParser parser =
+                jsonFactory.createParser(new ByteBufferBackedInputStream(line.duplicate()))) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                skipped++;
+                return;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if ("topic".equals(field)) {
+                    topic = parser.getValueAsString();
+                } else if ("timestamp".equals(field)) {
+                    timestamp = parser.getValueAsLong(-1);
+                } else if ("data".equals(field)) {
+                    // the raw bytes of the data value are the message payload
+                    int dataStart = (int) parser.currentTokenLocation().getByteOffset();
+                    parser.skipChildren();
+                    // strings are only read up to their end once asked for
+                    parser.finishToken();
+                    int dataEnd = (int) parser.currentLocation().getByteOffset();
+                    data = new byte[dataEnd - dataStart];
+                    line.get(dataStart, data);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (Exception e) {
+            LOG.debug("Skipping malformed capture line", e);
+            skipped++;
+            return;
+        }
+        if (topic == null || data == null) {
+            skipped++;
+            return;
+        }
+        pace(timestamp);
+        if (messagePipeline.deliver(topic, data)) {
+            delivered++;
+            deliveredByTopic.merge(topic, 1L, Long::sum);
+        } else {
+            skipped++;
+        }
+    }
+
+    private void pace(long timestamp) throws InterruptedException {
+        if (rate <= 0 || timestamp < 0) {
+            return;
+        }
+        if (firstTimestamp < 0) {
+            firstTimestamp = timestamp;
+            paceStartNanos = System.nanoTime();
+            return;
+        }
+        long capturedNanos = TimeUnit.MILLISECONDS.toNanos(timestamp - firstTimestamp);
+        long dueNanos = paceStartNanos + (long) (capturedNanos / rate);
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package org.mskcc.smile.service.impl;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.smile.service.MessageJournal;
+import org.mskcc.smile.service.MessagePublisher;
+import org.mskcc.smile.service.util.OffHeapRingBuffer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Append-only journal of messages that have been accepted from the messaging gateway
+ * but not yet handled, kept in a memory-mapped file so that appends are plain memory
+ * writes and the contents survive a restart of the process.
+ *
+ * <p>File layout: a header holding a magic number and the checkpoint (every record with
+ * a lower sequence number has been acknowledged), followed by records of the form
+ * [int length][long seq][byte acked][byte attempts][short stream length][stream][payload],
+ * terminated by a zero length.
+ *
+ * <p>A record is acknowledged once everything published for each message enqueued for
+ * it has been sent or dead-lettered, or the message has been superseded, at which point
+ * its acked flag is set. A message whose handler fails is not acknowledged, so it is
+ * replayed on the next startup. A replayed message is handled under its original record,
+ * which counts the attempts, and after journal.max_replay_attempts it is dead-lettered
+ * instead of replayed again. Records may be acknowledged out of order
+ * since several handlers run at once, so the checkpoint is the low-water mark of the
+ * outstanding records and only lets startup skip over the acknowledged head of the file.
+ * When the file is full the outstanding records are copied to a new file which then replaces
+ * the journal, so the journal is never left half compacted.
+ * A message that was handled right before the process died may be replayed (at-least-once).
+ */
+@Component
+public class MappedMessageJournalImpl implements MessageJournal {
+    private static final Log LOG = LogFactory.getLog(MappedMessageJournalImpl.class);
+    private static final int MAGIC = 0x534d4a32;
+    private static final int CHECKPOINT_OFFSET = 4;
+    private static final int HEADER_SIZE = 16;
+    private static final int ACKED_OFFSET = Integer.BYTES + Long.BYTES;
+    private static final int ATTEMPTS_OFFSET = ACKED_OFFSET + 1;
+    private static final int STREAM_LENGTH_OFFSET = ATTEMPTS_OFFSET + 1;
+    // length, seq, acked flag, attempts and stream length fields of each record
+    private static final int RECORD_OVERHEAD = STREAM_LENGTH_OFFSET + Short.BYTES;
+
+    private final MessagePublisher messagePublisher;
+    private final Boolean enabled;
+    private final String journalPath;
+    private final int journalSizeMb;
+    private final int maxReplayAttempts;
+    private MappedByteBuffer buffer;
+    private FileChannel channel;
+    private int writePosition;
+    private long nextSeq;
+    private final TreeMap<Long, Record> outstanding = new TreeMap<>();
+    private final Map<Object, Record> recordsByMessage = new IdentityHashMap<>();
+    // record being replayed by the current thread, which the re-submitted message is journaled under
+    private final ThreadLocal<Record> replaying = new ThreadLocal<>();
+
+    /**
+     * MappedMessageJournalImpl constructor.
+     * @param messagePublisher dead-letters messages that failed too many replays
+     * @param enabled
+     * @param journalPath
+     * @param journalSizeMb
+     * @param maxReplayAttempts
+     */
+    @Autowired
+    public MappedMessageJournalImpl(MessagePublisher messagePublisher,
+            @Value("${journal.enabled:false}") Boolean enabled,
+            @Value("${journal.path:message_journal.dat}") String journalPath,
+            @Value("${journal.size_mb:64}") int journalSizeMb,
+            @Value("${journal.max_replay_attempts:3}") int maxReplayAttempts) {
+        this.messagePublisher = messagePublisher;
+        this.enabled = enabled;
+        this.journalPath = journalPath;
+        this.journalSizeMb = journalSizeMb;
+        this.maxReplayAttempts = maxReplayAttempts;
+    }
+
+    private static class Record {
+        final long seq;
+        final String stream;
+        int offset;
+        int pending;
+        boolean resubmitted;
+
+        Record(long seq, String stream, int offset, int pending) {
+            this.seq = seq;
+            this.stream = stream;
+            this.offset = offset;
+            this.pending = pending;
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Journals the payload for the given stream. The record is acknowledged once
+     * each of the given messages (the objects that were enqueued for handling) has
+     * been acknowledged. A message re-submitted while its record is being replayed is
+     * tracked under that record instead of being journaled again.
+     * @param stream
+     * @param payload
+     * @param messages
+     * @throws Exception
+     */
+    @Override
+    public synchronized void append(String stream, String payload, Object... messages) throws Exception {
+        if (!enabled || messages.length == 0) {
+            return;
+        }
+        open();
+        Record replayed = replaying.get();
+        if (replayed != null && !replayed.resubmitted && replayed.stream.equals(stream)) {
+            replayed.resubmitted = true;
+            track(replayed, messages);
+            return;
+        }
+        byte[] streamBytes = stream.getBytes(StandardCharsets.UTF_8);
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        int recordSize = RECORD_OVERHEAD + streamBytes.length + payloadBytes.length;
+        // leave room for the terminator after the record
+        if (writePosition + recordSize + Integer.BYTES > buffer.capacity()) {
+            try {
+                compact();
+            } catch (IOException e) {
+                LOG.error("Failed to compact message journal: " + journalPath, e);
+            }
+            if (writePosition + recordSize + Integer.BYTES > buffer.capacity()) {
+                LOG.warn("Message journal is full, handling " + stream + " message without journaling it");
+                return;
+            }
+        }
+        Record record = new Record(nextSeq++, stream, writePosition, 0);
+        buffer.putInt(writePosition + recordSize, 0);
+        buffer.position(writePosition + Integer.BYTES);
+        buffer.putLong(record.seq);
+        buffer.put((byte) 0);
+        buffer.put((byte) 1);
+        buffer.putShort((short) streamBytes.length);
+        buffer.put(streamBytes);
+        buffer.put(payloadBytes);
+        // the length is written last so a partially written record is never replayed
+        buffer.putInt(writePosition, recordSize - Integer.BYTES);
+        writePosition += recordSize;
+        outstanding.put(record.seq, record);
+        track(record, messages);
+    }
+
+    @Override
+    public synchronized void ack(Object message) {
+        if (!enabled || buffer == null) {
+            return;
+        }
+        Record record = recordsByMessage.remove(message);
+        if (record != null && --record.pending == 0) {
+            acknowledge(record);
+        }
+    }
+
+    /**
+     * Stops tracking a message whose handler failed. Its record is left unacknowledged
+     * so that it is replayed on the next startup.
+     * @param message
+     */
+    @Override
+    public synchronized void release(Object message) {
+        if (!enabled || buffer == null) {
+            return;
+        }
+        recordsByMessage.remove(message);
+    }
+
+    /**
+     * Hands every unacknowledged record for the given stream to the replay handler.
+     * The handler is expected to re-submit the payload through the regular message
+     * handling path, which tracks it under the original record. A record that has
+     * already been handled journal.max_replay_attempts times is dead-lettered instead,
+     * and a record that the handler did not re-submit is acknowledged when it returns.
+     * @param stream
+     * @param handler
+     * @throws Exception
+     */
+    @Override
+    public void replay(String stream, ReplayHandler handler) throws Exception {
+        if (!enabled) {
+            return;
+        }
+        List<Record> records = new ArrayList<>();
+        List<String> payloads = new ArrayList<>();
+        List<Integer> attempts = new ArrayList<>();
+        synchronized (this) {
+            open();
+            for (Record record : outstanding.values()) {
+                if (record.stream.equals(stream) && !record.resubmitted && record.pending == 0) {
+                    records.add(record);
+                    payloads.add(readPayload(record));
+                    attempts.add(Byte.toUnsignedInt(buffer.get(record.offset + ATTEMPTS_OFFSET)));
+                }
+            }
+        }
+        if (!records.isEmpty()) {
+            LOG.info("Replaying " + records.size() + " unacknowledged " + stream
+                    + " message(s) from journal: " + journalPath);
+        }
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            if (attempts.get(i) >= maxReplayAttempts) {
+                LOG.error("Journaled " + stream + " message was not handled after " + attempts.get(i)
+                        + " attempts, dead-lettering it");
+                messagePublisher.deadLetter(stream, payloads.get(i), attempts.get(i),
+                        "handling failed on every replay from journal", () -> {
+                            synchronized (this) {
+                                acknowledge(record);
+                            }
+                        });
+                continue;
+            }
+            synchronized (this) {
+                buffer.put(record.offset + ATTEMPTS_OFFSET, (byte) Math.min(attempts.get(i) + 1, 255));
+            }
+            replaying.set(record);
+            try {
+                handler.replay(payloads.get(i));
+            } catch (Exception e) {
+                LOG.error("Error replaying journaled " + stream + " message, keeping it for the next startup",
+                        e);
+            } finally {
+                replaying.remove();
+            }
+            synchronized (this) {
+                if (!record.resubmitted) {
+                    acknowledge(record);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws Exception {
+        if (buffer == null) {
+            return;
+        }
+        checkpoint();
+        buffer.force();
+        channel.close();
+        LOG.info("Message journal closed with " + outstanding.size() + " unacknowledged record(s)");
+    }
+
+    private void open() throws IOException {
+        if (buffer != null) {
+            return;
+        }
+        if (journalSizeMb <= 0 || journalSizeMb > OffHeapRingBuffer.MAX_CAPACITY_MB) {
+            throw new IllegalArgumentException("journal.size_mb must be between 1 and "
+                    + OffHeapRingBuffer.MAX_CAPACITY_MB + " MB, got: " + journalSizeMb);
+        }
+        Path path = Paths.get(journalPath);
+        // left behind if the process died while compacting, the journal itself is intact
+        Files.deleteIfExists(getCompactPath());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long size = Math.max(channel.size(), (long) journalSizeMb * 1024 * 1024);
+        if (size > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IllegalStateException("Message journal " + path.toAbsolutePath() + " is larger than "
+                    + OffHeapRingBuffer.MAX_CAPACITY_MB + " MB");
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        int magic = buffer.getInt(0);
+        if (magic == 0) {
+            buffer.putInt(0, MAGIC);
+            buffer.putLong(CHECKPOINT_OFFSET, 0L);
+            buffer.putInt(HEADER_SIZE, 0);
+        } else if (magic != MAGIC) {
+            throw new IllegalStateException("File is not a message journal, or was written by an older "
+                    + "version: " + path.toAbsolutePath());
+        }
+        long checkpoint = buffer.getLong(CHECKPOINT_OFFSET);
+        nextSeq = checkpoint;
+        writePosition = HEADER_SIZE;
+        while (writePosition + RECORD_OVERHEAD <= buffer.capacity()) {
+            int length = buffer.getInt(writePosition);
+            if (length <= 0 || writePosition + Integer.BYTES + length > buffer.capacity()) {
+                break;
+            }
+            long seq = buffer.getLong(writePosition + Integer.BYTES);
+            if (seq >= checkpoint && buffer.get(writePosition + ACKED_OFFSET) == 0) {
+                // replayed records have no enqueued messages until they are re-submitted
+                outstanding.put(seq, new Record(seq, readStream(writePosition), writePosition, 0));
+            }
+            nextSeq = Math.max(nextSeq, seq + 1);
+            writePosition += Integer.BYTES + length;
+        }
+        LOG.info("Opened message journal: " + path.toAbsolutePath() + " (" + size / (1024 * 1024)
+                + "MB) with " + outstanding.size() + " unacknowledged record(s)");
+    }
+
+    /**
+     * Copies the outstanding records, in sequence order, to a new file and moves it over
+     * the journal, dropping every acknowledged record. The journal is only replaced once
+     * the new file has been written out, so a crash while compacting leaves it as it was.
+     */
+    private void compact() throws IOException {
+        Path compactPath = getCompactPath();
+        FileChannel compactChannel = FileChannel.open(compactPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer compacted;
+        int[] offsets = new int[outstanding.size()];
+        int position = HEADER_SIZE;
+        try {
+            compacted = compactChannel.map(FileChannel.MapMode.READ_WRITE, 0, buffer.capacity());
+            int index = 0;
+            for (Record record : outstanding.values()) {
+                int length = Integer.BYTES + buffer.getInt(record.offset);
+                byte[] bytes = new byte[length];
+                buffer.get(record.offset, bytes);
+                compacted.put(position, bytes);
+                offsets[index++] = position;
+                position += length;
+            }
+            compacted.putInt(position, 0);
+            compacted.putLong(CHECKPOINT_OFFSET, buffer.getLong(CHECKPOINT_OFFSET));
+            compacted.putInt(0, MAGIC);
+            compacted.force();
+            Files.move(compactPath, Paths.get(journalPath), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            compactChannel.close();
+            Files.deleteIfExists(compactPath);
+            throw e;
+        }
+        int index = 0;
+        for (Record record : outstanding.values()) {
+            record.offset = offsets[index++];
+        }
+        channel.close();
+        channel = compactChannel;
+        buffer = compacted;
+        LOG.debug("Compacted message journal, reclaimed " + (writePosition - position) + " bytes");
+        writePosition = position;
+    }
+
+    private Path getCompactPath() {
+        return Paths.get(journalPath + ".compact");
+    }
+
+    private void track(Record record, Object[] messages) {
+        record.pending += messages.length;
+        for (Object message : messages) {
+            recordsByMessage.put(message, record);
+        }
+    }
+
+    private void acknowledge(Record record) {
+        record.pending = 0;
+        buffer.put(record.offset + ACKED_OFFSET, (byte) 1);
+        outstanding.remove(record.seq);
+        checkpoint();
+    }
+
+    private void checkpoint() {
+        long lowWaterMark = outstanding.isEmpty() ? nextSeq : outstanding.firstKey();
+        buffer.putLong(CHECKPOINT_OFFSET, lowWaterMark);
+    }
+
+    private String readStream(int offset) {
+        int streamLength = buffer.getShort(offset + STREAM_LENGTH_OFFSET);
+        byte[] streamBytes = new byte[streamLength];
+        buffer.get(offset + RECORD_OVERHEAD, streamBytes);
+        return new String(streamBytes, StandardCharsets.UTF_8);
+    }
+
+    private String readPayload(Record record) {
+        int length = buffer.getInt(record.offset);
+        int streamLength = buffer.getShort(record.offset + STREAM_LENGTH_OFFSET);
+        int payloadOffset = record.offset + RECORD_OVERHEAD + streamLength;
+        byte[] payloadBytes = new byte[record.offset + Integer.BYTES + length - payloadOffset];
+        buffer.get(payloadOffset, payloadBytes);
+        return new String(payloadBytes, StandardCharsets.UTF_8);
+    }
+}
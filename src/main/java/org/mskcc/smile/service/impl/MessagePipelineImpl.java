@@ -0,0 +1,480 @@
+package org.mskcc.smile.service.impl;
+
+import io.nats.client.Message;
+import io.nats.client.impl.NatsMessage;
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.cmo.messaging.Gateway;
+import org.mskcc.cmo.messaging.MessageConsumer;
+import org.mskcc.smile.service.ConcurrencyController;
+import org.mskcc.smile.service.HandlerConcurrencyGate;
+import org.mskcc.smile.service.MessageJournal;
+import org.mskcc.smile.service.MessagePipeline;
+import org.mskcc.smile.service.util.FlowQueue;
+import org.mskcc.smile.service.util.HandlerGroup;
+import org.mskcc.smile.service.util.InFlightRequests;
+import org.mskcc.smile.service.util.InstanceProperties;
+import org.mskcc.smile.service.util.MessageFlow;
+import org.mskcc.smile.service.util.MessageSource;
+import org.mskcc.smile.service.util.NatsMsgUtil;
+import org.mskcc.smile.service.util.OffHeapRingBuffer;
+import org.mskcc.smile.service.util.PendingAck;
+import org.mskcc.smile.service.util.QueuedMessage;
+import org.mskcc.smile.service.util.RequestHeader;
+import org.mskcc.smile.service.util.RequestPartition;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs the message flows defined by the handling services: each flow subscribes to
+ * its source topic, decodes what it receives, drops messages owned by another instance,
+ * journals and queues the rest, and a group of handlers validates, routes and publishes
+ * the queued messages. See MessageFlow.
+ *
+ * <p>Every handler group runs on one shared executor. Shared groups are also each
+ * other's peers, so when pipeline.work_sharing_enabled is set an idle handler takes
+ * backlog from another shared group. Shared groups are registered with the concurrency
+ * controller. Groups that are not shared, like the bulk request handlers, keep a fixed
+ * size and their messages are never picked up by other groups. With the concurrency gate
+ * enabled, flows register their queues with the gate instead of starting handler groups of
+ * their own, and only the bulk handler groups are started.
+ *
+ * <p>The handlers are long-running poll loops that block, which is why a cached thread
+ * pool is used rather than a fork-join pool. Work moves between groups through the peer
+ * stealing instead.
+ *
+ * <p>Messages received on subscribed topics can be captured to an NDJSON file
+ * (pipeline.capture_file), one {"topic", "timestamp", "data"} line per message with
+ * the raw message payload as data, for replay through the same receivers later on.
+ * Captured lines are buffered and flushed every pipeline.capture_flush_millis rather
+ * than per message, so a crash can lose the last moments of a capture.
+ */
+@Component
+public class MessagePipelineImpl implements MessagePipeline {
+    private static final Log LOG = LogFactory.getLog(MessagePipelineImpl.class);
+
+    private final ConcurrencyController concurrencyController;
+    private final HandlerConcurrencyGate concurrencyGate;
+    private final MessageJournal messageJournal;
+    private final Environment environment;
+    private final Boolean workSharingEnabled;
+    private final String captureFile;
+    private final long captureFlushMillis;
+    private final ExecutorService exec = Executors.newCachedThreadPool();
+    private final List<HandlerGroup<?>> sharedGroups = new CopyOnWriteArrayList<>();
+    private final List<HandlerGroup<?>> handlerGroups = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean firstMessageReceived = new AtomicBoolean();
+    private final Map<String, List<MessageReceiver>> receiversByTopic = new ConcurrentHashMap<>();
+    private OutputStream captureStream;
+    private ScheduledExecutorService captureFlushExec;
+
+    /**
+     * MessagePipelineImpl constructor.
+     * @param concurrencyController
+     * @param concurrencyGate
+     * @param messageJournal
+     * @param environment
+     * @param workSharingEnabled
+     * @param captureFile blank disables the capture
+     * @param captureFlushMillis
+     */
+    @Autowired
+    public MessagePipelineImpl(ConcurrencyController concurrencyController,
+            HandlerConcurrencyGate concurrencyGate, MessageJournal messageJournal, Environment environment,
+            @Value("${pipeline.work_sharing_enabled:false}") Boolean workSharingEnabled,
+            @Value("${pipeline.capture_file:}") String captureFile,
+            @Value("${pipeline.capture_flush_millis:1000}") long captureFlushMillis) {
+        this.concurrencyController = concurrencyController;
+        this.concurrencyGate = concurrencyGate;
+        this.messageJournal = messageJournal;
+        this.environment = environment;
+        this.workSharingEnabled = workSharingEnabled;
+        this.captureFile = captureFile;
+        this.captureFlushMillis = captureFlushMillis;
+    }
+
+    @Override
+    public InstanceProperties getInstanceProperties(String instanceName) {
+        return new InstanceProperties(environment, instanceName);
+    }
+
+    /**
+     * Starts the flow's handlers, replays its journaled messages and subscribes it to
+     * its topic.
+     * @param <T>
+     * @param gateway
+     * @param flow
+     * @return RunningFlow
+     * @throws Exception
+     */
+    @Override
+    public <T> RunningFlow<T> run(Gateway gateway, MessageFlow<T> flow) throws Exception {
+        FlowRunner<T> runner = new FlowRunner<>(flow);
+        runner.start(gateway);
+        return runner;
+    }
+
+    @Override
+    public void subscribe(Gateway gateway, String topic, MessageReceiver receiver) throws Exception {
+        receiversByTopic.computeIfAbsent(topic, t -> new CopyOnWriteArrayList<>()).add(receiver);
+        gateway.subscribe(topic, Object.class, new MessageConsumer() {
+            public void onMessage(Message msg, Object message) {
+                LOG.info("Received message on topic: " + topic);
+                if (firstMessageReceived.compareAndSet(false, true)) {
+                    LOG.info("First message received " + ManagementFactory.getRuntimeMXBean().getUptime()
+                            + " ms after JVM start");
+                }
+                capture(topic, msg.getData());
+                receive(topic, receiver, msg);
+            }
+        });
+    }
+
+    /**
+     * Hands a message to the receivers subscribed to the topic as though it had been
+     * received from the gateway.
+     * @param topic
+     * @param data raw message payload
+     * @return false if nothing is subscribed to the topic
+     */
+    @Override
+    public boolean deliver(String topic, byte[] data) {
+        List<MessageReceiver> receivers = receiversByTopic.get(topic);
+        if (receivers == null) {
+            return false;
+        }
+        Message msg = NatsMessage.builder().subject(topic).data(data).build();
+        for (MessageReceiver receiver : receivers) {
+            receive(topic, receiver, msg);
+        }
+        return true;
+    }
+
+    private void receive(String topic, MessageReceiver receiver, Message msg) {
+        try {
+            receiver.receive(msg);
+        } catch (Exception e) {
+            LOG.error("Exception during processing of message on topic: " + topic, e);
+        }
+    }
+
+    private synchronized void capture(String topic, byte[] data) {
+        if (captureFile.isBlank()) {
+            return;
+        }
+        try {
+            if (captureStream == null) {
+                captureStream = new BufferedOutputStream(Files.newOutputStream(Paths.get(captureFile),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+                LOG.info("Capturing received messages to: " + captureFile);
+                captureFlushExec = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "capture-flush");
+                    t.setDaemon(true);
+                    return t;
+                });
+                captureFlushExec.scheduleWithFixedDelay(this::flushCapture, captureFlushMillis,
+                        captureFlushMillis, TimeUnit.MILLISECONDS);
+            }
+            // the payload is already json (a json encoded string) so it's written as is
+            String header = "{\"topic\":\"" + topic + "\",\"timestamp\":" + System.currentTimeMillis()
+                    + ",\"data\":";
+            captureStream.write(header.getBytes(StandardCharsets.UTF_8));
+            captureStream.write(data);
+            captureStream.write('}');
+            captureStream.write('\n');
+        } catch (Exception e) {
+            LOG.error("Failed to capture message received on topic: " + topic, e);
+        }
+    }
+
+    private synchronized void flushCapture() {
+        try {
+            captureStream.flush();
+        } catch (Exception e) {
+            LOG.error("Failed to flush message capture: " + captureFile, e);
+        }
+    }
+
+    private <T> HandlerGroup<T> startHandlers(String name, MessageSource<T> source,
+            HandlerGroup.MessageHandler<T> handler, int size, boolean shared, String errorMessage) {
+        HandlerGroup<T> handlerGroup = new HandlerGroup<>(name, exec, source, handler, errorMessage);
+        if (shared && workSharingEnabled) {
+            sharedGroups.add(handlerGroup);
+            handlerGroup.setPeers(sharedGroups);
+        }
+        handlerGroups.add(handlerGroup);
+        handlerGroup.start(size);
+        if (shared) {
+            concurrencyController.register(handlerGroup);
+        }
+        return handlerGroup;
+    }
+
+    /**
+     * Stops every handler group once its source has been drained and waits
+     * for the handlers to exit.
+     * @throws Exception
+     */
+    @Override
+    public void shutdown() throws Exception {
+        for (HandlerGroup<?> handlerGroup : handlerGroups) {
+            handlerGroup.stop();
+        }
+        for (HandlerGroup<?> handlerGroup : handlerGroups) {
+            handlerGroup.awaitTermination();
+        }
+        exec.shutdown();
+        synchronized (this) {
+            if (captureStream != null) {
+                captureFlushExec.shutdown();
+                captureStream.close();
+            }
+        }
+    }
+
+    /**
+     * Runs one message flow. Messages are decoded and probed for their routing fields once,
+     * when they are received, and queued along with the results. Large requests are routed
+     * to bulk handlers of their own when request.bulk_size_threshold is set and the flow has
+     * bulk handlers. Requests are classified by the size in bytes of their NATS payload, a
+     * cheap stand-in for their sample count that doesn't need them parsed.
+     */
+    private class FlowRunner<T> implements RunningFlow<T> {
+        final MessageFlow<T> flow;
+        final InstanceProperties properties;
+        final RequestPartition requestPartition;
+        final String stream;
+        final int bulkSizeThreshold;
+        final int offHeapBufferMb;
+        final FlowQueue<T> queue;
+        // large requests are handled by a separate set of workers so that they
+        // do not hold up the smaller requests queued behind them
+        final FlowQueue<T> bulkQueue = FlowQueue.of(new LinkedBlockingQueue<>());
+        // the queue each request still in flight was routed to, newer versions follow it
+        final InFlightRequests<FlowQueue<T>> inFlightRequests = new InFlightRequests<>();
+        // only used when off-heap ingest is enabled, in place of the queue above
+        OffHeapRingBuffer buffer;
+        // handlers of the flow's own, unless its queue is registered with the concurrency gate
+        HandlerGroup<QueuedMessage<T>> handlers;
+        HandlerConcurrencyGate.Registration gateRegistration;
+        HandlerGroup<QueuedMessage<T>> bulkHandlers;
+        volatile boolean shutdownInitiated;
+
+        FlowRunner(MessageFlow<T> flow) {
+            this.flow = flow;
+            this.properties = flow.getProperties();
+            this.requestPartition = properties.getRequestPartition();
+            this.stream = properties.qualify(flow.getName());
+            this.bulkSizeThreshold = properties.getInt("request.bulk_size_threshold", 0);
+            this.offHeapBufferMb = properties.getInt("ingest.off_heap_buffer_mb", 0);
+            this.queue = (flow.getQueue() == null)
+                    ? FlowQueue.of(new LinkedBlockingQueue<>()) : flow.getQueue();
+        }
+
+        void start(Gateway gateway) throws Exception {
+            if (requestPartition.isPartitioned()) {
+                LOG.info("Handling only the " + flow.getName() + " messages in " + requestPartition);
+            }
+            // off-heap payloads aren't probed for their request id until a handler takes them,
+            // so versions of a request couldn't be kept in order between the two sets of handlers
+            if (isOffHeapIngestEnabled() && isBulkRoutingEnabled()) {
+                throw new IllegalStateException("ingest.off_heap_buffer_mb and request.bulk_size_threshold"
+                        + " can't both be set for " + flow.getName() + " messages");
+            }
+            MessageSource<QueuedMessage<T>> source = queue;
+            if (isOffHeapIngestEnabled()) {
+                LOG.info("Buffering incoming " + flow.getName() + " messages off-heap, buffer size (MB): "
+                        + offHeapBufferMb);
+                buffer = OffHeapRingBuffer.ofMegabytes(properties.qualify(flow.getGroupName()),
+                        offHeapBufferMb);
+                source = buffer.decoded(this::decodeOwnedPayload);
+            }
+            if (concurrencyGate.isEnabled()) {
+                gateRegistration = concurrencyGate.register(flow.getName(), source, this::handle,
+                        flow.getErrorMessage());
+            } else {
+                handlers = startHandlers(properties.qualify(flow.getGroupName()), source, this::handle,
+                        flow.getHandlerThreads(), true, flow.getErrorMessage());
+            }
+            // bulk handler concurrency is deliberately fixed so that large requests
+            // can't take over the cpu from the regular handlers
+            if (isBulkRoutingEnabled()) {
+                bulkHandlers = startHandlers(properties.qualify("bulk-" + flow.getGroupName()), bulkQueue,
+                        this::handle, flow.getBulkHandlerThreads(), false, flow.getErrorMessage());
+            }
+            // messages accepted before the last shutdown are handled before any new ones
+            messageJournal.replay(stream, payload -> submit(flow.getDecoder().decode(payload)));
+            subscribe(gateway, flow.getTopic(), this::receive);
+            LOG.info("Handling " + flow.getName() + " messages from: " + flow.getTopic()
+                    + ", publishing to: " + flow.getOutputTopics());
+        }
+
+        @Override
+        public void submit(T message) throws Exception {
+            String text = flow.getEncoder().encode(message);
+            enqueue(new QueuedMessage<>(message, probe(message), NatsMsgUtil.getPayloadSize(text),
+                    System.nanoTime()), text);
+        }
+
+        @Override
+        public void shutdown() throws Exception {
+            if (handlers != null) {
+                handlers.stop();
+            }
+            if (bulkHandlers != null) {
+                bulkHandlers.stop();
+            }
+            if (handlers != null) {
+                handlers.awaitTermination();
+            } else {
+                gateRegistration.drainAndRemove();
+            }
+            if (bulkHandlers != null) {
+                bulkHandlers.awaitTermination();
+            }
+            shutdownInitiated = true;
+        }
+
+        private void receive(Message msg) throws Exception {
+            if (isOffHeapIngestEnabled()) {
+                bufferMessage(msg.getData());
+                return;
+            }
+            String text = NatsMsgUtil.extractNatsJsonString(msg);
+            QueuedMessage<T> message = decodeOwned(text, msg.getData().length, System.nanoTime());
+            if (message != null) {
+                enqueue(message, text);
+            }
+        }
+
+        /**
+         * Returns the decoded message, or null if it is owned by another instance or
+         * can't be decoded. Messages that can't be probed for a request id belong to the
+         * first instance, which reports them.
+         */
+        private QueuedMessage<T> decodeOwned(String text, int payloadSize, long enqueuedNanos)
+                throws Exception {
+            if (text == null) {
+                LOG.error("Could not decode " + flow.getName() + " message, dropping it");
+                return null;
+            }
+            T message = flow.getDecoder().decode(text);
+            RequestHeader header = probe(message);
+            if (!requestPartition.owns((header == null) ? null : header.getRequestId())) {
+                return null;
+            }
+            return new QueuedMessage<>(message, header, payloadSize, enqueuedNanos);
+        }
+
+        private QueuedMessage<T> decodeOwnedPayload(byte[] msgData, long enqueuedNanos) throws Exception {
+            return decodeOwned(NatsMsgUtil.extractNatsJsonString(msgData), msgData.length, enqueuedNanos);
+        }
+
+        private RequestHeader probe(T message) {
+            try {
+                return flow.getHeaderProbe().probe(message);
+            } catch (Exception e) {
+                LOG.debug("Could not probe " + flow.getName() + " message for its routing fields", e);
+                return null;
+            }
+        }
+
+        private void enqueue(QueuedMessage<T> message, String text) throws Exception {
+            checkAccepting(message.getSize());
+            FlowQueue<T> target = queue;
+            if (isBulkRoutingEnabled()) {
+                target = (message.getSize() >= bulkSizeThreshold) ? bulkQueue : queue;
+                // a newer version of a request still in flight follows it into the same queue
+                target = inFlightRequests.route(message.getRequestId(), target);
+                if (target == bulkQueue) {
+                    LOG.info("Routing " + flow.getName() + " message (" + message.getSize()
+                            + " bytes) to bulk handlers");
+                }
+            }
+            if (messageJournal.isEnabled()) {
+                messageJournal.append(stream, text, target.getJournalKeys(message));
+            }
+            for (Object superseded : target.put(message)) {
+                messageJournal.ack(superseded);
+            }
+            concurrencyGate.messageQueued();
+        }
+
+        /**
+         * Raw message bytes are buffered off-heap and only decoded by the handler that
+         * takes them.
+         */
+        private void bufferMessage(byte[] msgData) {
+            checkAccepting(msgData.length);
+            buffer.put(msgData);
+            concurrencyGate.messageQueued();
+        }
+
+        private void checkAccepting(int size) {
+            if (shutdownInitiated) {
+                LOG.error("Shutdown initiated, not accepting " + flow.getName()
+                        + " message of size: " + size);
+                throw new IllegalStateException("Shutdown initiated, not handling any more messages");
+            }
+        }
+
+        /**
+         * The journaled message is acknowledged once everything published for it has been
+         * sent or dead-lettered. A message whose handler fails stays in the journal and is
+         * replayed on startup.
+         */
+        private void handle(QueuedMessage<T> message) throws Exception {
+            Object[] journalKeys = queue.getJournalKeys(message);
+            PendingAck pendingAck = new PendingAck(() -> {
+                for (Object key : journalKeys) {
+                    messageJournal.ack(key);
+                }
+            });
+            try {
+                flow.getHandler().handle(message.getMessage(), message.getHeader(), pendingAck);
+                pendingAck.complete();
+            } catch (Exception e) {
+                for (Object key : journalKeys) {
+                    messageJournal.release(key);
+                }
+                throw e;
+            } finally {
+                if (isBulkRoutingEnabled()) {
+                    inFlightRequests.release(message.getRequestId());
+                }
+            }
+        }
+
+        /**
+         * Not used with the journal since journaled messages are tracked by the message
+         * instance that was queued, nor with a queue of the flow's own since it needs the
+         * decoded message when it is queued.
+         */
+        private boolean isOffHeapIngestEnabled() {
+            return offHeapBufferMb > 0 && !messageJournal.isEnabled() && flow.getQueue() == null;
+        }
+
+        private boolean isBulkRoutingEnabled() {
+            return bulkSizeThreshold > 0 && flow.getBulkHandlerThreads() > 0 && flow.getQueue() == null;
+        }
+    }
+}
@@ -1,25 +1,23 @@
 package org.mskcc.smile.service.impl;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import io.nats.client.Message;
-import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Phaser;
-import java.util.concurrent.TimeUnit;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mskcc.cmo.messaging.Gateway;
-import org.mskcc.cmo.messaging.MessageConsumer;
+import org.mskcc.smile.service.HandlerConcurrencyGate;
+import org.mskcc.smile.service.MessagePipeline;
+import org.mskcc.smile.service.MessagePublisher;
 import org.mskcc.smile.service.PromotedRequestMsgHandlingService;
 import org.mskcc.smile.service.ValidRequestChecker;
+import org.mskcc.smile.service.util.InstanceProperties;
+import org.mskcc.smile.service.util.MessageFlow;
+import org.mskcc.smile.service.util.PendingAck;
+import org.mskcc.smile.service.util.RequestHeader;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Service;
 
 /**
@@ -27,156 +25,97 @@ import org.springframework.stereotype.Service;
  * @author ochoaa
  */
 @Service
+@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
 public class PromotedRequestMsgHandlingServiceImpl implements PromotedRequestMsgHandlingService {
 
-    @Value("${igo.validate_promoted_request_topic:}")
-    private String VALIDATE_PROMOTED_REQUEST_TOPIC;
+    private final ValidRequestChecker validRequestChecker;
+    private final MessagePublisher messagePublisher;
+    private final MessagePipeline messagePipeline;
 
-    @Value("${igo.cmo_promoted_label_topic:}")
+    private final ObjectMapper mapper = new ObjectMapper();
     private String CMO_PROMOTED_LABEL_TOPIC;
-
-    @Value("${igo.promoted_request_topic:}")
     private String IGO_PROMOTED_REQUEST_TOPIC;
-
-    @Value("${num.promoted_request_handler_threads:1}")
-    private int NUM_PROMOTED_REQUEST_HANDLERS;
-
-    @Autowired
-    private ValidRequestChecker validRequestChecker;
-
-    private final ObjectMapper mapper = new ObjectMapper();
-    private static boolean initialized = false;
-    private static volatile boolean shutdownInitiated;
-    private static final ExecutorService exec = Executors.newCachedThreadPool();
-
-    private static final BlockingQueue<String> promotedRequestQueue =
-        new LinkedBlockingQueue<String>();
-    private static CountDownLatch promotedRequestHandlerShutdownLatch;
-    private static Gateway messagingGateway;
+    private MessagePipeline.RunningFlow<String> promotedRequestFlow;
 
     private static final Log LOG = LogFactory.getLog(PromotedRequestMsgHandlingServiceImpl.class);
 
-    private class PromotedRequestHandler implements Runnable {
-        final Phaser phaser;
-        boolean interrupted = false;
-
-        PromotedRequestHandler(Phaser phaser) {
-            this.phaser = phaser;
-        }
-
-        @Override
-        public void run() {
-            phaser.arrive();
-            while (true) {
-                try {
-                    String requestJson = promotedRequestQueue.poll(100, TimeUnit.MILLISECONDS);
-                    if (requestJson != null) {
-                        Map<String, Object> promotedRequestJsonMap =
-                                validRequestChecker.generatePromotedRequestValidationMap(requestJson);
-                        Map<String, Object> requestStatus =
-                                mapper.convertValue(promotedRequestJsonMap.get("status"), Map.class);
-                        String requestWithStatus = updateJsonWithValidationMap(requestJson, requestStatus);
+    /**
+     * PromotedRequestMsgHandlingServiceImpl constructor.
+     * @param validRequestChecker
+     * @param messagePublisher
+     * @param messagePipeline
+     */
+    @Autowired
+    public PromotedRequestMsgHandlingServiceImpl(ValidRequestChecker validRequestChecker,
+            MessagePublisher messagePublisher, MessagePipeline messagePipeline) {
+        this.validRequestChecker = validRequestChecker;
+        this.messagePublisher = messagePublisher;
+        this.messagePipeline = messagePipeline;
+    }
 
-                        if ((Boolean) requestStatus.get("validationStatus")) {
-                            // if request is cmo then publish to CMO_PROMOTED_LABEL_TOPIC
-                            // otherwise publish to IGO_PROMOTED_REQUEST_TOPIC
-                            String topic = validRequestChecker.isCmo(requestJson)
-                                    ? CMO_PROMOTED_LABEL_TOPIC : IGO_PROMOTED_REQUEST_TOPIC;
-                            String requestId = validRequestChecker.getRequestId(requestJson);
-                            LOG.info("Promoted request passed sanity checks - publishing to: " + topic);
-                            messagingGateway.publish(requestId, topic, requestWithStatus);
-                        }
-                    }
-                    if (interrupted && promotedRequestQueue.isEmpty()) {
-                        break;
-                    }
-                } catch (InterruptedException e) {
-                    interrupted = true;
-                } catch (Exception e) {
-                    LOG.error("Error during request handling", e);
-                }
-            }
-            promotedRequestHandlerShutdownLatch.countDown();
+    private void handlePromotedRequestMessage(String requestJson, RequestHeader header,
+            PendingAck pendingAck) throws Exception {
+        // invalid promoted requests are dropped, so a pass/fail answer is all that's needed
+        if (!validRequestChecker.isValidPromotedRequest(requestJson, header)) {
+            LOG.warn("Promoted request failed sanity checks, not publishing: "
+                    + ((header == null) ? null : header.getRequestId()));
+            return;
         }
+        // a request that passes has an empty request-level report
+        Map<String, Object> requestStatus = new HashMap<>();
+        requestStatus.put("validationStatus", Boolean.TRUE);
+        requestStatus.put("validationReport", mapper.writeValueAsString(new HashMap<>()));
+        String requestWithStatus =
+                validRequestChecker.updateJsonWithValidationMap(requestJson, requestStatus);
+
+        // if request is cmo then publish to CMO_PROMOTED_LABEL_TOPIC
+        // otherwise publish to IGO_PROMOTED_REQUEST_TOPIC
+        String topic = header.isCmo() ? CMO_PROMOTED_LABEL_TOPIC : IGO_PROMOTED_REQUEST_TOPIC;
+        String requestId = header.getRequestId();
+        LOG.info("Promoted request passed sanity checks - publishing to: " + topic);
+        messagePublisher.publish(requestId, topic, requestWithStatus, pendingAck.track());
     }
 
     @Override
     public void initialize(Gateway gateway) throws Exception {
-        if (!initialized) {
-            messagingGateway = gateway;
-            setupPromotedRequestHandler(messagingGateway, this);
-            initializePromotedRequestHandlers();
-            initialized = true;
-        } else {
+        initialize(gateway, null);
+    }
+
+    @Override
+    public void initialize(Gateway gateway, String instanceName) throws Exception {
+        if (promotedRequestFlow != null) {
             LOG.error("Messaging Handler Service has already been initialized, ignoring request.\n");
+            return;
         }
+        InstanceProperties properties = messagePipeline.getInstanceProperties(instanceName);
+        CMO_PROMOTED_LABEL_TOPIC = properties.get("igo.cmo_promoted_label_topic");
+        IGO_PROMOTED_REQUEST_TOPIC = properties.get("igo.promoted_request_topic");
+        promotedRequestFlow = messagePipeline.run(gateway, MessageFlow.<String>builder(
+                HandlerConcurrencyGate.PROMOTED_REQUEST, "promoted-request", properties)
+                .topic(properties.get("igo.validate_promoted_request_topic"))
+                .codec(requestJson -> requestJson, requestJson -> requestJson)
+                .header(validRequestChecker::probeRequestHeader)
+                .handler(this::handlePromotedRequestMessage)
+                .outputTopics(CMO_PROMOTED_LABEL_TOPIC, IGO_PROMOTED_REQUEST_TOPIC)
+                .handlerThreads(properties.getInt("num.promoted_request_handler_threads", 1))
+                .bulkHandlerThreads(properties.getInt("num.bulk_promoted_request_handler_threads", 1))
+                .errorMessage("Error during request handling")
+                .build());
     }
 
     @Override
     public void promotedRequestHandler(String requestJson) throws Exception {
-        if (!initialized) {
+        if (promotedRequestFlow == null) {
             throw new IllegalStateException("Message Handling Service has not been initialized");
         }
-        if (!shutdownInitiated) {
-            promotedRequestQueue.put(requestJson);
-        } else {
-            LOG.error("Shutdown initiated, not accepting request: " + requestJson);
-            throw new IllegalStateException("Shutdown initiated, not handling any more requests");
-        }
+        promotedRequestFlow.submit(requestJson);
     }
 
     @Override
     public void shutdown() throws Exception {
-        if (!initialized) {
+        if (promotedRequestFlow == null) {
             throw new IllegalStateException("Message Handling Service has not been initialized");
         }
-        exec.shutdownNow();
-        promotedRequestHandlerShutdownLatch.await();
-        shutdownInitiated = true;
-    }
-
-    private void initializePromotedRequestHandlers() throws Exception {
-        promotedRequestHandlerShutdownLatch = new CountDownLatch(NUM_PROMOTED_REQUEST_HANDLERS);
-        final Phaser promotedRequestPhaser = new Phaser();
-        promotedRequestPhaser.register();
-        for (int lc = 0; lc < NUM_PROMOTED_REQUEST_HANDLERS; lc++) {
-            promotedRequestPhaser.register();
-            exec.execute(new PromotedRequestHandler(promotedRequestPhaser));
-        }
-        promotedRequestPhaser.arriveAndAwaitAdvance();
-    }
-
-    private void setupPromotedRequestHandler(Gateway gateway,
-            PromotedRequestMsgHandlingServiceImpl messageHandlingService)
-            throws Exception {
-        gateway.subscribe(VALIDATE_PROMOTED_REQUEST_TOPIC, Object.class, new MessageConsumer() {
-            public void onMessage(Message msg, Object message) {
-                LOG.info("Received message on topic: " + VALIDATE_PROMOTED_REQUEST_TOPIC);
-                try {
-                    String requestJson = mapper.readValue(
-                            new String(msg.getData(), StandardCharsets.UTF_8),
-                            String.class);
-                    messageHandlingService.promotedRequestHandler(requestJson);
-                } catch (Exception e) {
-                    LOG.error("Exception during processing of request on topic: "
-                            + VALIDATE_PROMOTED_REQUEST_TOPIC, e);
-                }
-            }
-        });
-    }
-
-    /**
-     * Updates the input json with the validation map provided.
-     * The validation map contains the validation report and validation status.
-     * @param inputJson
-     * @param validationMap
-     * @return String
-     * @throws JsonProcessingException
-     */
-    private String updateJsonWithValidationMap(String inputJson, Map<String, Object> validationMap)
-            throws JsonProcessingException {
-        Map<String, Object> inputJsonMap = mapper.readValue(inputJson, Map.class);
-        inputJsonMap.put("status", validationMap);
-        return mapper.writeValueAsString(inputJsonMap);
+        promotedRequestFlow.shutdown();
     }
 }
@@ -1,14 +1,32 @@
 package org.mskcc.smile.service.impl;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
@@ -18,17 +36,158 @@ import org.mskcc.smile.commons.enums.SampleOrigin;
 import org.mskcc.smile.commons.enums.SampleType;
 import org.mskcc.smile.commons.enums.SpecimenType;
 import org.mskcc.smile.service.ValidRequestChecker;
+import org.mskcc.smile.service.util.RequestHeader;
+import org.mskcc.smile.service.util.RuleProfiler;
+import org.mskcc.smile.service.util.SampleColumns;
+import org.mskcc.smile.service.util.SampleSchema;
+import org.mskcc.smile.service.util.SampleUpdateBatch;
+import org.mskcc.smile.service.util.ValidationRuleSet;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 @Component
 public class ValidRequestCheckerImpl implements ValidRequestChecker {
-
-    @Value("${igo.cmo_request_filter:false}")
-    private Boolean igoCmoRequestFilter;
-
+    private final Boolean igoCmoRequestFilter;
+    private final int batchParallelThreshold;
+    private final int columnarMinSamples;
     private final ObjectMapper mapper = new ObjectMapper();
+    private final RuleProfiler ruleProfiler = new RuleProfiler();
+    private final AtomicReference<ValidationRuleSet> ruleSet = new AtomicReference<>(loadDefaultRules());
+    private volatile long rulesLastModified;
     private static final Log LOG = LogFactory.getLog(ValidRequestCheckerImpl.class);
+    private static final String DEFAULT_RULES = "rules/validation_rules.properties";
+    // sample fields read by the column forms of the built-in checks
+    private static final String SAMPLE_ORIGIN = "sampleOrigin";
+    private static final String SAMPLE_TYPE_DETAILED = "cmoSampleIdFields.sampleType";
+    private static final String NA_TO_EXTRACT = "cmoSampleIdFields.naToExtract";
+    private static final String BAIT_SET = "baitSet";
+
+    /**
+     * ValidRequestCheckerImpl constructor.
+     * @param igoCmoRequestFilter
+     * @param batchParallelThreshold
+     * @param columnarMinSamples
+     */
+    @Autowired
+    public ValidRequestCheckerImpl(@Value("${igo.cmo_request_filter:false}") Boolean igoCmoRequestFilter,
+            @Value("${validation.batch.parallel_threshold:0}") int batchParallelThreshold,
+            @Value("${validation.columnar.min_samples:0}") int columnarMinSamples) {
+        this.igoCmoRequestFilter = igoCmoRequestFilter;
+        this.batchParallelThreshold = batchParallelThreshold;
+        this.columnarMinSamples = columnarMinSamples;
+    }
+
+    /**
+     * Turns on per-rule profiling and, if an interval is set, logs the profile
+     * periodically from a daemon thread.
+     * @param profilingEnabled
+     * @param logIntervalSeconds
+     */
+    @Autowired
+    public void configureProfiling(
+            @Value("${validation.profiling.enabled:false}") Boolean profilingEnabled,
+            @Value("${validation.profiling.log_interval_seconds:60}") int logIntervalSeconds) {
+        if (!profilingEnabled) {
+            return;
+        }
+        ruleProfiler.setEnabled(true);
+        LOG.info("Validation rule profiling enabled");
+        if (logIntervalSeconds > 0) {
+            ScheduledExecutorService profileExec = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "validation-rule-profile");
+                t.setDaemon(true);
+                return t;
+            });
+            profileExec.scheduleAtFixedRate(() -> LOG.info(ruleProfiler.getSummary()),
+                    logIntervalSeconds, logIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public RuleProfiler getRuleProfiler() {
+        return ruleProfiler;
+    }
+
+    /**
+     * Replaces the bundled sample validation rules with the rules in the given file, if any,
+     * and checks the file for changes every reloadIntervalSeconds. A changed file is compiled
+     * and swapped in atomically, validations already running finish with the rules they
+     * started with. A file that fails to compile is logged and the current rules are kept.
+     * @param rulesFile
+     * @param reloadIntervalSeconds
+     * @throws IOException
+     */
+    @Autowired
+    public void configureRules(@Value("${validation.rules.file:}") String rulesFile,
+            @Value("${validation.rules.reload_interval_seconds:30}") int reloadIntervalSeconds)
+            throws IOException {
+        if (StringUtils.isBlank(rulesFile)) {
+            return;
+        }
+        Path rulesPath = Paths.get(rulesFile);
+        rulesLastModified = Files.getLastModifiedTime(rulesPath).toMillis();
+        swapRules(ValidationRuleSet.load(rulesPath, getBuiltinChecks()));
+        if (reloadIntervalSeconds > 0) {
+            ScheduledExecutorService reloadExec = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "validation-rules-reload");
+                t.setDaemon(true);
+                return t;
+            });
+            reloadExec.scheduleWithFixedDelay(() -> reloadRulesIfChanged(rulesPath),
+                    reloadIntervalSeconds, reloadIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public ValidationRuleSet getValidationRuleSet() {
+        return ruleSet.get();
+    }
+
+    private ValidationRuleSet loadDefaultRules() {
+        try {
+            return ValidationRuleSet.loadResource(DEFAULT_RULES, getBuiltinChecks());
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load default validation rules", e);
+        }
+    }
+
+    /**
+     * Checks that can't be expressed as field rules, referred to as "check name" in the rules.
+     */
+    private Map<String, ValidationRuleSet.BuiltinCheck> getBuiltinChecks() {
+        return Map.of(
+                "validSpecimenType", ValidationRuleSet.BuiltinCheck.withColumns(
+                        this::hasValidSpecimenType, this::hasValidSpecimenType,
+                        SAMPLE_ORIGIN, SAMPLE_TYPE_DETAILED),
+                "validSampleType", ValidationRuleSet.BuiltinCheck.withColumns(
+                        (sampleMap, schema) -> hasValidSampleType(sampleMap),
+                        (columns, sample, schema) -> hasValidSampleType(columns, sample),
+                        SAMPLE_TYPE_DETAILED, NA_TO_EXTRACT, BAIT_SET),
+                "fastQs", ValidationRuleSet.BuiltinCheck.withColumns(
+                        (sampleMap, schema) -> hasFastQs(sampleMap),
+                        (columns, sample, schema) -> columns.hasFastQs(sample)));
+    }
+
+    private void reloadRulesIfChanged(Path rulesPath) {
+        try {
+            long lastModified = Files.getLastModifiedTime(rulesPath).toMillis();
+            if (lastModified == rulesLastModified) {
+                return;
+            }
+            rulesLastModified = lastModified;
+            swapRules(ValidationRuleSet.load(rulesPath, getBuiltinChecks()));
+        } catch (Exception e) {
+            LOG.error("Failed to reload validation rules from " + rulesPath + ", keeping rules from "
+                    + ruleSet.get().getSource(), e);
+        }
+    }
+
+    private void swapRules(ValidationRuleSet rules) {
+        ValidationRuleSet previous = ruleSet.getAndSet(rules);
+        LOG.info("Validation rules loaded from " + rules.getSource() + " (version " + rules.getVersion()
+                + ", replacing version " + previous.getVersion() + ")");
+    }
 
     /**
      * Checks if the request is a cmoRequest and has a requestId, and returns a
@@ -43,31 +202,53 @@ public class ValidRequestCheckerImpl implements ValidRequestChecker {
      * - If the number of valid samples is less than the total number of samples that came
      *   with the request then the request is still considered valid but the request is
      *   logged by the request status logger to keep note of the invalid samples.
+     *
+     * <p>Requests with at least 'validation.columnar.min_samples' samples are validated
+     * on SampleColumns when their rules allow it, see getFilteredValidRequestJsonFromColumns.
      * @param requestJson
      * @return String
      * @throws IOException
      */
     @Override
     public String getFilteredValidRequestJson(String requestJson) throws IOException {
+        return getFilteredValidRequestJson(requestJson, null);
+    }
+
+    /**
+     * Same as getFilteredValidRequestJson(String), with the request-level fields already
+     * probed from the request JSON.
+     * @param requestJson
+     * @param header probed from requestJson, null to probe it here
+     * @return String
+     * @throws IOException
+     */
+    @Override
+    public String getFilteredValidRequestJson(String requestJson, RequestHeader header) throws IOException {
+        header = probeIfMissing(requestJson, header);
+        if (columnarMinSamples > 0 && header != null) {
+            String filteredJson = getFilteredValidRequestJsonFromColumns(requestJson, header);
+            if (filteredJson != null) {
+                return filteredJson;
+            }
+        }
         // get request status report for request-level metadata
-        Map<String, Object> requestStatus = generateRequestStatusValidationMap(requestJson);
+        Map<String, Object> requestStatus = generateRequestStatusValidationMap(requestJson, header);
         Map<String, Object> requestJsonMap = mapper.readValue(requestJson, Map.class);
 
-        Object[] sampleList = mapper.convertValue(requestJsonMap.get("samples"),
-                Object[].class);
+        List<Map<String, Object>> sampleMaps = getSampleMaps(requestJsonMap);
+        SampleSchema schema = detectSchema(requestJsonMap, sampleMaps);
 
         // validate each sample json and add to validSampleList if it passes check
         Boolean isCmoRequest = isCmo(requestJsonMap);
         List<Object> updatedSampleList = new ArrayList<>();
         List<Object> invalidRequestSamplesStatuses = new ArrayList<>();
         int validSampleCount = 0;
-        for (Object sample: sampleList) {
-            Map<String, Object> sampleMap = mapper.convertValue(sample, Map.class);
+        for (Map<String, Object> sampleMap : sampleMaps) {
             Map<String, Object> sampleStatus;
             if (isCmoRequest) {
-                sampleStatus = generateCmoSampleValidationMap(sampleMap);
+                sampleStatus = generateCmoSampleValidationMap(sampleMap, schema);
             } else {
-                sampleStatus = generateNonCmoSampleValidationMap(sampleMap);
+                sampleStatus = generateNonCmoSampleValidationMap(sampleMap, schema);
             }
             sampleMap.put("status", sampleStatus);
             Object sampleObj = mapper.convertValue(sampleMap, Object.class);
@@ -92,35 +273,201 @@ public class ValidRequestCheckerImpl implements ValidRequestChecker {
             }
         }
         // update request json with request status and samples containing validation reports
-        if ((Boolean) requestStatus.get("validationStatus")) {
-            Map<String, Object> requestValidationReport 
-                    = parseValidationReportMap(requestStatus.get("validationReport"));
-
-            // validSampleCount can be zero while 'updatedSampleList' is not empty - this indicates
-            // that there are some samples with passable errors that are still allowed to import
-            // into smile and/or get a CMO label generated
-            if (validSampleCount == 0) {
-                requestStatus.put("validationStatus", Boolean.FALSE);
-                if (updatedSampleList.isEmpty()) {
-                    requestValidationReport.put("samples (failed)", "All request samples failed validation");
-                } else {
-                    requestValidationReport.put("samples (failed)", "Some request samples failed validation");
+        updateRequestStatus(requestStatus, validSampleCount, updatedSampleList.isEmpty(),
+                invalidRequestSamplesStatuses);
+        requestJsonMap.put("status", requestStatus);
+        requestJsonMap.replace("samples", updatedSampleList.toArray(Object[]::new));
+        return mapper.writeValueAsString(requestJsonMap);
+    }
+
+    /**
+     * Adds the outcome of validating the samples to the request status, if the request
+     * itself passed validation.
+     */
+    private void updateRequestStatus(Map<String, Object> requestStatus, int validSampleCount,
+            boolean noSamplesKept, List<Object> invalidRequestSamplesStatuses)
+            throws JsonProcessingException {
+        if (!(Boolean) requestStatus.get("validationStatus")) {
+            return;
+        }
+        Map<String, Object> requestValidationReport
+                = parseValidationReportMap(requestStatus.get("validationReport"));
+
+        // validSampleCount can be zero while some samples are still kept - this indicates
+        // that there are some samples with passable errors that are still allowed to import
+        // into smile and/or get a CMO label generated
+        if (validSampleCount == 0) {
+            requestStatus.put("validationStatus", Boolean.FALSE);
+            if (noSamplesKept) {
+                requestValidationReport.put("samples (failed)", "All request samples failed validation");
+            } else {
+                requestValidationReport.put("samples (failed)", "Some request samples failed validation");
+            }
+        }
+
+        // report samples with critical validation errors in the
+        // request-level validation report as 'samples'
+        if (!invalidRequestSamplesStatuses.isEmpty()) {
+            requestValidationReport.put("samples",
+                    mapper.convertValue(invalidRequestSamplesStatuses, Object.class));
+        }
+
+        // update request status validation report
+        requestStatus.replace("validationReport", mapper.writeValueAsString(requestValidationReport));
+    }
+
+    /**
+     * Validates the samples on SampleColumns read in one pass over the request JSON, and
+     * streams the filtered request out of the original JSON with each kept sample's status
+     * added, so no map is built for a sample unless it is dropped. Samples failing the same
+     * rules share a status. The result is the same as validating on sample maps.
+     * Returns null to validate on sample maps instead if the request has fewer than
+     * 'validation.columnar.min_samples' samples, a built-in check of its rules has no
+     * column form, or 'samples' is not an array of objects.
+     */
+    private String getFilteredValidRequestJsonFromColumns(String requestJson, RequestHeader header)
+            throws IOException {
+        if (header.getSampleCount() < columnarMinSamples) {
+            return null;
+        }
+        String kind = header.isCmo() ? ValidationRuleSet.CMO : ValidationRuleSet.NON_CMO;
+        ValidationRuleSet rules = ruleSet.get();
+        Set<String> columnPaths = rules.getColumnPaths(kind);
+        if (columnPaths == null) {
+            return null;
+        }
+        SampleColumns columns = SampleColumns.read(requestJson, columnPaths, header.getSampleCount());
+        if (columns == null) {
+            return null;
+        }
+        Map<String, Object> requestStatus = generateRequestStatusValidationMap(requestJson, header);
+        long[] failures = rules.evaluate(kind, columns, ruleProfiler);
+
+        Map<Long, ColumnSampleStatus> statuses = new HashMap<>();
+        ColumnSampleStatus emptySampleStatus = null;
+        ColumnSampleStatus[] sampleStatuses = new ColumnSampleStatus[columns.size()];
+        List<Object> invalidRequestSamplesStatuses = new ArrayList<>();
+        int validSampleCount = 0;
+        int keptSampleCount = 0;
+        for (int sample = 0; sample < columns.size(); sample++) {
+            ColumnSampleStatus status;
+            if (columns.isEmpty(sample)) {
+                if (emptySampleStatus == null) {
+                    emptySampleStatus = new ColumnSampleStatus(generateEmptySampleValidationMap(), false);
+                }
+                status = emptySampleStatus;
+            } else {
+                status = statuses.get(failures[sample]);
+                if (status == null) {
+                    Map<String, String> validationReport = rules.getReport(kind, failures[sample]);
+                    Map<String, Object> validationMap = new HashMap<>();
+                    validationMap.put("validationStatus", failures[sample] == 0);
+                    validationMap.put("validationReport", mapper.writeValueAsString(validationReport));
+                    status = new ColumnSampleStatus(validationMap,
+                            validationReport.containsKey("cmoPatientId"));
+                    statuses.put(failures[sample], status);
                 }
             }
+            if ((Boolean) status.validationMap.get("validationStatus")) {
+                validSampleCount++;
+            } else if (status.missingCmoPatientId) {
+                // do not add samples from cmo request if they are missing cmo patient ids
+                Map<String, Object> sampleMap = mapper.readValue(columns.getSampleJson(sample), Map.class);
+                sampleMap.put("status", status.validationMap);
+                LOG.warn("Adding CMO sample with missing CMO patient ID to request-level "
+                        + "validation report (failed samples): " + mapper.writeValueAsString(sampleMap));
+                invalidRequestSamplesStatuses.add(sampleMap);
+                continue;
+            }
+            sampleStatuses[sample] = status;
+            keptSampleCount++;
+        }
+        updateRequestStatus(requestStatus, validSampleCount, keptSampleCount == 0,
+                invalidRequestSamplesStatuses);
+        return writeFilteredRequest(columns, sampleStatuses, requestStatus);
+    }
+
+    /**
+     * Status shared by the samples that failed the same rules.
+     */
+    private static class ColumnSampleStatus {
+        final Map<String, Object> validationMap;
+        final boolean missingCmoPatientId;
 
-            // report samples with critical validation errors in the
-            // request-level validation report as 'samples'
-            if (!invalidRequestSamplesStatuses.isEmpty()) {
-                requestValidationReport.put("samples",
-                        mapper.convertValue(invalidRequestSamplesStatuses, Object.class));
+        ColumnSampleStatus(Map<String, Object> validationMap, boolean missingCmoPatientId) {
+            this.validationMap = validationMap;
+            this.missingCmoPatientId = missingCmoPatientId;
+        }
+    }
+
+    /**
+     * Copies the request JSON with 'samples' replaced by the kept samples (those with a
+     * status) and 'status' set to the request status, keeping the order of the fields.
+     */
+    private String writeFilteredRequest(SampleColumns columns, ColumnSampleStatus[] sampleStatuses,
+            Map<String, Object> requestStatus) throws IOException {
+        StringWriter writer = new StringWriter(columns.getJson().length());
+        try (JsonGenerator generator = mapper.createGenerator(writer);
+                JsonParser parser = mapper.createParser(columns.getJson())) {
+            parser.nextToken();
+            generator.writeStartObject();
+            boolean hasStatus = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                generator.writeFieldName(field);
+                if (field.equals("samples")) {
+                    parser.skipChildren();
+                    generator.writeStartArray();
+                    for (int sample = 0; sample < sampleStatuses.length; sample++) {
+                        if (sampleStatuses[sample] != null) {
+                            writeWithStatus(generator, columns.getSampleJson(sample),
+                                    sampleStatuses[sample].validationMap);
+                        }
+                    }
+                    generator.writeEndArray();
+                } else if (field.equals("status")) {
+                    parser.skipChildren();
+                    generator.writeObject(requestStatus);
+                    hasStatus = true;
+                } else {
+                    generator.copyCurrentStructure(parser);
+                }
             }
+            if (!hasStatus) {
+                generator.writeObjectField("status", requestStatus);
+            }
+            generator.writeEndObject();
+        }
+        return writer.toString();
+    }
 
-            // update request status validation report
-            requestStatus.replace("validationReport", mapper.writeValueAsString(requestValidationReport));
+    /**
+     * Copies a JSON object with its 'status' replaced, or added at the end.
+     */
+    private void writeWithStatus(JsonGenerator generator, String json, Map<String, Object> status)
+            throws IOException {
+        try (JsonParser parser = mapper.createParser(json)) {
+            parser.nextToken();
+            generator.writeStartObject();
+            boolean hasStatus = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                generator.writeFieldName(field);
+                if (field.equals("status")) {
+                    parser.skipChildren();
+                    generator.writeObject(status);
+                    hasStatus = true;
+                } else {
+                    generator.copyCurrentStructure(parser);
+                }
+            }
+            if (!hasStatus) {
+                generator.writeObjectField("status", status);
+            }
+            generator.writeEndObject();
         }
-        requestJsonMap.put("status", requestStatus);
-        requestJsonMap.replace("samples", updatedSampleList.toArray(Object[]::new));
-        return mapper.writeValueAsString(requestJsonMap);
     }
 
     @Override
@@ -130,20 +477,19 @@ public class ValidRequestCheckerImpl implements ValidRequestChecker {
         Map<String, Object> requestStatus = generateRequestStatusValidationMap(requestJson);
         Map<String, Object> requestJsonMap = mapper.readValue(requestJson, Map.class);
 
-        Object[] sampleList = mapper.convertValue(requestJsonMap.get("samples"),
-                Object[].class);
+        List<Map<String, Object>> sampleMaps = getSampleMaps(requestJsonMap);
+        SampleSchema schema = detectSchema(requestJsonMap, sampleMaps);
         List<Object> updatedSampleList = new ArrayList<>();
         int validPromotedSampleCount = 0;
-        for (Object sample: sampleList) {
-            Map<String, Object> sampleMap = mapper.convertValue(sample, Map.class);
-            Map<String, Object> sampleStatus = generatePromotedSampleValidationMap(sampleMap);
+        for (Map<String, Object> sampleMap : sampleMaps) {
+            Map<String, Object> sampleStatus = generatePromotedSampleValidationMap(sampleMap, schema);
             sampleMap.put("status", sampleStatus);
             updatedSampleList.add(sampleMap);
             if ((Boolean) sampleStatus.get("validationStatus")) {
                 validPromotedSampleCount++;
             }
         }
-        if (validPromotedSampleCount < sampleList.length) {
+        if (validPromotedSampleCount < sampleMaps.size()) {
             String requestId = getRequestId(requestJson);
             LOG.warn("One or more sample(s) is missing one or a combination of the following: igoId or "
                     + "primaryId, cmoPatientId or cmoSampleIdFields --> normalizedPatientId - this "
@@ -163,25 +509,85 @@ public class ValidRequestCheckerImpl implements ValidRequestChecker {
         return requestJsonMap;
     }
 
+    /**
+     * Fail-fast counterpart of generatePromotedRequestValidationMap for callers that only
+     * need to know whether the request passes. Request-level fields are probed, then the
+     * samples are read one at a time until one passes every promoted sample rule, stopping
+     * at the first failing rule of each sample. No report is built and nothing is logged.
+     * @param requestJson
+     * @return Boolean
+     * @throws IOException
+     */
+    @Override
+    public Boolean isValidPromotedRequest(String requestJson) throws IOException {
+        return isValidPromotedRequest(requestJson, null);
+    }
+
+    /**
+     * Same as isValidPromotedRequest(String), with the request-level fields already
+     * probed from the request JSON.
+     * @param requestJson
+     * @param header probed from requestJson, null to probe it here
+     * @return Boolean
+     * @throws IOException
+     */
+    @Override
+    public Boolean isValidPromotedRequest(String requestJson, RequestHeader header) throws IOException {
+        header = probeIfMissing(requestJson, header);
+        if (header == null) {
+            return Boolean.FALSE;
+        }
+        if (!header.hasRequestId() || (igoCmoRequestFilter && !header.isCmo())
+                || !header.hasSamples()) {
+            return Boolean.FALSE;
+        }
+        return hasValidPromotedSample(requestJson);
+    }
+
+    /**
+     * Streams the request's samples, parsing each into a map only when it is reached.
+     * The schema is detected per sample, which gives the same result as detecting it for
+     * the whole request first.
+     */
+    private Boolean hasValidPromotedSample(String requestJson) throws IOException {
+        ValidationRuleSet rules = ruleSet.get();
+        try (JsonParser parser = mapper.getFactory().createParser(requestJson)) {
+            parser.nextToken();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (!field.equals("samples") || value != JsonToken.START_ARRAY) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    if (parser.currentToken() != JsonToken.START_OBJECT) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    Map<String, Object> sampleMap = mapper.readValue(parser, Map.class);
+                    if (rules.evaluate(ValidationRuleSet.PROMOTED, SampleSchema.detect(sampleMap),
+                            sampleMap, null, ruleProfiler)) {
+                        return Boolean.TRUE;
+                    }
+                }
+            }
+        }
+        return Boolean.FALSE;
+    }
+
     @Override
     public Map<String, Object> generatePromotedSampleValidationMap(Map<String, Object> sampleMap)
             throws JsonMappingException, JsonProcessingException {
+        return generatePromotedSampleValidationMap(sampleMap, SampleSchema.detect(sampleMap));
+    }
+
+    private Map<String, Object> generatePromotedSampleValidationMap(Map<String, Object> sampleMap,
+            SampleSchema schema) throws JsonProcessingException {
         Map<String, Object> validationMap = new HashMap<>();
         Map<String, String> validationReport = new HashMap<>();
-        Boolean validationStatus = Boolean.TRUE;
-        if (!hasIgoId(sampleMap)) {
-            validationStatus = Boolean.FALSE;
-            validationReport.put("igoId", "missing");
-        }
-        if (!(hasCmoPatientId(sampleMap) || hasNormalizedPatientId(sampleMap))) {
-            validationStatus = Boolean.FALSE;
-            if (!hasCmoPatientId(sampleMap)) {
-                validationReport.put("cmoPatientId", "missing");
-            }
-            if (!hasNormalizedPatientId(sampleMap)) {
-                validationReport.put("normalizedPatientId", "missing from cmoSampleIdFields");
-            }
-        }
+        Boolean validationStatus = ruleSet.get().evaluate(ValidationRuleSet.PROMOTED, schema, sampleMap,
+                validationReport, ruleProfiler);
         // update contents of validation map to return
         validationMap.put("validationStatus", validationStatus);
         validationMap.put("validationReport", mapper.writeValueAsString(validationReport));
@@ -198,38 +604,52 @@ public class ValidRequestCheckerImpl implements ValidRequestChecker {
     @Override
     public Map<String, Object> generateRequestStatusValidationMap(String requestJson)
             throws IOException {
+        return generateRequestStatusValidationMap(requestJson, null);
+    }
+
+    /**
+     * Same as generateRequestStatusValidationMap(String), with the request-level fields
+     * already probed from the request JSON.
+     * @param requestJson
+     * @param header probed from requestJson, null to probe it here
+     * @return Map
+     * @throws JsonProcessingException
+     */
+    @Override
+    public Map<String, Object> generateRequestStatusValidationMap(String requestJson, RequestHeader header)
+            throws JsonProcessingException {
         Map<String, Object> validationMap = new HashMap<>();
         Map<String, Object> validationReport = new HashMap<>();
-        if (StringUtils.isAllBlank(requestJson)) {
+        // the request-level fields are probed from the json without parsing all of it
+        header = probeIfMissing(requestJson, header);
+        if (header == null) {
             validationReport.put("requestJson", "Request JSON received is empty");
             validationMap.put("validationStatus", Boolean.FALSE);
             validationMap.put("validationReport", mapper.writeValueAsString(validationReport));
             return validationMap;
         }
-
         Boolean validationStatus = Boolean.TRUE;
-        Map<String, Object> requestJsonMap = mapper.readValue(requestJson, Map.class);
-        boolean isCmoRequest = isCmo(requestJsonMap);
-        boolean hasRequestId = hasRequestId(requestJsonMap);
 
         // if requestId is blank then nothing to do, return null
-        if (!hasRequestId) {
+        if (!header.hasRequestId()) {
             LOG.warn("CMO request failed sanity checking - missing requestId. " + requestJson);
             validationReport.put("requestId", "IGO Request ID is missing from the request JSON received.");
             validationStatus = Boolean.FALSE;
         }
 
         // if cmo filter is enabled then skip request if it is non-cmo
-        if (igoCmoRequestFilter && !isCmoRequest) {
+        if (igoCmoRequestFilter && !header.isCmo()) {
             LOG.warn("CMO request filter enabled - skipping non-CMO request: "
-                    + getRequestId(requestJsonMap) + ", " + requestJson);
+                    + header.getRequestId() + ", " + requestJson);
             validationReport.put("isCmo", "SMILE CMO request filter is enabled and request JSON received has"
                     + " 'cmoRequest': false. This value must be set to true for import into SMILE.");
             validationStatus = Boolean.FALSE;
         }
 
         // determine whether request json has samples
-        if (!requestHasSamples(requestJson)) {
+        if (!header.hasSamples()) {
+            LOG.warn("Skipping request that is missing 'samples' in JSON or has no sample data in "
+                    + "'samples' JSON field: " + header.getRequestId() + ", " + requestJson);
             validationReport.put("samples (missing)", "Request JSON is missing 'samples' or "
                     + "'samples' is an empty list.");
             validationStatus = Boolean.FALSE;
@@ -252,6 +672,7 @@ public class ValidRequestCheckerImpl implements ValidRequestChecker {
      *   - specimen type
      *   - sample type
      *   - normalized patient id
+     * The rules are the 'cmo' rules of the current validation rule set.
      * @param sampleMap
      * @return Map
      * @throws JsonMappingException
@@ -260,67 +681,38 @@ public class ValidRequestCheckerImpl implements ValidRequestChecker {
     @Override
     public Map<String, Object> generateCmoSampleValidationMap(Map<String, Object> sampleMap)
             throws JsonMappingException, JsonProcessingException {
-        Map<String, Object> validationMap = new HashMap<>();
-        Map<String, String> validationReport = new HashMap<>();
+        return generateCmoSampleValidationMap(sampleMap, SampleSchema.detect(sampleMap));
+    }
+
+    private Map<String, Object> generateCmoSampleValidationMap(Map<String, Object> sampleMap,
+            SampleSchema schema) throws JsonProcessingException {
         if (sampleMap == null || sampleMap.isEmpty()) {
-            validationReport.put("sampleMetadata", "sample metadata json is empty");
-            validationMap.put("validationStatus", Boolean.FALSE);
-            validationMap.put("validationReport", mapper.writeValueAsString(validationReport));
-            return validationMap;
+            return generateEmptySampleValidationMap();
         }
+        Map<String, Object> validationMap = new HashMap<>();
+        Map<String, String> validationReport = new HashMap<>();
 
-        Boolean validationStatus = Boolean.TRUE;
-        if (!hasInvestigatorSampleId(sampleMap)) {
-            validationStatus = Boolean.FALSE;
-            validationReport.put("investigatorSampleId", "missing");
-        }
-        if (!hasIgoId(sampleMap)) {
-            validationStatus = Boolean.FALSE;
-            validationReport.put("igoId", "missing");
-        }
-        if (!hasBaitSetOrRecipe(sampleMap)) {
-            validationStatus = Boolean.FALSE;
-            if (!hasBaitSet(sampleMap)) {
-                validationReport.put("baitSet", "missing");
-            }
-            if (!hasRecipe(sampleMap)) {
-                validationReport.put("recipe", "missing");
-            }
-        }
-        if (!hasCmoPatientId(sampleMap)) {
-            validationStatus = Boolean.FALSE;
-            validationReport.put("cmoPatientId", "missing");
-        }
-        if (!(hasValidSpecimenType(sampleMap) || hasValidSampleType(sampleMap))) {
-            validationStatus = Boolean.FALSE;
-            if (!hasValidSpecimenType(sampleMap)) {
-                validationReport.put("specimenType (sampleClass)", "invalid");
-            }
-            if (!hasValidSampleType(sampleMap)) {
-                validationReport.put("sampleType", "invalid 'sampleType' from 'cmoSampleIdFields'");
-            }
-        }
-        if (!hasNormalizedPatientId(sampleMap)) {
-            validationStatus = Boolean.FALSE;
-            validationReport.put("normalizedPatientId", "missing from 'cmoSampleIdFields'");
-        }
-        if (!hasFastQs(sampleMap)) {
-            validationStatus = Boolean.FALSE;
-            validationReport.put("fastQs", "missing");
-        }
-        if (!isIgoComplete(sampleMap)) {
-            validationStatus = Boolean.FALSE;
-            validationReport.put("igoComplete", "false");
-        }
+        Boolean validationStatus = ruleSet.get().evaluate(ValidationRuleSet.CMO, schema, sampleMap,
+                validationReport, ruleProfiler);
         validationMap.put("validationStatus", validationStatus);
         validationMap.put("validationReport", mapper.writeValueAsString(validationReport));
         return validationMap;
     }
 
+    private Map<String, Object> generateEmptySampleValidationMap() throws JsonProcessingException {
+        Map<String, Object> validationMap = new HashMap<>();
+        Map<String, String> validationReport = new HashMap<>();
+        validationReport.put("sampleMetadata", "sample metadata json is empty");
+        validationMap.put("validationStatus", Boolean.FALSE);
+        validationMap.put("validationReport", mapper.writeValueAsString(validationReport));
+        return validationMap;
+    }
+
     /**
      * Evaluates sample metadata for samples from NON-CMO requests.
      * - Checks if sample map has all required fields.
      * - If bait set or normalized patient id are  missing then returns false.
+     * The rules are the 'non_cmo' rules of the current validation rule set.
      * @param sampleMap
      * @return Map
      * @throws JsonMappingException
@@ -329,138 +721,163 @@ public class ValidRequestCheckerImpl implements ValidRequestChecker {
     @Override
     public Map<String, Object> generateNonCmoSampleValidationMap(Map<String, Object> sampleMap)
             throws JsonMappingException, JsonProcessingException {
-        Map<String, Object> validationMap = new HashMap<>();
-        Map<String, String> validationReport = new HashMap<>();
+        return generateNonCmoSampleValidationMap(sampleMap, SampleSchema.detect(sampleMap));
+    }
+
+    private Map<String, Object> generateNonCmoSampleValidationMap(Map<String, Object> sampleMap,
+            SampleSchema schema) throws JsonProcessingException {
         if (sampleMap == null || sampleMap.isEmpty()) {
-            validationReport.put("sampleMetadata", "sample metadata json is empty");
-            validationMap.put("validationStatus", Boolean.FALSE);
-            validationMap.put("validationReport", mapper.writeValueAsString(validationReport));
-            return validationMap;
+            return generateEmptySampleValidationMap();
         }
+        Map<String, Object> validationMap = new HashMap<>();
+        Map<String, String> validationReport = new HashMap<>();
 
-        Boolean validationStatus = Boolean.TRUE;
-        if (!hasBaitSet(sampleMap)) {
-            validationStatus = Boolean.FALSE;
-            validationReport.put("baitSet", "missing");
-        }
-        if (!hasNormalizedPatientId(sampleMap)) {
-            validationStatus = Boolean.FALSE;
-            validationReport.put("normalizedPatientId", "missing from 'cmoSampleIdFields'");
-        }
+        Boolean validationStatus = ruleSet.get().evaluate(ValidationRuleSet.NON_CMO, schema, sampleMap,
+                validationReport, ruleProfiler);
         validationMap.put("validationStatus", validationStatus);
         validationMap.put("validationReport", mapper.writeValueAsString(validationReport));
         return validationMap;
     }
 
+    /**
+     * Validates a batch of sample updates that has already been parsed. Each sample is
+     * classified as CMO or non-CMO from its own fields and validated by the matching rules
+     * in a single pass, without serializing it and parsing it back. Batches of at least
+     * 'validation.batch.parallel_threshold' samples are validated in parallel.
+     * @param samples parsed sample JSON objects
+     * @return SampleUpdateBatch
+     * @throws JsonProcessingException
+     */
     @Override
-    public Boolean isCmo(String json) throws JsonProcessingException {
-        if (isBlank(json)) {
-            return null;
-        }
-        Map<String, Object> jsonMap = mapper.readValue(json, Map.class);
-        return isCmo(jsonMap);
-    }
-
-    private Boolean isCmo(Map<String, Object> jsonMap) throws JsonProcessingException {
-        String isCMO = getIsCmo(jsonMap);
-        if (isBlank(isCMO)) {
-            return Boolean.FALSE;
+    public SampleUpdateBatch validateSampleUpdates(List<Object> samples) throws JsonProcessingException {
+        SampleUpdate[] updates = new SampleUpdate[samples.size()];
+        if (batchParallelThreshold > 0 && samples.size() >= batchParallelThreshold) {
+            try {
+                IntStream.range(0, updates.length).parallel().forEach(i -> {
+                    try {
+                        updates[i] = validateSampleUpdate(samples.get(i));
+                    } catch (JsonProcessingException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw (JsonProcessingException) e.getCause();
+            }
+        } else {
+            for (int i = 0; i < updates.length; i++) {
+                updates[i] = validateSampleUpdate(samples.get(i));
+            }
         }
-        return Boolean.valueOf(isCMO);
-    }
 
-    private String getIsCmo(Map<String, Object> jsonMap) throws JsonProcessingException {
-        if (jsonMap.containsKey("isCmoRequest")) {
-            return jsonMap.get("isCmoRequest").toString();
-        }
-        if (jsonMap.containsKey("additionalProperties")) {
-            Map<String, String> additionalProperties = mapper.convertValue(
-                    jsonMap.get("additionalProperties"), Map.class);
-            if (additionalProperties.containsKey("isCmoSample")) {
-                return additionalProperties.get("isCmoSample");
+        String requestId = null;
+        List<String> cmoSamples = new ArrayList<>();
+        List<String> nonCmoSamples = new ArrayList<>();
+        List<String> failedSamples = new ArrayList<>();
+        for (SampleUpdate update : updates) {
+            if (update == null) {
+                continue;
+            }
+            if (requestId == null) {
+                requestId = update.requestId;
+            }
+            (update.cmo ? cmoSamples : nonCmoSamples).add(update.sampleWithStatus);
+            if (!update.passed) {
+                failedSamples.add(update.sampleWithStatus);
             }
         }
-        return null;
+        return new SampleUpdateBatch(requestId, cmoSamples, nonCmoSamples, failedSamples);
     }
 
-    @Override
-    public String getRequestId(String json) throws JsonProcessingException {
-        if (isBlank(json)) {
+    /**
+     * Validates one sample of a batch, null if it has no request id.
+     */
+    private SampleUpdate validateSampleUpdate(Object sample) throws JsonProcessingException {
+        if (!(sample instanceof Map)) {
+            LOG.warn("Cannot extract request ID information from sample update message: "
+                    + mapper.writeValueAsString(sample));
+            return null;
+        }
+        Map<String, Object> sampleMap = (Map<String, Object>) sample;
+        RequestHeader header = RequestHeader.of(sampleMap);
+        if (!header.hasRequestId()) {
+            LOG.warn("Cannot extract request ID information from sample update message: "
+                    + mapper.writeValueAsString(sampleMap));
             return null;
         }
-        Map<String, Object> jsonMap = mapper.readValue(json, Map.class);
-        return getRequestId(jsonMap);
+        SampleSchema schema = SampleSchema.detect(sampleMap);
+        Map<String, Object> sampleStatus = header.isCmo()
+                ? generateCmoSampleValidationMap(sampleMap, schema)
+                : generateNonCmoSampleValidationMap(sampleMap, schema);
+        // the status is attached to a copy so the caller's sample is left as it was
+        Map<String, Object> sampleWithStatus = new LinkedHashMap<>(sampleMap);
+        sampleWithStatus.put("status", sampleStatus);
+        return new SampleUpdate(header.getRequestId(), header.isCmo(),
+                (Boolean) sampleStatus.get("validationStatus"),
+                mapper.writeValueAsString(sampleWithStatus));
     }
 
-    private String getRequestId(Map<String, Object> jsonMap) throws JsonProcessingException {
-        if (jsonMap.containsKey("requestId")) {
-            return jsonMap.get("requestId").toString();
-        }
-        if (jsonMap.containsKey("igoRequestId")) {
-            return jsonMap.get("igoRequestId").toString();
-        }
-        if (jsonMap.containsKey("additionalProperties")) {
-            Map<String, String> additionalProperties = mapper.convertValue(
-                    jsonMap.get("additionalProperties"), Map.class);
-            if (additionalProperties.containsKey("requestId")) {
-                return additionalProperties.get("requestId");
-            }
-            if (additionalProperties.containsKey("igoRequestId")) {
-                return additionalProperties.get("igoRequestId");
-            }
+    private static class SampleUpdate {
+        final String requestId;
+        final boolean cmo;
+        final boolean passed;
+        final String sampleWithStatus;
+
+        SampleUpdate(String requestId, boolean cmo, boolean passed, String sampleWithStatus) {
+            this.requestId = requestId;
+            this.cmo = cmo;
+            this.passed = passed;
+            this.sampleWithStatus = sampleWithStatus;
         }
-        return null;
     }
 
-    private Boolean hasRequestId(Map<String, Object> jsonMap) throws JsonProcessingException {
-        String requestId = getRequestId(jsonMap);
-        return (!isBlank(requestId));
+    /**
+     * Returns the header if there is one, otherwise probes it from the json.
+     * @return RequestHeader, null if the json is blank
+     */
+    private RequestHeader probeIfMissing(String json, RequestHeader header) throws JsonProcessingException {
+        return (header != null) ? header : probeRequestHeader(json);
     }
 
     @Override
-    public Boolean hasRequestId(String json) throws JsonProcessingException {
-        String requestId = getRequestId(json);
-        return (!isBlank(requestId));
-    }
-
-    private String getPrimaryOrIgoId(Map<String, Object> sampleMap) {
-        Object igoIdOrPrimaryId = ObjectUtils.firstNonNull(sampleMap.get("igoId"),
-               sampleMap.get("primaryId"));
-        return isBlank(String.valueOf(igoIdOrPrimaryId)) ? null : String.valueOf(igoIdOrPrimaryId);
+    public RequestHeader probeRequestHeader(String json) throws JsonProcessingException {
+        if (isBlank(json)) {
+            return null;
+        }
+        return RequestHeader.probe(json);
     }
 
-    private Boolean hasIgoId(Map<String, Object> sampleMap) {
-        Object igoIdOrPrimaryId = getPrimaryOrIgoId(sampleMap);
-        if (igoIdOrPrimaryId == null) {
-            return Boolean.FALSE;
+    @Override
+    public Boolean isCmo(String json) throws JsonProcessingException {
+        if (isBlank(json)) {
+            return null;
         }
-        return !isBlank(String.valueOf(igoIdOrPrimaryId));
+        return RequestHeader.probe(json).isCmo();
     }
 
-    private Boolean hasBaitSetOrRecipe(Map<String, Object> sampleMap) {
-        return hasBaitSet(sampleMap) || hasRecipe(sampleMap);
+    private Boolean isCmo(Map<String, Object> jsonMap) {
+        return RequestHeader.of(jsonMap).isCmo();
     }
 
-    private Boolean hasRecipe(Map<String, Object> sampleMap) {
-        String recipe = null;
-        if (sampleMap.containsKey("cmoSampleIdFields")) {
-            Map<String, String> cmoSampleIdFields = mapper.convertValue(
-                    sampleMap.get("cmoSampleIdFields"), Map.class);
-            recipe = cmoSampleIdFields.get("recipe");
+    @Override
+    public String getRequestId(String json) throws JsonProcessingException {
+        if (isBlank(json)) {
+            return null;
         }
-        return !isBlank(recipe);
+        return RequestHeader.probe(json).getRequestId();
     }
 
-    private Boolean hasBaitSet(Map<String, Object> sampleMap) {
-        return !isBlank((String) sampleMap.get("baitSet"));
+    private String getRequestId(Map<String, Object> jsonMap) {
+        return RequestHeader.of(jsonMap).getRequestId();
     }
 
-    private Boolean hasInvestigatorSampleId(Map<String, Object> sampleMap) {
-        return !isBlank((String) sampleMap.get("investigatorSampleId"));
+    @Override
+    public Boolean hasRequestId(String json) throws JsonProcessingException {
+        String requestId = getRequestId(json);
+        return (!isBlank(requestId));
     }
 
-    private Boolean hasCmoPatientId(Map<String, Object> sampleMap) {
-        return !isBlank((String) sampleMap.get("cmoPatientId"));
+    private Boolean hasBaitSet(Map<String, Object> sampleMap) {
+        return !isBlank((String) sampleMap.get("baitSet"));
     }
 
     private Boolean hasFastQs(Map<String, Object> sampleMap) {
@@ -495,10 +912,6 @@ public class ValidRequestCheckerImpl implements ValidRequestChecker {
         return Boolean.FALSE;
     }
 
-    private Boolean isIgoComplete(Map<String, Object> sampleMap) {
-        return (Boolean) sampleMap.get("igoComplete");
-    }
-
     /**
      * Determines whether sample has a valid specimen type or has a valid alternative
      * to fall back on.
@@ -507,12 +920,23 @@ public class ValidRequestCheckerImpl implements ValidRequestChecker {
      * Option 2: if none from option 1 then fall back on sample origin
      *
      * @param sampleMap
+     * @param schema
      * @return
      */
-    private Boolean hasValidSpecimenType(Map<String, Object> sampleMap) {
-        // this can also be 'sampleClass' if validating data in the universal schema format
-        Object specimenTypeObject = ObjectUtils.firstNonNull(sampleMap.get("specimenType"),
-               sampleMap.get("sampleClass"));
+    private Boolean hasValidSpecimenType(Map<String, Object> sampleMap, SampleSchema schema) {
+        return hasValidSpecimenType(schema.getSpecimenType(sampleMap), schema.getCmoSampleClass(sampleMap),
+                sampleMap.get("sampleOrigin"), () -> getSampleTypeDetailed(sampleMap));
+    }
+
+    private Boolean hasValidSpecimenType(SampleColumns columns, int sample, SampleSchema schema) {
+        return hasValidSpecimenType(schema.getSpecimenType(columns, sample),
+                schema.getCmoSampleClass(columns, sample), columns.getValue(SAMPLE_ORIGIN, sample),
+                () -> Objects.toString(columns.getValue(SAMPLE_TYPE_DETAILED, sample), null));
+    }
+
+    private Boolean hasValidSpecimenType(Object specimenTypeObject, Object cmoSampleClass,
+            Object sampleOrigin, Supplier<String> sampleTypeDetailed) {
+        // this is 'sampleClass' if validating data in the universal schema format
         String specimenType = String.valueOf(specimenTypeObject);
         // if valid specimen type right off the bat then return true
         if (!isBlank(specimenType) && Arrays.stream(SpecimenType.values())
@@ -524,7 +948,7 @@ public class ValidRequestCheckerImpl implements ValidRequestChecker {
         if (isBlank(specimenType)
                 || !Arrays.stream(SpecimenType.values())
                 .anyMatch(st -> st.getValue().equalsIgnoreCase(specimenType))) {
-            return hasCmoSampleClass(sampleMap);
+            return hasCmoSampleClass(cmoSampleClass);
         }
 
         // check if specimen type is cellline, pdx, xenograft, xenograftderivedcellline, or organoid
@@ -533,40 +957,28 @@ public class ValidRequestCheckerImpl implements ValidRequestChecker {
                 || SpecimenType.XENOGRAFT.getValue().equalsIgnoreCase(specimenType)
                 || SpecimenType.XENOGRAFTDERIVEDCELLLINE.getValue().equalsIgnoreCase(specimenType)
                 || SpecimenType.ORGANOID.getValue().equalsIgnoreCase(specimenType)) {
-            return hasCmoSampleClass(sampleMap);
-        }
-
-        // resolve sample type detailed in case of cfdna
-        String sampleTypeDetailed = null;
-        if (sampleMap.containsKey("cmoSampleIdFields")) {
-            Map<String, String> cmoSampleIdFields = mapper.convertValue(
-                    sampleMap.get("cmoSampleIdFields"), Map.class);
-            // relax the check on naToExtract and instead see if field is simply present
-            // if naToExtract field is present but empty then the label generator assumes DNA
-            sampleTypeDetailed = cmoSampleIdFields.get("sampleType");
+            return hasCmoSampleClass(cmoSampleClass);
         }
 
         // if specimen type is none of the above then check if exosome or cfdna
-        // and use sample origin if true
+        // and use sample origin or sample type detailed (resolved for cfdna) if true
         if (SpecimenType.EXOSOME.getValue().equalsIgnoreCase(specimenType)
                 || SpecimenType.CFDNA.getValue().equalsIgnoreCase(specimenType)) {
-            return hasSampleOrigin(sampleMap) || !isBlank(sampleTypeDetailed);
+            return hasSampleOrigin(sampleOrigin) || !isBlank(sampleTypeDetailed.get());
         }
         return Boolean.TRUE;
     }
 
-    private Boolean hasCmoSampleClass(Map<String, Object> sampleMap) {
-        // can be 'cmoSampleClass' if data is from IGO or 'sampleType' if data is in universal schema format
-        Object cmoSampleClassObject = ObjectUtils.firstNonNull(sampleMap.get("cmoSampleClass"),
-                sampleMap.get("sampleType"));
+    private Boolean hasCmoSampleClass(Object cmoSampleClassObject) {
+        // 'cmoSampleClass' if data is from IGO or 'sampleType' if data is in universal schema format
         String cmoSampleClass = String.valueOf(cmoSampleClassObject);
         return (!isBlank(cmoSampleClass)
                 && Arrays.stream(CmoSampleClass.values())
                 .anyMatch(c -> c.getValue().equalsIgnoreCase(cmoSampleClass)));
     }
 
-    private Boolean hasSampleOrigin(Map<String, Object> sampleMap) {
-        String sampleOrigin = String.valueOf(sampleMap.get("sampleOrigin"));
+    private Boolean hasSampleOrigin(Object sampleOriginObject) {
+        String sampleOrigin = String.valueOf(sampleOriginObject);
         return (!isBlank(sampleOrigin) && Arrays.stream(SampleOrigin.values())
                 .anyMatch(so -> so.getValue().equalsIgnoreCase(sampleOrigin)));
     }
@@ -592,17 +1004,26 @@ public class ValidRequestCheckerImpl implements ValidRequestChecker {
      */
     private Boolean hasValidSampleType(Map<String, Object> sampleMap)
             throws JsonMappingException, JsonProcessingException {
-        String sampleType = getSampleTypeDetailed(sampleMap);
+        return hasValidSampleType(getSampleTypeDetailed(sampleMap), () -> hasNAtoExtract(sampleMap),
+                () -> hasBaitSet(sampleMap));
+    }
+
+    private Boolean hasValidSampleType(SampleColumns columns, int sample) {
+        return hasValidSampleType(Objects.toString(columns.getValue(SAMPLE_TYPE_DETAILED, sample), null),
+                () -> columns.has(NA_TO_EXTRACT, sample),
+                () -> !isBlank(Objects.toString(columns.getValue(BAIT_SET, sample), null)));
+    }
 
-        return ((isBlank(sampleType) && hasNAtoExtract(sampleMap))
+    private Boolean hasValidSampleType(String sampleType, BooleanSupplier hasNAtoExtract,
+            BooleanSupplier hasBaitSet) {
+        return ((isBlank(sampleType) && hasNAtoExtract.getAsBoolean())
                 || (SampleType.POOLED_LIBRARY.getValue().equalsIgnoreCase(sampleType)
-                && hasBaitSet(sampleMap))
+                && hasBaitSet.getAsBoolean())
                 || Arrays.stream(SampleType.values())
                 .anyMatch(st -> st.getValue().equalsIgnoreCase(sampleType)));
     }
 
-    private Boolean hasNAtoExtract(Map<String, Object> sampleMap)
-            throws JsonMappingException, JsonProcessingException {
+    private Boolean hasNAtoExtract(Map<String, Object> sampleMap) {
         if (sampleMap.containsKey("cmoSampleIdFields")) {
             Map<String, String> cmoSampleIdFields = mapper.convertValue(
                     sampleMap.get("cmoSampleIdFields"), Map.class);
@@ -613,34 +1034,43 @@ public class ValidRequestCheckerImpl implements ValidRequestChecker {
         return Boolean.FALSE;
     }
 
-    private Boolean hasNormalizedPatientId(Map<String, Object> sampleMap)
-            throws JsonMappingException, JsonProcessingException {
-        if (sampleMap.containsKey("cmoSampleIdFields")) {
-            Map<String, String> cmoSampleIdfields = mapper.convertValue(
-                    sampleMap.get("cmoSampleIdFields"), Map.class);
-            return cmoSampleIdfields.containsKey("normalizedPatientId");
-        }
-        return Boolean.FALSE;
+    /**
+     * Updates the input json with the validation map provided.
+     * The validation map contains the validation report and validation status.
+     * @param inputJson
+     * @param validationMap
+     * @return String
+     * @throws JsonProcessingException
+     */
+    @Override
+    public String updateJsonWithValidationMap(String inputJson, Map<String, Object> validationMap)
+            throws JsonProcessingException {
+        Map<String, Object> inputJsonMap = mapper.readValue(inputJson, Map.class);
+        inputJsonMap.put("status", validationMap);
+        return mapper.writeValueAsString(inputJsonMap);
     }
 
-    private Boolean requestHasSamples(String requestJson) throws JsonProcessingException, IOException {
-        String requestId = getRequestId(requestJson);
-        Map<String, Object> requestJsonMap = mapper.readValue(requestJson, Map.class);
-        if (!requestJsonMap.containsKey("samples")) {
-            LOG.warn("Skipping request that is missing 'samples' in JSON for request ID: "
-                    + requestId + ", " + requestJson);
-            return Boolean.FALSE;
+    private List<Map<String, Object>> getSampleMaps(Map<String, Object> requestJsonMap) {
+        Object[] sampleList = mapper.convertValue(requestJsonMap.get("samples"), Object[].class);
+        List<Map<String, Object>> sampleMaps = new ArrayList<>(sampleList.length);
+        for (Object sample : sampleList) {
+            sampleMaps.add(mapper.convertValue(sample, Map.class));
         }
+        return sampleMaps;
+    }
 
-        // extract sample list from request json and check size is non-zero
-        Object[] sampleList = mapper.convertValue(requestJsonMap.get("samples"),
-                Object[].class);
-        if (sampleList.length == 0) {
-            LOG.warn("Skipping request without any sample data in 'samples' JSON field: "
-                    + requestId + ", " + requestJson);
-            return Boolean.FALSE;
+    /**
+     * Detects the schema of the request's samples once so that each sample is validated
+     * without probing both schemas. Requests mixing schemas are validated sample by sample.
+     */
+    private SampleSchema detectSchema(Map<String, Object> requestJsonMap,
+            List<Map<String, Object>> sampleMaps) throws JsonProcessingException {
+        SampleSchema schema = SampleSchema.detect(sampleMaps);
+        if (schema == SampleSchema.MIXED) {
+            LOG.warn("Samples of request " + getRequestId(requestJsonMap) + " are not all in the same "
+                    + "schema (IGO or universal), detecting the schema of each sample");
         }
-        return Boolean.TRUE;
+        return schema;
     }
 
     private Boolean isBlank(String value) {
@@ -650,8 +1080,13 @@ public class ValidRequestCheckerImpl implements ValidRequestChecker {
     @Override
     public String generateValidationReport(String originalJson, String filteredJson)
             throws JsonProcessingException {
+        return generateValidationReport(originalJson, filteredJson, getRequestId(originalJson));
+    }
+
+    @Override
+    public String generateValidationReport(String originalJson, String filteredJson, String requestId)
+            throws JsonProcessingException {
         StringBuilder builder = new StringBuilder();
-        String requestId = getRequestId(originalJson);
         Map<String, Object> filteredJsonMap = mapper.readValue(filteredJson, Map.class);
         // keeps track if there's anything to report or not. if still true after all checks
         // then return null
@@ -1,325 +1,348 @@
 package org.mskcc.smile.service.impl;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import io.nats.client.Message;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Phaser;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mskcc.cmo.messaging.Gateway;
-import org.mskcc.cmo.messaging.MessageConsumer;
+import org.mskcc.smile.service.HandlerConcurrencyGate;
+import org.mskcc.smile.service.MessagePipeline;
+import org.mskcc.smile.service.MessagePublisher;
 import org.mskcc.smile.service.ValidRequestChecker;
 import org.mskcc.smile.service.ValidateUpdatesMessageHandlingService;
-import org.mskcc.smile.service.util.NatsMsgUtil;
+import org.mskcc.smile.service.util.CoalescingQueue;
+import org.mskcc.smile.service.util.FlowQueue;
+import org.mskcc.smile.service.util.HandoffRingBuffer;
+import org.mskcc.smile.service.util.InstanceProperties;
+import org.mskcc.smile.service.util.MessageFlow;
+import org.mskcc.smile.service.util.PendingAck;
+import org.mskcc.smile.service.util.QueuedMessage;
+import org.mskcc.smile.service.util.RequestHeader;
+import org.mskcc.smile.service.util.SampleUpdateBatch;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Service;
 
 @Service
+@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
 public class ValidateUpdatesMsgHandlingServiceImpl implements ValidateUpdatesMessageHandlingService {
-    @Value("${igo.validate_request_update_topic:}")
-    private String VALIDATOR_REQUEST_UPDATE_TOPIC;
+    private final ValidRequestChecker validRequestChecker;
+    private final MessagePublisher messagePublisher;
+    private final MessagePipeline messagePipeline;
 
-    @Value("${igo.validate_sample_update_topic:}")
-    private String VALIDATOR_SAMPLE_UPDATE_TOPIC;
-
-    @Value("${igo.cmo_label_update_topic:}")
     private String CMO_LABEL_UPDATE_TOPIC;
-
-    @Value("${smile.request_update_topic:}")
     private String SERVER_REQUEST_UPDATE_TOPIC;
-
-    @Value("${smile.sample_update_topic:}")
     private String SERVER_SAMPLE_UPDATE_TOPIC;
-
-    @Value("${num.new_request_handler_threads:1}")
-    private int NUM_NEW_REQUEST_HANDLERS;
-
-    @Autowired
-    private ValidRequestChecker validRequestChecker;
-
-    private static boolean initialized = false;
-    private static Gateway messagingGateway;
     private static final Log LOG = LogFactory.getLog(RequestFilterMsgHandlingServiceIml.class);
     private final ObjectMapper mapper = new ObjectMapper();
-    private static final ExecutorService exec = Executors.newCachedThreadPool();
-    private static volatile boolean shutdownInitiated;
 
-    private static CountDownLatch requestUpdateFilterHandlerShutdownLatch;
-    private static final BlockingQueue<String> requestUpdateFilterQueue =
-            new LinkedBlockingQueue<>();
+    private MessagePipeline.RunningFlow<String> requestUpdateFlow;
+    private MessagePipeline.RunningFlow<List<Object>> sampleUpdateFlow;
+
+    // only used when update coalescing is enabled
+    private static final int MAX_COALESCED_SAMPLE_BATCH_SIZE = 100;
 
-    private static CountDownLatch sampleUpdateFilterHandlerShutdownLatch;
-    private static final BlockingQueue<List<Object>> sampleUpdateFilterQueue =
-            new LinkedBlockingQueue<>();
+    /**
+     * ValidateUpdatesMsgHandlingServiceImpl constructor.
+     * @param validRequestChecker
+     * @param messagePublisher
+     * @param messagePipeline
+     */
+    @Autowired
+    public ValidateUpdatesMsgHandlingServiceImpl(ValidRequestChecker validRequestChecker,
+            MessagePublisher messagePublisher, MessagePipeline messagePipeline) {
+        this.validRequestChecker = validRequestChecker;
+        this.messagePublisher = messagePublisher;
+        this.messagePipeline = messagePipeline;
+    }
 
     @Override
     public void initialize(Gateway gateway) throws Exception {
-        if (!initialized) {
-            messagingGateway = gateway;
-            setupRequestUpdateFilterHandler(messagingGateway, this);
-            setupSampleUpdateFilterHandler(messagingGateway, this);
-            initializeMessageFilterHandlers();
-            initialized = true;
-        } else {
-            LOG.error("Messaging Handler Service has already been initialized,"
-                    + "ignoring request or sample updates.\n");
-        }
+        initialize(gateway, null);
     }
 
-    private void initializeMessageFilterHandlers() throws Exception {
-        requestUpdateFilterHandlerShutdownLatch = new CountDownLatch(NUM_NEW_REQUEST_HANDLERS);
-        final Phaser requestFilterPhaser = new Phaser();
-        requestFilterPhaser.register();
-        for (int lc = 0; lc < NUM_NEW_REQUEST_HANDLERS; lc++) {
-            requestFilterPhaser.register();
-            exec.execute(new RequestUpdateFilterHandler(requestFilterPhaser));
+    @Override
+    public void initialize(Gateway gateway, String instanceName) throws Exception {
+        if (requestUpdateFlow != null) {
+            LOG.error("Messaging Handler Service has already been initialized,"
+                    + "ignoring request or sample updates.\n");
+            return;
         }
-        requestFilterPhaser.arriveAndAwaitAdvance();
-
-        sampleUpdateFilterHandlerShutdownLatch = new CountDownLatch(NUM_NEW_REQUEST_HANDLERS);
-        final Phaser sampleFilterPhaser = new Phaser();
-        sampleFilterPhaser.register();
-        for (int lc = 0; lc < NUM_NEW_REQUEST_HANDLERS; lc++) {
-            sampleFilterPhaser.register();
-            exec.execute(new SampleUpdateFilterHandler(sampleFilterPhaser));
+        InstanceProperties properties = messagePipeline.getInstanceProperties(instanceName);
+        CMO_LABEL_UPDATE_TOPIC = properties.get("igo.cmo_label_update_topic");
+        SERVER_REQUEST_UPDATE_TOPIC = properties.get("smile.request_update_topic");
+        SERVER_SAMPLE_UPDATE_TOPIC = properties.get("smile.sample_update_topic");
+        int defaultHandlers = properties.getInt("num.new_request_handler_threads", 1);
+
+        FlowQueue<String> requestUpdateQueue = null;
+        FlowQueue<List<Object>> sampleUpdateQueue = null;
+        if (properties.getBoolean("coalesce.updates_enabled", false)) {
+            long maxHoldMillis = properties.getLong("coalesce.max_hold_millis", 0);
+            LOG.info("Coalescing of superseded request and sample updates enabled, max hold time (ms): "
+                    + maxHoldMillis);
+            requestUpdateQueue = new CoalescedRequestUpdateQueue(maxHoldMillis);
+            sampleUpdateQueue = new CoalescedSampleUpdateQueue(maxHoldMillis);
+        } else if (properties.getInt("handoff.ring_size", 0) > 0) {
+            int ringSize = properties.getInt("handoff.ring_size", 0);
+            HandoffRingBuffer.WaitStrategy waitStrategy = HandoffRingBuffer.WaitStrategy.valueOf(
+                    StringUtils.defaultIfBlank(properties.get("handoff.wait_strategy"), "yielding")
+                            .trim().toUpperCase());
+            HandoffRingBuffer<QueuedMessage<String>> requestUpdateHandoff =
+                    new HandoffRingBuffer<>(ringSize, waitStrategy);
+            LOG.info("Handing off request and sample updates through rings of size "
+                    + requestUpdateHandoff.getCapacity() + " with wait strategy: " + waitStrategy);
+            requestUpdateQueue = FlowQueue.of(requestUpdateHandoff);
+            sampleUpdateQueue = FlowQueue.of(new HandoffRingBuffer<>(ringSize, waitStrategy));
         }
-        sampleFilterPhaser.arriveAndAwaitAdvance();
+
+        requestUpdateFlow = messagePipeline.run(gateway, MessageFlow.<String>builder(
+                HandlerConcurrencyGate.REQUEST_UPDATE, "request-update-filter", properties)
+                .topic(properties.get("igo.validate_request_update_topic"))
+                .codec(requestJson -> requestJson, requestJson -> requestJson)
+                .header(validRequestChecker::probeRequestHeader)
+                .handler(this::handleRequestUpdateMessage)
+                .outputTopics(SERVER_REQUEST_UPDATE_TOPIC)
+                .handlerThreads(properties.getInt("num.request_update_handler_threads", defaultHandlers))
+                .queue(requestUpdateQueue)
+                .errorMessage("Encountered error during handling of Request Metadata updates.")
+                .build());
+        sampleUpdateFlow = messagePipeline.run(gateway, MessageFlow.<List<Object>>builder(
+                HandlerConcurrencyGate.SAMPLE_UPDATE, "sample-update-filter", properties)
+                .topic(properties.get("igo.validate_sample_update_topic"))
+                .codec(this::decodeSampleUpdates, mapper::writeValueAsString)
+                .header(this::probeSampleUpdates)
+                .handler(this::handleSampleUpdateMessage)
+                .outputTopics(CMO_LABEL_UPDATE_TOPIC, SERVER_SAMPLE_UPDATE_TOPIC)
+                .handlerThreads(properties.getInt("num.sample_update_handler_threads", defaultHandlers))
+                .queue(sampleUpdateQueue)
+                .errorMessage("Encountered error during handling of Sample Metadata updates.")
+                .build());
     }
 
-    private class RequestUpdateFilterHandler implements Runnable {
-        final Phaser phaser;
-        boolean interrupted = false;
+    private List<Object> decodeSampleUpdates(String sampleUpdatesJson) throws Exception {
+        return mapper.readValue(sampleUpdatesJson, List.class);
+    }
 
-        RequestUpdateFilterHandler(Phaser phaser) {
-            this.phaser = phaser;
+    /**
+     * Sample updates are partitioned by the request id of the first sample that has
+     * one, the same key they are published in order by.
+     */
+    private RequestHeader probeSampleUpdates(List<Object> sampleJsonList) {
+        if (sampleJsonList == null) {
+            return null;
         }
-
-        @Override
-        public void run() {
-            phaser.arrive();
-            while (true) {
-                try {
-                    String requestJson = requestUpdateFilterQueue.poll(100, TimeUnit.MILLISECONDS);
-                    if (requestJson != null) {
-                        String requestId = validRequestChecker.getRequestId(requestJson);
-                        Map<String, Object> requestStatus =
-                                validRequestChecker.generateRequestStatusValidationMap(requestJson);
-                        // attach updated request status to the request metadata
-                        String requestWithStatus = updateJsonWithValidationMap(requestJson, requestStatus);
-
-                        Boolean passCheck = (Boolean) requestStatus.get("validationStatus");
-                        if (passCheck) {
-                            LOG.info("Sanity check passed for request updates: " + requestId);
-                        } else {
-                            LOG.error("Sanity check failed on request updates: " + requestWithStatus);
-                        }
-                        messagingGateway.publish(
-                                SERVER_REQUEST_UPDATE_TOPIC,
-                                requestWithStatus);
-                    }
-                    if (interrupted && requestUpdateFilterQueue.isEmpty()) {
-                        break;
-                    }
-                } catch (InterruptedException e) {
-                    interrupted = true;
-                } catch (Exception e) {
-                    LOG.error("Encountered error during handling of Request Metadata updates.", e);
+        for (Object sample : sampleJsonList) {
+            if (sample instanceof Map) {
+                RequestHeader header = RequestHeader.of((Map<String, Object>) sample);
+                if (header.hasRequestId()) {
+                    return header;
                 }
             }
-            requestUpdateFilterHandlerShutdownLatch.countDown();
         }
+        return null;
     }
 
-    private class SampleUpdateFilterHandler implements Runnable {
-        final Phaser phaser;
-        boolean interrupted = false;
-
-        SampleUpdateFilterHandler(Phaser phaser) {
-            this.phaser = phaser;
+    private void handleRequestUpdateMessage(String requestJson, RequestHeader header,
+            PendingAck pendingAck) throws Exception {
+        String requestId = (header == null) ? null : header.getRequestId();
+        Map<String, Object> requestStatus =
+                validRequestChecker.generateRequestStatusValidationMap(requestJson, header);
+        // attach updated request status to the request metadata
+        String requestWithStatus =
+                validRequestChecker.updateJsonWithValidationMap(requestJson, requestStatus);
+
+        Boolean passCheck = (Boolean) requestStatus.get("validationStatus");
+        if (passCheck) {
+            LOG.info("Sanity check passed for request updates: " + requestId);
+        } else {
+            LOG.error("Sanity check failed on request updates: " + requestWithStatus);
         }
+        messagePublisher.publishInOrder(requestId,
+                SERVER_REQUEST_UPDATE_TOPIC,
+                requestWithStatus, pendingAck.track());
+    }
 
-        @Override
-        public void run() {
-            phaser.arrive();
-            while (true) {
-                try {
-                    List<Object> sampleJsonList = sampleUpdateFilterQueue.poll(100, TimeUnit.MILLISECONDS);
-                    if (sampleJsonList != null) {
-                        List<String> cmoSamples = new ArrayList<>();
-                        List<String> nonCmoSamples = new ArrayList<>();
-
-                        for (int i = 0; i < sampleJsonList.size(); i++) {
-                            String sampleJson = mapper.writeValueAsString(sampleJsonList.get(i));
-
-                            Map<String, Object> sampleMap = mapper.readValue(sampleJson, Map.class);
-                            Boolean hasRequestId = validRequestChecker.hasRequestId(sampleJson);
-                            if (!hasRequestId) {
-                                LOG.warn("Cannot extract request ID information from sample update message: "
-                                        + sampleJson);
-                                continue;
-                            }
-
-                            Boolean isCmoSample = validRequestChecker.isCmo(sampleJson);
-                            if (isCmoSample) {
-                                Map<String, Object> sampleStatus =
-                                        validRequestChecker.generateCmoSampleValidationMap(sampleMap);
-                                // attach sample status to sample json to publish
-                                String sampleWithStatus
-                                        = updateJsonWithValidationMap(sampleJson, sampleStatus);
-
-                                Boolean passCheck = (Boolean) sampleStatus.get("validationStatus");
-                                if (passCheck) {
-                                    LOG.info("Sanity check passed, publishing CMO sample"
-                                            + "update to: " + CMO_LABEL_UPDATE_TOPIC);
-                                } else {
-                                    LOG.error("Sanity check failed on CMO sample updates: "
-                                            + sampleWithStatus);
-                                }
-                                cmoSamples.add(sampleWithStatus);
-                            } else {
-                                Map<String, Object> sampleStatus =
-                                        validRequestChecker.generateNonCmoSampleValidationMap(sampleMap);
-                                // attach sample status to sample json to publish
-                                String sampleWithStatus
-                                        = updateJsonWithValidationMap(sampleJson, sampleStatus);
-
-                                Boolean passCheck = (Boolean) sampleStatus.get("validationStatus");
-                                if (passCheck) {
-                                    LOG.info("Sanity check passed, publishing non-CMO "
-                                            + "sample update to: " + SERVER_SAMPLE_UPDATE_TOPIC);
-                                } else {
-                                    LOG.error("Sanity check failed on non-CMO sample update received: "
-                                            + sampleWithStatus);
-                                }
-                                nonCmoSamples.add(sampleWithStatus);
-                            }
-                        }
-
-                        // direct samples to label generator or smile server based on cmo status
-                        // handle the possibility that there could be a mix of both cmo and non-cmo samples
-                        if (!cmoSamples.isEmpty()) {
-                            messagingGateway.publish(CMO_LABEL_UPDATE_TOPIC,
-                                            cmoSamples);
-                        }
-                        // non-cmo samples are published to the smile-server directly and bypass
-                        // the label generator - these should be published individually
-                        // instead of as an array
-                        if (!nonCmoSamples.isEmpty()) {
-                            for (String sample : nonCmoSamples) {
-                                messagingGateway.publish(
-                                        SERVER_SAMPLE_UPDATE_TOPIC,
-                                        sample);
-                            }
-                        }
-                    }
-                    if (interrupted && sampleUpdateFilterQueue.isEmpty()) {
-                        break;
-                    }
-                } catch (InterruptedException e) {
-                    interrupted = true;
-                } catch (Exception e) {
-                    LOG.error("Encountered error during handling of Sample Metadata updates.", e);
-                }
+    private void handleSampleUpdateMessage(List<Object> sampleJsonList, RequestHeader header,
+            PendingAck pendingAck) throws Exception {
+        // samples are classified and validated straight from the parsed list
+        SampleUpdateBatch batch = validRequestChecker.validateSampleUpdates(sampleJsonList);
+        List<String> cmoSamples = batch.getCmoSamples();
+        List<String> nonCmoSamples = batch.getNonCmoSamples();
+        // updates are published in order per request id
+        String orderingKey = batch.getRequestId();
+
+        for (String sampleWithStatus : batch.getFailedSamples()) {
+            LOG.error("Sanity check failed on sample update received: " + sampleWithStatus);
+        }
+        LOG.info("Sanity checked sample updates for request " + orderingKey + ", publishing "
+                + cmoSamples.size() + " CMO sample(s) to: " + CMO_LABEL_UPDATE_TOPIC + " and "
+                + nonCmoSamples.size() + " non-CMO sample(s) to: " + SERVER_SAMPLE_UPDATE_TOPIC
+                + " (" + batch.getFailedSamples().size() + " failed)");
+
+        // direct samples to label generator or smile server based on cmo status
+        // handle the possibility that there could be a mix of both cmo and non-cmo samples
+        if (!cmoSamples.isEmpty()) {
+            messagePublisher.publishInOrder(orderingKey, CMO_LABEL_UPDATE_TOPIC,
+                            cmoSamples, pendingAck.track());
+        }
+        // non-cmo samples are published to the smile-server directly and bypass
+        // the label generator - these should be published individually
+        // instead of as an array
+        if (!nonCmoSamples.isEmpty()) {
+            for (String sample : nonCmoSamples) {
+                messagePublisher.publishInOrder(orderingKey,
+                        SERVER_SAMPLE_UPDATE_TOPIC,
+                        sample, pendingAck.track());
             }
-            sampleUpdateFilterHandlerShutdownLatch.countDown();
         }
     }
 
     @Override
     public void requestUpdateFilterHandler(String requestJson) throws Exception {
-        if (!initialized) {
+        if (requestUpdateFlow == null) {
             throw new IllegalStateException("Message Handling Service has not been initialized");
         }
-        if (!shutdownInitiated) {
-            requestUpdateFilterQueue.put(requestJson);
-        } else {
-            LOG.error("Shutdown initiated, not accepting request: " + requestJson);
-            throw new IllegalStateException("Shutdown initiated, not handling any more requests");
-        }
+        requestUpdateFlow.submit(requestJson);
     }
 
     @Override
     public void sampleUpdateFilterHandler(List<Object> sampleJsonList) throws Exception {
-        if (!initialized) {
+        if (sampleUpdateFlow == null) {
             throw new IllegalStateException("Message Handling Service has not been initialized");
         }
-        if (!shutdownInitiated) {
-            sampleUpdateFilterQueue.put(sampleJsonList);
-        } else {
-            LOG.error("Shutdown initiated, not accepting samples: " + sampleJsonList);
-            throw new IllegalStateException("Shutdown initiated, not handling any more samples");
+        sampleUpdateFlow.submit(sampleJsonList);
+    }
+
+    @Override
+    public void shutdown() throws Exception {
+        if (requestUpdateFlow == null) {
+            throw new IllegalStateException("Message Handling Service has not been initialized");
         }
+        requestUpdateFlow.shutdown();
+        sampleUpdateFlow.shutdown();
     }
 
-    private void setupRequestUpdateFilterHandler(Gateway gateway,
-            ValidateUpdatesMessageHandlingService updateMessageHandlingService)
-            throws Exception {
-        gateway.subscribe(VALIDATOR_REQUEST_UPDATE_TOPIC, Object.class, new MessageConsumer() {
-            public void onMessage(Message msg, Object message) {
-                LOG.info("Received message on topic: " + VALIDATOR_REQUEST_UPDATE_TOPIC);
-                try {
-                    String requestJson = NatsMsgUtil.extractNatsJsonString(msg);
-                    updateMessageHandlingService.requestUpdateFilterHandler(requestJson);
-                } catch (Exception e) {
-                    LOG.error("Exception during processing of Request Metadata update on topic: "
-                            + VALIDATOR_REQUEST_UPDATE_TOPIC, e);
-                }
+    /**
+     * Queues request updates by request id, so that a newer version of a request update
+     * replaces the one still queued.
+     */
+    private class CoalescedRequestUpdateQueue implements FlowQueue<String> {
+        private final CoalescingQueue<Object, QueuedMessage<String>> coalescer;
+
+        CoalescedRequestUpdateQueue(long maxHoldMillis) {
+            this.coalescer = new CoalescingQueue<>(maxHoldMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public List<Object> put(QueuedMessage<String> message) {
+            String requestId = message.getRequestId();
+            // updates without a request id can't be matched to a newer version
+            Object key = StringUtils.isBlank(requestId) ? new Object() : requestId;
+            QueuedMessage<String> superseded = coalescer.put(key, message);
+            if (superseded == null) {
+                return List.of();
             }
-        });
+            LOG.info("Superseded queued request update with newer version for request: "
+                    + requestId + " (total superseded request updates: "
+                    + coalescer.getSupersededCount() + ")");
+            return List.of(superseded);
+        }
+
+        @Override
+        public QueuedMessage<String> poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return coalescer.poll(timeout, unit);
+        }
+
+        @Override
+        public int size() {
+            return coalescer.size();
+        }
     }
 
-    private void setupSampleUpdateFilterHandler(Gateway gateway,
-            ValidateUpdatesMessageHandlingService updateMessageHandlingService)
-            throws Exception {
-        gateway.subscribe(VALIDATOR_SAMPLE_UPDATE_TOPIC, Object.class, new MessageConsumer() {
-            public void onMessage(Message msg, Object message) {
-                LOG.info("Received message on topic: " + VALIDATOR_SAMPLE_UPDATE_TOPIC);
-                try {
-                    String sampleUpdatesJson = NatsMsgUtil.extractNatsJsonString(msg);
-                    List<Object> sampleJsonList = mapper.readValue(sampleUpdatesJson, List.class);
-                    updateMessageHandlingService.sampleUpdateFilterHandler(sampleJsonList);
-                } catch (Exception e) {
-                    LOG.error("Exception during processing of Sample Metadata update on topic: "
-                            + VALIDATOR_SAMPLE_UPDATE_TOPIC, e);
+    /**
+     * Queues sample updates by sample, so that a newer version of a sample update
+     * replaces the one still queued, and provides them in batches. A batch is made up of
+     * the oldest sample update that is ready and every other ready sample update of the
+     * same request (up to a max batch size), whichever message they originally arrived in.
+     * Samples of different requests are never published together, since a batch is
+     * published in order by its request id. Each sample is journaled on its own.
+     */
+    private class CoalescedSampleUpdateQueue implements FlowQueue<List<Object>> {
+        private final CoalescingQueue<Object, QueuedMessage<Object>> coalescer;
+
+        CoalescedSampleUpdateQueue(long maxHoldMillis) {
+            this.coalescer = new CoalescingQueue<>(maxHoldMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public List<Object> put(QueuedMessage<List<Object>> message) {
+            List<Object> superseded = new ArrayList<>();
+            for (Object sample : message.getMessage()) {
+                String sampleId = getSampleCoalescingKey(sample);
+                Object key = (sampleId == null) ? new Object() : sampleId;
+                QueuedMessage<Object> replaced = coalescer.put(key,
+                        new QueuedMessage<>(sample, null, 0, message.getEnqueuedNanos()));
+                if (replaced != null) {
+                    superseded.add(replaced.getMessage());
+                    LOG.info("Superseded queued sample update with newer version for sample: "
+                            + sampleId + " (total superseded sample updates: "
+                            + coalescer.getSupersededCount() + ")");
                 }
             }
-        });
+            return superseded;
+        }
+
+        @Override
+        public Object[] getJournalKeys(QueuedMessage<List<Object>> message) {
+            return message.getMessage().toArray();
+        }
+
+        @Override
+        public QueuedMessage<List<Object>> poll(long timeout, TimeUnit unit) throws InterruptedException {
+            QueuedMessage<Object> first = coalescer.poll(timeout, unit);
+            if (first == null) {
+                return null;
+            }
+            String requestId = getSampleRequestId(first.getMessage());
+            List<QueuedMessage<Object>> batch = new ArrayList<>();
+            batch.add(first);
+            coalescer.drainReady(batch, MAX_COALESCED_SAMPLE_BATCH_SIZE - 1,
+                    other -> Objects.equals(requestId, getSampleRequestId(other.getMessage())));
+            List<Object> sampleJsonList = new ArrayList<>();
+            long enqueuedNanos = first.getEnqueuedNanos();
+            for (QueuedMessage<Object> sample : batch) {
+                sampleJsonList.add(sample.getMessage());
+                enqueuedNanos = Math.min(enqueuedNanos, sample.getEnqueuedNanos());
+            }
+            return new QueuedMessage<>(sampleJsonList, probeSampleUpdates(sampleJsonList), 0, enqueuedNanos);
+        }
+
+        @Override
+        public int size() {
+            return coalescer.size();
+        }
     }
 
-    @Override
-    public void shutdown() throws Exception {
-        if (!initialized) {
-            throw new IllegalStateException("Message Handling Service has not been initialized");
+    private String getSampleRequestId(Object sample) {
+        if (!(sample instanceof Map)) {
+            return null;
         }
-        exec.shutdownNow();
-        requestUpdateFilterHandlerShutdownLatch.await();
-        sampleUpdateFilterHandlerShutdownLatch.await();
-        shutdownInitiated = true;
+        return RequestHeader.of((Map<String, Object>) sample).getRequestId();
     }
 
-    /**
-     * Updates the input json with the validation map provided.
-     * The validation map contains the validation report and validation status.
-     * @param inputJson
-     * @param validationMap
-     * @return String
-     * @throws JsonProcessingException
-     */
-    private String updateJsonWithValidationMap(String inputJson, Map<String, Object> validationMap)
-            throws JsonProcessingException {
-        Map<String, Object> inputJsonMap = mapper.readValue(inputJson, Map.class);
-        inputJsonMap.put("status", validationMap);
-        return mapper.writeValueAsString(inputJsonMap);
+    private String getSampleCoalescingKey(Object sample) {
+        if (!(sample instanceof Map)) {
+            return null;
+        }
+        Map<String, Object> sampleMap = (Map<String, Object>) sample;
+        Object sampleId = ObjectUtils.firstNonNull(sampleMap.get("igoId"), sampleMap.get("primaryId"));
+        return (sampleId == null || StringUtils.isBlank(sampleId.toString())) ? null : sampleId.toString();
     }
 }
@@ -0,0 +1,170 @@
+package org.mskcc.smile.service.impl;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.smile.service.ValidRequestChecker;
+import org.mskcc.smile.service.WarmupService;
+import org.mskcc.smile.service.util.NatsMsgUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.logging.LogLevel;
+import org.springframework.boot.logging.LoggerConfiguration;
+import org.springframework.boot.logging.LoggingSystem;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs a corpus of requests through the same decoding, validation and serialization
+ * steps as live messages before subscribing, so that the first real requests after a
+ * deploy run on compiled code instead of in the interpreter. Nothing is published.
+ *
+ * <p>The corpus is read from warmup.corpus (a directory of request json files) if set,
+ * otherwise the requests bundled in the jar are used. A non-CMO copy of each request is
+ * generated so that both validation paths are warmed up. The request checker only logs
+ * errors while warming up.
+ */
+@Component
+public class WarmupServiceImpl implements WarmupService {
+    private static final Log LOG = LogFactory.getLog(WarmupServiceImpl.class);
+    private static final String BUNDLED_CORPUS = "classpath*:warmup/*.json";
+    private static final String CHECKER_LOGGER = ValidRequestCheckerImpl.class.getName();
+
+    @Value("${warmup.enabled:false}")
+    private Boolean enabled;
+
+    @Value("${warmup.corpus:}")
+    private String corpusPath;
+
+    @Value("${warmup.iterations:2000}")
+    private int iterations;
+
+    @Value("${warmup.max_seconds:60}")
+    private int maxSeconds;
+
+    @Autowired
+    private ValidRequestChecker validRequestChecker;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Handles requests from the corpus until warmup.iterations have been handled
+     * or warmup.max_seconds have passed, whichever comes first.
+     * @throws Exception
+     */
+    @Override
+    public void warmUp() throws Exception {
+        if (!enabled) {
+            return;
+        }
+        List<String> corpus = loadCorpus();
+        if (corpus.isEmpty()) {
+            LOG.warn("Warm-up corpus is empty, skipping warm-up");
+            return;
+        }
+        LOG.info("Warming up with a corpus of " + corpus.size() + " request(s), iterations: " + iterations
+                + ", max seconds: " + maxSeconds);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(maxSeconds);
+        int handled = 0;
+        int failed = 0;
+        // corpus requests that fail validation would otherwise log a warning with the full
+        // request json on every iteration, e.g. the non-CMO copies with the CMO request filter on
+        LoggingSystem loggingSystem = LoggingSystem.get(getClass().getClassLoader());
+        LoggerConfiguration checkerLogConfig = loggingSystem.getLoggerConfiguration(CHECKER_LOGGER);
+        LogLevel checkerLogLevel = (checkerLogConfig == null) ? null : checkerLogConfig.getConfiguredLevel();
+        loggingSystem.setLogLevel(CHECKER_LOGGER, LogLevel.ERROR);
+        try {
+            while (handled < iterations && System.nanoTime() < deadline) {
+                try {
+                    handle(corpus.get(handled % corpus.size()));
+                } catch (Exception e) {
+                    if (failed++ == 0) {
+                        LOG.debug("Error handling warm-up request", e);
+                    }
+                }
+                handled++;
+            }
+        } finally {
+            loggingSystem.setLogLevel(CHECKER_LOGGER, checkerLogLevel);
+        }
+        LOG.info("Warm-up finished, handled " + handled + " request(s) (" + failed + " failed) in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    private void handle(String requestJson) throws Exception {
+        // decoded the same way as a message received from nats
+        String decodedJson = NatsMsgUtil.extractNatsJsonString(mapper.writeValueAsBytes(requestJson));
+
+        // request filter
+        validRequestChecker.getRequestId(decodedJson);
+        String filteredRequestJson = validRequestChecker.getFilteredValidRequestJson(decodedJson);
+        if (filteredRequestJson != null) {
+            validRequestChecker.generateValidationReport(decodedJson, filteredRequestJson);
+        }
+
+        // promoted requests
+        Map<String, Object> promotedRequestJsonMap =
+                validRequestChecker.generatePromotedRequestValidationMap(decodedJson);
+        Map<String, Object> requestStatus =
+                mapper.convertValue(promotedRequestJsonMap.get("status"), Map.class);
+        validRequestChecker.updateJsonWithValidationMap(decodedJson, requestStatus);
+
+        // sample updates
+        Map<String, Object> requestMap = mapper.readValue(decodedJson, Map.class);
+        if (requestMap.get("samples") instanceof List) {
+            for (Object sample : (List<Object>) requestMap.get("samples")) {
+                String sampleJson = mapper.writeValueAsString(sample);
+                Map<String, Object> sampleMap = mapper.readValue(sampleJson, Map.class);
+                Map<String, Object> sampleStatus = validRequestChecker.isCmo(decodedJson)
+                        ? validRequestChecker.generateCmoSampleValidationMap(sampleMap)
+                        : validRequestChecker.generateNonCmoSampleValidationMap(sampleMap);
+                validRequestChecker.updateJsonWithValidationMap(sampleJson, sampleStatus);
+            }
+        }
+    }
+
+    private List<String> loadCorpus() throws Exception {
+        List<String> requests = new ArrayList<>();
+        if (StringUtils.isBlank(corpusPath)) {
+            Resource[] resources = new PathMatchingResourcePatternResolver().getResources(BUNDLED_CORPUS);
+            for (Resource resource : resources) {
+                requests.add(resource.getContentAsString(StandardCharsets.UTF_8));
+            }
+        } else {
+            try (Stream<Path> paths = Files.walk(Paths.get(corpusPath))) {
+                for (Path path : paths.filter(p -> p.toString().endsWith(".json")).toList()) {
+                    requests.add(Files.readString(path));
+                }
+            }
+        }
+        List<String> corpus = new ArrayList<>();
+        for (String requestJson : requests) {
+            Map<String, Object> requestMap;
+            try {
+                requestMap = mapper.readValue(requestJson, Map.class);
+            } catch (JsonProcessingException e) {
+                LOG.warn("Skipping warm-up request that is not valid json");
+                continue;
+            }
+            corpus.add(requestJson);
+            if (Boolean.TRUE.equals(requestMap.get("isCmoRequest"))) {
+                requestMap.put("isCmoRequest", Boolean.FALSE);
+                corpus.add(mapper.writeValueAsString(requestMap));
+            }
+        }
+        return corpus;
+    }
+}
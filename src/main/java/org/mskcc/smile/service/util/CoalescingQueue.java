@@ -0,0 +1,178 @@
+package org.mskcc.smile.service.util;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * FIFO queue keyed by message identity where a newer value replaces an older one
+ * that is still waiting to be taken (last-writer-wins on arrival order).
+ *
+ * <p>An entry that has only ever had one value is released as soon as a consumer asks
+ * for it. Once a newer value has replaced it, the key is treated as part of a burst and
+ * held until the configured hold time after its first arrival has passed, so further
+ * versions can be absorbed. A replaced entry keeps its original position and arrival
+ * time, so a key which is updated continuously is still released no later than the hold
+ * time after its first arrival. Entries are released in order of first arrival, skipping
+ * over held ones. With a hold time of zero nothing is held, and coalescing only happens
+ * while there is a backlog.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class CoalescingQueue<K, V> implements MessageSource<V> {
+    private final long maxHoldNanos;
+    private final Map<K, Entry<V>> entries = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final AtomicLong supersededCount = new AtomicLong();
+
+    public CoalescingQueue(long maxHold, TimeUnit unit) {
+        this.maxHoldNanos = unit.toNanos(Math.max(0L, maxHold));
+    }
+
+    /**
+     * Adds a value for the given key, replacing any value for the same key that
+     * has not been taken yet.
+     * @param key
+     * @param value
+     * @return the older queued value that was superseded, or null
+     */
+    public V put(K key, V value) {
+        lock.lock();
+        try {
+            Entry<V> entry = entries.get(key);
+            if (entry != null) {
+                V superseded = entry.value;
+                entry.value = value;
+                entry.superseded = true;
+                supersededCount.incrementAndGet();
+                return superseded;
+            }
+            entries.put(key, new Entry<>(value, System.nanoTime()));
+            notEmpty.signal();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the oldest value that is not being held, waiting up to the
+     * given timeout.
+     * @param timeout
+     * @param unit
+     * @return V or null if nothing became available before the timeout
+     * @throws InterruptedException
+     */
+    @Override
+    public V poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remainingNanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                long waitNanos = remainingNanos;
+                long now = System.nanoTime();
+                Iterator<Entry<V>> it = entries.values().iterator();
+                while (it.hasNext()) {
+                    Entry<V> entry = it.next();
+                    long untilReleaseNanos = getUntilReleaseNanos(entry, now);
+                    if (untilReleaseNanos <= 0) {
+                        it.remove();
+                        return entry.value;
+                    }
+                    waitNanos = Math.min(waitNanos, untilReleaseNanos);
+                }
+                if (remainingNanos <= 0) {
+                    return null;
+                }
+                long slept = waitNanos - notEmpty.awaitNanos(waitNanos);
+                remainingNanos -= slept;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes up to maxElements values that are not being held and adds them to the
+     * given collection, without waiting.
+     * @param c
+     * @param maxElements
+     * @return number of elements transferred
+     */
+    public int drainReady(Collection<? super V> c, int maxElements) {
+        return drainReady(c, maxElements, value -> true);
+    }
+
+    /**
+     * Removes up to maxElements values that are not being held and match the filter,
+     * and adds them to the given collection, without waiting. Values that don't match
+     * keep their position.
+     * @param c
+     * @param maxElements
+     * @param filter
+     * @return number of elements transferred
+     */
+    public int drainReady(Collection<? super V> c, int maxElements, Predicate<? super V> filter) {
+        lock.lock();
+        try {
+            int n = 0;
+            long now = System.nanoTime();
+            Iterator<Entry<V>> it = entries.values().iterator();
+            while (n < maxElements && it.hasNext()) {
+                Entry<V> entry = it.next();
+                if (getUntilReleaseNanos(entry, now) <= 0 && filter.test(entry.value)) {
+                    it.remove();
+                    c.add(entry.value);
+                    n++;
+                }
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of keys currently queued.
+     * @return int
+     */
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSupersededCount() {
+        return supersededCount.get();
+    }
+
+    /**
+     * Only entries that have been superseded are held, until the hold time after their
+     * first arrival has passed.
+     */
+    private long getUntilReleaseNanos(Entry<V> entry, long now) {
+        return entry.superseded ? maxHoldNanos - (now - entry.arrivalNanos) : 0L;
+    }
+
+    private static class Entry<V> {
+        V value;
+        boolean superseded;
+        final long arrivalNanos;
+
+        Entry(V value, long arrivalNanos) {
+            this.value = value;
+            this.arrivalNanos = arrivalNanos;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.mskcc.smile.service.util;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue between the subscriber of a message flow and its handlers.
+ *
+ * <p>Flows queue their messages in a blocking queue unless they are given their own
+ * queue, e.g. one that merges superseded versions of a message. Messages are journaled
+ * by the objects getJournalKeys returns for them and a queued message that another one
+ * supersedes is acknowledged without being handled.
+ * @param <T> message type
+ */
+public interface FlowQueue<T> extends MessageSource<QueuedMessage<T>> {
+    /**
+     * Queues the message.
+     * @param message
+     * @return journal keys of the queued messages it superseded, empty if none
+     * @throws InterruptedException
+     */
+    List<Object> put(QueuedMessage<T> message) throws InterruptedException;
+
+    /**
+     * Returns the objects the journal tracks the message by. Each of them is acknowledged
+     * once it has been handled or superseded.
+     * @param message
+     * @return Object[]
+     */
+    default Object[] getJournalKeys(QueuedMessage<T> message) {
+        return new Object[] {message};
+    }
+
+    /**
+     * Wraps a blocking queue as a flow queue.
+     * @param <T>
+     * @param queue
+     * @return FlowQueue
+     */
+    static <T> FlowQueue<T> of(BlockingQueue<QueuedMessage<T>> queue) {
+        return new FlowQueue<T>() {
+            @Override
+            public List<Object> put(QueuedMessage<T> message) throws InterruptedException {
+                queue.put(message);
+                return List.of();
+            }
+
+            @Override
+            public QueuedMessage<T> poll(long timeout, TimeUnit unit) throws InterruptedException {
+                return queue.poll(timeout, unit);
+            }
+
+            @Override
+            public int size() {
+                return queue.size();
+            }
+        };
+    }
+
+    /**
+     * Wraps a handoff ring as a flow queue.
+     * @param <T>
+     * @param ring
+     * @return FlowQueue
+     */
+    static <T> FlowQueue<T> of(HandoffRingBuffer<QueuedMessage<T>> ring) {
+        return new FlowQueue<T>() {
+            @Override
+            public List<Object> put(QueuedMessage<T> message) throws InterruptedException {
+                ring.put(message);
+                return List.of();
+            }
+
+            @Override
+            public QueuedMessage<T> poll(long timeout, TimeUnit unit) throws InterruptedException {
+                return ring.poll(timeout, unit);
+            }
+
+            @Override
+            public int size() {
+                return ring.size();
+            }
+        };
+    }
+}
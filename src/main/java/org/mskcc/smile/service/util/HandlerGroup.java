@@ -0,0 +1,239 @@
+package org.mskcc.smile.service.util;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Group of handler threads polling the same message source whose size can be
+ * changed at runtime.
+ *
+ * <p>Growing the group starts new handlers right away. Shrinking it lowers the target
+ * size and surplus handlers retire between messages, so a message that has already
+ * been taken off the source is always finished by the handler that took it.
+ *
+ * <p>Groups can be given a set of peer groups. A handler whose own source is empty
+ * then takes a message from a peer that has a backlog and handles it with that peer's
+ * handler, so idle capacity in one group is shared with the others.
+ * @param <T> message type
+ */
+public class HandlerGroup<T> {
+    private static final Log LOG = LogFactory.getLog(HandlerGroup.class);
+
+    private final String name;
+    private final ExecutorService exec;
+    private final MessageSource<T> source;
+    private final MessageHandler<T> handler;
+    private final String errorMessage;
+    private final AtomicLong handledCount = new AtomicLong();
+    private final AtomicLong totalHandlingNanos = new AtomicLong();
+    private volatile List<HandlerGroup<?>> peers = List.of();
+    private volatile boolean stopping = false;
+    private int targetSize = 0;
+    private int activeHandlers = 0;
+
+    @FunctionalInterface
+    public interface MessageHandler<T> {
+        void handle(T message) throws Exception;
+    }
+
+    /**
+     * HandlerGroup constructor.
+     * @param name
+     * @param exec
+     * @param source
+     * @param handler
+     * @param errorMessage logged along with any exception thrown by the handler
+     */
+    public HandlerGroup(String name, ExecutorService exec, MessageSource<T> source,
+            MessageHandler<T> handler, String errorMessage) {
+        this.name = name;
+        this.exec = exec;
+        this.source = source;
+        this.handler = handler;
+        this.errorMessage = errorMessage;
+    }
+
+    /**
+     * Starts the given number of handlers and waits until all of them are running.
+     * @param size
+     */
+    public void start(int size) {
+        final Phaser phaser = new Phaser();
+        phaser.register();
+        synchronized (this) {
+            targetSize = size;
+            while (activeHandlers < targetSize) {
+                phaser.register();
+                launchHandler(phaser);
+            }
+        }
+        phaser.arriveAndAwaitAdvance();
+    }
+
+    /**
+     * Changes the number of handlers in the group.
+     * @param size
+     */
+    public synchronized void resize(int size) {
+        if (exec.isShutdown()) {
+            return;
+        }
+        targetSize = size;
+        while (activeHandlers < targetSize) {
+            launchHandler(null);
+        }
+    }
+
+    /**
+     * Sets the groups that idle handlers of this group may take messages from.
+     * @param peers may include this group, which is skipped
+     */
+    public void setPeers(List<HandlerGroup<?>> peers) {
+        this.peers = peers;
+    }
+
+    /**
+     * Stops the group once its source has been drained. Unlike interrupting the
+     * handlers this leaves threads of a shared executor running for other groups.
+     */
+    public void stop() {
+        stopping = true;
+    }
+
+    /**
+     * Handles the next message in the source if one is available without waiting.
+     * @return true if a message was handled
+     * @throws Exception
+     */
+    public boolean handleReady() throws Exception {
+        T message = source.poll(0, TimeUnit.MILLISECONDS);
+        if (message == null) {
+            return false;
+        }
+        handle(message);
+        return true;
+    }
+
+    /**
+     * Blocks until every handler in the group has exited.
+     * @throws InterruptedException
+     */
+    public synchronized void awaitTermination() throws InterruptedException {
+        while (activeHandlers > 0) {
+            wait();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized int getTargetSize() {
+        return targetSize;
+    }
+
+    public int getQueueDepth() {
+        return source.size();
+    }
+
+    public long getHandledCount() {
+        return handledCount.get();
+    }
+
+    public long getTotalHandlingNanos() {
+        return totalHandlingNanos.get();
+    }
+
+    private void handle(T message) throws Exception {
+        long start = System.nanoTime();
+        try {
+            handler.handle(message);
+        } finally {
+            handledCount.incrementAndGet();
+            totalHandlingNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private boolean handleFromPeer() {
+        for (HandlerGroup<?> peer : peers) {
+            if (peer == this || peer.getQueueDepth() == 0) {
+                continue;
+            }
+            try {
+                if (peer.handleReady()) {
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (Exception e) {
+                LOG.error(peer.errorMessage, e);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void launchHandler(Phaser phaser) {
+        activeHandlers++;
+        exec.execute(new Handler(phaser));
+    }
+
+    private synchronized boolean retireIfSurplus() {
+        if (activeHandlers > targetSize) {
+            handlerExited();
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void handlerExited() {
+        activeHandlers--;
+        notifyAll();
+    }
+
+    private class Handler implements Runnable {
+        final Phaser phaser;
+        boolean interrupted = false;
+
+        Handler(Phaser phaser) {
+            this.phaser = phaser;
+        }
+
+        @Override
+        public void run() {
+            if (phaser != null) {
+                phaser.arrive();
+            }
+            while (true) {
+                try {
+                    T message = source.poll(0, TimeUnit.MILLISECONDS);
+                    if (message == null && (interrupted || stopping || !handleFromPeer())) {
+                        message = source.poll(100, TimeUnit.MILLISECONDS);
+                    }
+                    if (message != null) {
+                        handle(message);
+                    }
+                    boolean draining = interrupted || stopping;
+                    if (draining && source.isEmpty()) {
+                        break;
+                    }
+                    if (!draining && retireIfSurplus()) {
+                        LOG.debug("Retired surplus handler from group: " + name);
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (Exception e) {
+                    LOG.error(errorMessage, e);
+                }
+            }
+            handlerExited();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package org.mskcc.smile.service.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded, preallocated ring used to hand messages from a subscriber callback to the
+ * handlers polling it without allocating a node or taking a lock per message.
+ *
+ * <p>Each slot carries a sequence number that tells producers and consumers whether the
+ * slot is free to write or ready to read, so both sides only need a CAS on their own
+ * position counter. The subscriber is normally the only producer, but nothing breaks if
+ * several threads put at once.
+ *
+ * <p>How an idle consumer (or a producer facing a full ring) waits is configurable:
+ * - YIELDING: spin briefly, then yield the cpu between checks
+ * - BUSY_SPIN: spin on the ring, lowest latency but keeps a core busy per idle handler
+ * - BLOCKING: consumers sleep on a condition that producers signal only when someone is
+ *   waiting, lowest cpu use of the three
+ * @param <T> message type
+ */
+public class HandoffRingBuffer<T> implements MessageSource<T> {
+    private static final int SPIN_TRIES = 100;
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    public enum WaitStrategy {
+        BLOCKING, YIELDING, BUSY_SPIN
+    }
+
+    private final int mask;
+    private final AtomicReferenceArray<T> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong putPosition = new AtomicLong();
+    private final AtomicLong takePosition = new AtomicLong();
+    private final WaitStrategy waitStrategy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+
+    /**
+     * HandoffRingBuffer constructor.
+     * @param capacity rounded up to the next power of two
+     * @param waitStrategy
+     */
+    public HandoffRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Adds a message to the ring, waiting for a free slot if the ring is full.
+     * @param message
+     * @throws InterruptedException
+     */
+    public void put(T message) throws InterruptedException {
+        int tries = 0;
+        while (!offer(message)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            idle(tries++, FULL_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Adds a message to the ring if a slot is free.
+     * @param message
+     * @return true if the message was added
+     */
+    public boolean offer(T message) {
+        if (!write(message)) {
+            return false;
+        }
+        if (waitStrategy == WaitStrategy.BLOCKING && waitingConsumers.get() > 0) {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        T message = poll();
+        if (message != null) {
+            return message;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int tries = 0;
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                return null;
+            }
+            if (waitStrategy == WaitStrategy.BLOCKING) {
+                awaitMessage(remainingNanos);
+            } else {
+                idle(tries++, remainingNanos);
+            }
+            message = poll();
+            if (message != null) {
+                return message;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        long size = putPosition.get() - takePosition.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    private boolean write(T message) {
+        long position = putPosition.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long diff = sequences.getAcquire(index) - position;
+            if (diff == 0) {
+                if (putPosition.compareAndSet(position, position + 1)) {
+                    slots.setPlain(index, message);
+                    sequences.setRelease(index, position + 1);
+                    return true;
+                }
+                position = putPosition.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                position = putPosition.get();
+            }
+        }
+    }
+
+    private T poll() {
+        long position = takePosition.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long diff = sequences.getAcquire(index) - (position + 1);
+            if (diff == 0) {
+                if (takePosition.compareAndSet(position, position + 1)) {
+                    T message = slots.getPlain(index);
+                    slots.setPlain(index, null);
+                    sequences.setRelease(index, position + mask + 1);
+                    return message;
+                }
+                position = takePosition.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                position = takePosition.get();
+            }
+        }
+    }
+
+    /**
+     * Registers as a waiting consumer before re-checking the ring so that a producer
+     * either sees the waiter and signals it or the consumer sees the new message.
+     */
+    private void awaitMessage(long remainingNanos) throws InterruptedException {
+        waitingConsumers.incrementAndGet();
+        lock.lockInterruptibly();
+        try {
+            if (size() == 0) {
+                notEmpty.awaitNanos(remainingNanos);
+            }
+        } finally {
+            lock.unlock();
+            waitingConsumers.decrementAndGet();
+        }
+    }
+
+    private void idle(int tries, long maxParkNanos) {
+        switch (waitStrategy) {
+            case BUSY_SPIN:
+                Thread.onSpinWait();
+                break;
+            case YIELDING:
+                if (tries < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                } else {
+                    Thread.yield();
+                }
+                break;
+            default:
+                LockSupport.parkNanos(Math.min(maxParkNanos, FULL_PARK_NANOS));
+                break;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.mskcc.smile.service.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The lane (e.g. the regular or the bulk queue) that each request queued or being
+ * handled was routed to. A newer version of a request that is still in flight follows
+ * it into the same lane, so it can't overtake the older version by being routed to a
+ * lane with a shorter backlog.
+ * @param <L> lane type
+ */
+public class InFlightRequests<L> {
+    private final Map<String, Pin<L>> pins = new HashMap<>();
+
+    /**
+     * Returns the lane the request is already in flight in, or the given lane if it
+     * isn't. Every call for a request id must be matched by a call to release once the
+     * message has been handled. Messages without a request id are not tracked.
+     * @param requestId
+     * @param lane lane chosen for the message on its own merits
+     * @return L
+     */
+    public synchronized L route(String requestId, L lane) {
+        if (StringUtils.isBlank(requestId)) {
+            return lane;
+        }
+        Pin<L> pin = pins.get(requestId);
+        if (pin == null) {
+            pins.put(requestId, new Pin<>(lane));
+            return lane;
+        }
+        pin.count++;
+        return pin.lane;
+    }
+
+    /**
+     * Releases one message of the given request once it has been handled.
+     * @param requestId
+     */
+    public synchronized void release(String requestId) {
+        if (StringUtils.isBlank(requestId)) {
+            return;
+        }
+        Pin<L> pin = pins.get(requestId);
+        if (pin != null && --pin.count == 0) {
+            pins.remove(requestId);
+        }
+    }
+
+    /**
+     * Returns the number of requests in flight.
+     * @return int
+     */
+    public synchronized int size() {
+        return pins.size();
+    }
+
+    private static class Pin<L> {
+        final L lane;
+        int count = 1;
+
+        Pin(L lane) {
+            this.lane = lane;
+        }
+    }
+}
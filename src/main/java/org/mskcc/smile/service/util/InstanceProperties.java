@@ -0,0 +1,96 @@
+package org.mskcc.smile.service.util;
+
+import org.springframework.core.env.Environment;
+
+/**
+ * Settings of a named pipeline instance. A setting given as pipeline.[instance].[key]
+ * overrides the top-level [key] for that instance only, so instances only need to
+ * configure what differs between them (typically their topics).
+ */
+public class InstanceProperties {
+    private final Environment environment;
+    private final String instanceName;
+
+    public InstanceProperties(Environment environment, String instanceName) {
+        this.environment = environment;
+        this.instanceName = instanceName;
+    }
+
+    public String getInstanceName() {
+        return instanceName;
+    }
+
+    /**
+     * Returns the instance-specific value of the setting if there is one, otherwise
+     * the top-level value.
+     * @param key
+     * @return String, empty if the setting isn't set
+     */
+    public String get(String key) {
+        return getProperty(key, String.class, "");
+    }
+
+    /**
+     * Returns the instance-specific value of the setting if there is one, otherwise
+     * the top-level value.
+     * @param key
+     * @param defaultValue used if the setting isn't set at either level
+     * @return int
+     */
+    public int getInt(String key, int defaultValue) {
+        return getProperty(key, Integer.class, defaultValue);
+    }
+
+    /**
+     * Returns the instance-specific value of the setting if there is one, otherwise
+     * the top-level value.
+     * @param key
+     * @param defaultValue used if the setting isn't set at either level
+     * @return long
+     */
+    public long getLong(String key, long defaultValue) {
+        return getProperty(key, Long.class, defaultValue);
+    }
+
+    /**
+     * Returns the instance-specific value of the setting if there is one, otherwise
+     * the top-level value.
+     * @param key
+     * @param defaultValue used if the setting isn't set at either level
+     * @return boolean
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        return getProperty(key, Boolean.class, defaultValue);
+    }
+
+    /**
+     * Returns the share of requests this instance handles, from partition.instance_index
+     * and partition.instance_count. Instances don't partition by default.
+     * @return RequestPartition
+     */
+    public RequestPartition getRequestPartition() {
+        return new RequestPartition(getInt("partition.instance_index", 0),
+                getInt("partition.instance_count", 1));
+    }
+
+    /**
+     * Prefixes the name with the instance name so that names of handler groups and
+     * journal streams are unique across instances.
+     * @param name
+     * @return String
+     */
+    public String qualify(String name) {
+        return (instanceName == null) ? name : instanceName + "/" + name;
+    }
+
+    private <V> V getProperty(String key, Class<V> type, V defaultValue) {
+        if (environment == null) {
+            return defaultValue;
+        }
+        V value = environment.getProperty(key, type, defaultValue);
+        if (instanceName == null) {
+            return value;
+        }
+        return environment.getProperty("pipeline." + instanceName + "." + key, type, value);
+    }
+}
@@ -0,0 +1,238 @@
+package org.mskcc.smile.service.util;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Definition of a message flow run by the message pipeline: the topic it subscribes to,
+ * how its messages are decoded and probed for their routing fields, the handler that
+ * validates them and publishes the results to the output topics, and how many handlers
+ * it runs.
+ *
+ * <p>Everything the flows have in common is left to the pipeline: partitioning between
+ * instances, off-heap buffering, journaling, routing large requests to bulk handlers and
+ * rejecting messages after shutdown.
+ * @param <T> message type
+ */
+public class MessageFlow<T> {
+    private final String name;
+    private final String groupName;
+    private final InstanceProperties properties;
+    private final String topic;
+    private final Decoder<T> decoder;
+    private final Encoder<T> encoder;
+    private final HeaderProbe<T> headerProbe;
+    private final Handler<T> handler;
+    private final List<String> outputTopics;
+    private final int handlerThreads;
+    private final int bulkHandlerThreads;
+    private final FlowQueue<T> queue;
+    private final String errorMessage;
+
+    /**
+     * Decodes a message from its text, the JSON string carried by the NATS message.
+     */
+    @FunctionalInterface
+    public interface Decoder<T> {
+        T decode(String text) throws Exception;
+    }
+
+    /**
+     * Encodes a message back into its text, for the journal.
+     */
+    @FunctionalInterface
+    public interface Encoder<T> {
+        String encode(T message) throws Exception;
+    }
+
+    /**
+     * Returns the routing fields of a message, null if it has none.
+     */
+    @FunctionalInterface
+    public interface HeaderProbe<T> {
+        RequestHeader probe(T message) throws Exception;
+    }
+
+    /**
+     * Handles a message, tracking everything it publishes with the pending ack.
+     */
+    @FunctionalInterface
+    public interface Handler<T> {
+        void handle(T message, RequestHeader header, PendingAck pendingAck) throws Exception;
+    }
+
+    private MessageFlow(Builder<T> builder) {
+        this.name = builder.name;
+        this.groupName = builder.groupName;
+        this.properties = builder.properties;
+        this.topic = builder.topic;
+        this.decoder = builder.decoder;
+        this.encoder = builder.encoder;
+        this.headerProbe = builder.headerProbe;
+        this.handler = builder.handler;
+        this.outputTopics = builder.outputTopics;
+        this.handlerThreads = builder.handlerThreads;
+        this.bulkHandlerThreads = builder.bulkHandlerThreads;
+        this.queue = builder.queue;
+        this.errorMessage = builder.errorMessage;
+    }
+
+    /**
+     * Starts the definition of a message flow.
+     * @param <T>
+     * @param name message class of the flow, also the name of its journal stream
+     * @param groupName name of the flow's handler group
+     * @param properties settings of the pipeline instance the flow belongs to
+     * @return Builder
+     */
+    public static <T> Builder<T> builder(String name, String groupName, InstanceProperties properties) {
+        return new Builder<>(name, groupName, properties);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getGroupName() {
+        return groupName;
+    }
+
+    public InstanceProperties getProperties() {
+        return properties;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public Decoder<T> getDecoder() {
+        return decoder;
+    }
+
+    public Encoder<T> getEncoder() {
+        return encoder;
+    }
+
+    public HeaderProbe<T> getHeaderProbe() {
+        return headerProbe;
+    }
+
+    public Handler<T> getHandler() {
+        return handler;
+    }
+
+    public List<String> getOutputTopics() {
+        return outputTopics;
+    }
+
+    public int getHandlerThreads() {
+        return handlerThreads;
+    }
+
+    public int getBulkHandlerThreads() {
+        return bulkHandlerThreads;
+    }
+
+    /**
+     * Returns the queue given to the flow, null if it uses the pipeline's default queues.
+     * @return FlowQueue
+     */
+    public FlowQueue<T> getQueue() {
+        return queue;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public static class Builder<T> {
+        private final String name;
+        private final String groupName;
+        private final InstanceProperties properties;
+        private String topic;
+        private Decoder<T> decoder;
+        private Encoder<T> encoder;
+        private HeaderProbe<T> headerProbe = message -> null;
+        private Handler<T> handler;
+        private List<String> outputTopics = List.of();
+        private int handlerThreads = 1;
+        private int bulkHandlerThreads = 0;
+        private FlowQueue<T> queue;
+        private String errorMessage = "Error during message handling";
+
+        private Builder(String name, String groupName, InstanceProperties properties) {
+            this.name = Objects.requireNonNull(name);
+            this.groupName = Objects.requireNonNull(groupName);
+            this.properties = Objects.requireNonNull(properties);
+        }
+
+        public Builder<T> topic(String topic) {
+            this.topic = topic;
+            return this;
+        }
+
+        /**
+         * Sets how messages are decoded from and encoded back into their text.
+         * @param decoder
+         * @param encoder
+         * @return Builder
+         */
+        public Builder<T> codec(Decoder<T> decoder, Encoder<T> encoder) {
+            this.decoder = decoder;
+            this.encoder = encoder;
+            return this;
+        }
+
+        public Builder<T> header(HeaderProbe<T> headerProbe) {
+            this.headerProbe = headerProbe;
+            return this;
+        }
+
+        public Builder<T> handler(Handler<T> handler) {
+            this.handler = handler;
+            return this;
+        }
+
+        public Builder<T> outputTopics(String... outputTopics) {
+            this.outputTopics = List.of(outputTopics);
+            return this;
+        }
+
+        public Builder<T> handlerThreads(int handlerThreads) {
+            this.handlerThreads = handlerThreads;
+            return this;
+        }
+
+        /**
+         * Sets the number of handlers for large requests, 0 if the flow doesn't route
+         * large requests to handlers of their own.
+         * @param bulkHandlerThreads
+         * @return Builder
+         */
+        public Builder<T> bulkHandlerThreads(int bulkHandlerThreads) {
+            this.bulkHandlerThreads = bulkHandlerThreads;
+            return this;
+        }
+
+        public Builder<T> queue(FlowQueue<T> queue) {
+            this.queue = queue;
+            return this;
+        }
+
+        public Builder<T> errorMessage(String errorMessage) {
+            this.errorMessage = errorMessage;
+            return this;
+        }
+
+        /**
+         * Returns the flow definition.
+         * @return MessageFlow
+         */
+        public MessageFlow<T> build() {
+            if (decoder == null || encoder == null || handler == null) {
+                throw new IllegalStateException("Message flow " + name + " needs a codec and a handler");
+            }
+            return new MessageFlow<>(this);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.mskcc.smile.service.util;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Source of queued messages that message handlers poll from.
+ * @param <T> message type
+ */
+public interface MessageSource<T> {
+    T poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+    int size();
+
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Wraps a blocking queue as a message source.
+     * @param <T>
+     * @param queue
+     * @return MessageSource
+     */
+    static <T> MessageSource<T> of(BlockingQueue<T> queue) {
+        return new MessageSource<T>() {
+            @Override
+            public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+                return queue.poll(timeout, unit);
+            }
+
+            @Override
+            public int size() {
+                return queue.size();
+            }
+        };
+    }
+}
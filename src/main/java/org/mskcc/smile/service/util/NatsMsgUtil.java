@@ -25,7 +25,22 @@ public class NatsMsgUtil {
      */
     public static String extractNatsJsonString(Message msg)
             throws JsonProcessingException {
-        byte[] msgData = msg.getData();
+        String jsonString = extractNatsJsonString(msg.getData());
+        if (jsonString == null) {
+            LOG.error("Could not deserialize message from contents: " + msg.toString());
+            LOG.error(msg);
+        }
+        return jsonString;
+    }
+
+    /**
+     * Extracts string from raw NATS message data.
+     * @param msgData
+     * @return String or null if the data could not be deserialized
+     * @throws JsonProcessingException
+     */
+    public static String extractNatsJsonString(byte[] msgData)
+            throws JsonProcessingException {
         try {
             String jsonString = mapper.readValue(
                 new String(msgData, StandardCharsets.UTF_8),
@@ -46,12 +61,20 @@ public class NatsMsgUtil {
                     + "Cannot deserialize message");
             e.printStackTrace();
         }
-
-        LOG.error("Could not deserialize message from contents: " + msg.toString());
-        LOG.error(msg);
         return null;
     }
 
+    /**
+     * Returns the size in bytes of the NATS message data a JSON string is sent as, the
+     * same size that is measured for messages received from NATS.
+     * @param jsonString
+     * @return int
+     * @throws JsonProcessingException
+     */
+    public static int getPayloadSize(String jsonString) throws JsonProcessingException {
+        return mapper.writeValueAsBytes(jsonString).length;
+    }
+
     /**
      * Converts string to given TypeReference.
      * @param input
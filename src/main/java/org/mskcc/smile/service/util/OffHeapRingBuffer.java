@@ -0,0 +1,233 @@
+package org.mskcc.smile.service.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * FIFO buffer of raw message payloads kept in direct (off-heap) memory. Payloads are
+ * only copied back onto the heap when a handler takes them.
+ *
+ * <p>Records are stored as [int length][long enqueued nanos][bytes] in a ring. A record that doesn't fit in
+ * the space left at the end of the ring is written at the start, and the skipped space is
+ * marked so the reader wraps too. Payloads that don't fit in the ring at all spill into
+ * a heap overflow queue, and while anything is in the overflow queue new payloads go
+ * there as well so that the order of the messages is kept.
+ */
+public class OffHeapRingBuffer implements MessageSource<byte[]> {
+    private static final Log LOG = LogFactory.getLog(OffHeapRingBuffer.class);
+    private static final int WRAP_MARKER = -1;
+    private static final int RECORD_HEADER_BYTES = Integer.BYTES + Long.BYTES;
+    private static final int BYTES_PER_MB = 1024 * 1024;
+    // a direct buffer is indexed by int, so 2047 MB is the largest ring that can be allocated
+    public static final int MAX_CAPACITY_MB = Integer.MAX_VALUE / BYTES_PER_MB;
+
+    private final String name;
+    private final ByteBuffer ring;
+    private final ArrayDeque<Record> overflow = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final AtomicLong overflowCount = new AtomicLong();
+    private int head = 0;
+    private int tail = 0;
+    // bytes taken up by records and by skipped space at the end of the ring
+    private int used = 0;
+    private int ringCount = 0;
+
+    /**
+     * Decodes a payload taken from the buffer.
+     */
+    @FunctionalInterface
+    public interface Decoder<R> {
+        /**
+         * Decodes the payload.
+         * @param data
+         * @param enqueuedNanos System.nanoTime() when the payload was put in the buffer
+         * @return decoded message, null to skip the payload
+         * @throws Exception
+         */
+        R decode(byte[] data, long enqueuedNanos) throws Exception;
+    }
+
+    public OffHeapRingBuffer(String name, int capacityBytes) {
+        this.name = name;
+        this.ring = ByteBuffer.allocateDirect(capacityBytes);
+    }
+
+    /**
+     * Creates a buffer whose ring holds the given number of megabytes.
+     * @param name
+     * @param capacityMb
+     * @return OffHeapRingBuffer
+     * @throws IllegalArgumentException if the size is not between 1 and MAX_CAPACITY_MB
+     */
+    public static OffHeapRingBuffer ofMegabytes(String name, int capacityMb) {
+        long capacityBytes = (long) capacityMb * BYTES_PER_MB;
+        if (capacityMb <= 0 || capacityBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Off-heap buffer '" + name + "' must be between 1 and "
+                    + MAX_CAPACITY_MB + " MB, got: " + capacityMb);
+        }
+        return new OffHeapRingBuffer(name, (int) capacityBytes);
+    }
+
+    /**
+     * Adds a payload to the end of the buffer.
+     * @param data
+     */
+    public void put(byte[] data) {
+        lock.lock();
+        try {
+            long enqueuedNanos = System.nanoTime();
+            if (!overflow.isEmpty() || !write(data, enqueuedNanos)) {
+                overflow.add(new Record(data, enqueuedNanos));
+                long count = overflowCount.incrementAndGet();
+                if (overflow.size() == 1) {
+                    LOG.warn("Off-heap buffer '" + name + "' is full, queueing messages on the heap "
+                            + "until it drains (total overflowed messages: " + count + ")");
+                }
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public byte[] poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Record record = take(timeout, unit);
+        return (record == null) ? null : record.data;
+    }
+
+    private Record take(long timeout, TimeUnit unit) throws InterruptedException {
+        long remainingNanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (ringCount == 0 && overflow.isEmpty()) {
+                if (remainingNanos <= 0) {
+                    return null;
+                }
+                remainingNanos = notEmpty.awaitNanos(remainingNanos);
+            }
+            return (ringCount > 0) ? read() : overflow.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return ringCount + overflow.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of off-heap bytes currently in use.
+     * @return int
+     */
+    public int getUsedBytes() {
+        lock.lock();
+        try {
+            return used;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * Returns a message source that decodes payloads as they are taken from this buffer.
+     * Payloads that fail to decode are logged and skipped.
+     * @param <R>
+     * @param decoder
+     * @return MessageSource
+     */
+    public <R> MessageSource<R> decoded(Decoder<R> decoder) {
+        return new MessageSource<R>() {
+            @Override
+            public R poll(long timeout, TimeUnit unit) throws InterruptedException {
+                Record record = take(timeout, unit);
+                if (record == null) {
+                    return null;
+                }
+                try {
+                    return decoder.decode(record.data, record.enqueuedNanos);
+                } catch (Exception e) {
+                    LOG.error("Failed to decode message taken from off-heap buffer '" + name + "'", e);
+                    return null;
+                }
+            }
+
+            @Override
+            public int size() {
+                return OffHeapRingBuffer.this.size();
+            }
+        };
+    }
+
+    private boolean write(byte[] data, long enqueuedNanos) {
+        int recordSize = RECORD_HEADER_BYTES + data.length;
+        int capacity = ring.capacity();
+        boolean wrap = capacity - tail < recordSize;
+        int skipped = wrap ? capacity - tail : 0;
+        if (recordSize + skipped > capacity - used) {
+            return false;
+        }
+        if (wrap) {
+            if (skipped >= Integer.BYTES) {
+                ring.putInt(tail, WRAP_MARKER);
+            }
+            used += skipped;
+            tail = 0;
+        }
+        ring.putInt(tail, data.length);
+        ring.putLong(tail + Integer.BYTES, enqueuedNanos);
+        ring.put(tail + RECORD_HEADER_BYTES, data);
+        tail += recordSize;
+        used += recordSize;
+        ringCount++;
+        return true;
+    }
+
+    private Record read() {
+        int capacity = ring.capacity();
+        if (capacity - head < Integer.BYTES || ring.getInt(head) == WRAP_MARKER) {
+            used -= capacity - head;
+            head = 0;
+        }
+        int length = ring.getInt(head);
+        long enqueuedNanos = ring.getLong(head + Integer.BYTES);
+        byte[] data = new byte[length];
+        ring.get(head + RECORD_HEADER_BYTES, data);
+        head += RECORD_HEADER_BYTES + length;
+        used -= RECORD_HEADER_BYTES + length;
+        if (--ringCount == 0) {
+            // start over at the front of the ring whenever it is emptied
+            head = 0;
+            tail = 0;
+            used = 0;
+        }
+        return new Record(data, enqueuedNanos);
+    }
+
+    private static class Record {
+        final byte[] data;
+        final long enqueuedNanos;
+
+        Record(byte[] data, long enqueuedNanos) {
+            this.data = data;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+}
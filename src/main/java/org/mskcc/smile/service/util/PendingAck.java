@@ -0,0 +1,38 @@
+package org.mskcc.smile.service.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Acknowledges a journaled message once its handler has returned and every message the
+ * handler published for it has been sent or dead-lettered. The handler itself counts as
+ * one pending completion, so a handler that throws never completes and the message stays
+ * in the journal to be replayed on startup.
+ */
+public class PendingAck {
+    private final Runnable ack;
+    private final AtomicInteger pending = new AtomicInteger(1);
+
+    public PendingAck(Runnable ack) {
+        this.ack = ack;
+    }
+
+    /**
+     * Adds a pending publish and returns the callback to run once it has been sent
+     * or dead-lettered.
+     * @return Runnable
+     */
+    public Runnable track() {
+        pending.incrementAndGet();
+        return this::complete;
+    }
+
+    /**
+     * Completes the handler or one of its publishes, acknowledging the message once
+     * nothing is pending.
+     */
+    public void complete() {
+        if (pending.decrementAndGet() == 0) {
+            ack.run();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.mskcc.smile.service.util;
+
+/**
+ * A decoded message waiting in the queue of a message flow, along with what was
+ * learned about it when it was queued, so the handler doesn't have to work it out again.
+ * @param <T> message type
+ */
+public class QueuedMessage<T> {
+    private final T message;
+    private final RequestHeader header;
+    private final int size;
+    private final long enqueuedNanos;
+
+    /**
+     * QueuedMessage constructor.
+     * @param message
+     * @param header routing fields of the message, null if it couldn't be probed for them
+     * @param size size of the message payload
+     * @param enqueuedNanos System.nanoTime() when the message was queued
+     */
+    public QueuedMessage(T message, RequestHeader header, int size, long enqueuedNanos) {
+        this.message = message;
+        this.header = header;
+        this.size = size;
+        this.enqueuedNanos = enqueuedNanos;
+    }
+
+    public T getMessage() {
+        return message;
+    }
+
+    public RequestHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Returns the request id of the message, null if it has none.
+     * @return String
+     */
+    public String getRequestId() {
+        return (header == null) ? null : header.getRequestId();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getEnqueuedNanos() {
+        return enqueuedNanos;
+    }
+}
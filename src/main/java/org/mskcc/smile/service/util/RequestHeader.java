@@ -0,0 +1,233 @@
+package org.mskcc.smile.service.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The fields of a request (or sample) JSON needed to route it: the request id, whether
+ * it is CMO and how many samples it has.
+ *
+ * <p>They're pulled out with a streaming parser that only looks at the top-level fields
+ * and the fields of 'additionalProperties', skipping over every other object and array
+ * without building them, so routing and request-level checks don't need the message to
+ * be parsed into a tree. The probe stops as soon as the highest precedence field of each
+ * kind has been seen. The same fallbacks as the tree-based lookups apply:
+ * - request id: requestId, igoRequestId, additionalProperties.requestId,
+ *   additionalProperties.igoRequestId
+ * - CMO: isCmoRequest, additionalProperties.isCmoSample
+ * A field with a null value is treated as missing.
+ */
+public class RequestHeader {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final String requestId;
+    private final Boolean cmo;
+    private final int sampleCount;
+
+    private RequestHeader(String requestId, Boolean cmo, int sampleCount) {
+        this.requestId = requestId;
+        this.cmo = cmo;
+        this.sampleCount = sampleCount;
+    }
+
+    /**
+     * Probes the given JSON object for its routing fields.
+     * @param json
+     * @return RequestHeader
+     * @throws JsonProcessingException if the JSON is not an object or is malformed
+     *     before the probe could stop
+     */
+    public static RequestHeader probe(String json) throws JsonProcessingException {
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected a JSON object");
+            }
+            String requestId = null;
+            String igoRequestId = null;
+            String isCmoRequest = null;
+            Integer sampleCount = null;
+            String[] additionalProperties = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "requestId":
+                        requestId = scalarValue(parser, value);
+                        break;
+                    case "igoRequestId":
+                        igoRequestId = scalarValue(parser, value);
+                        break;
+                    case "isCmoRequest":
+                        isCmoRequest = scalarValue(parser, value);
+                        break;
+                    case "samples":
+                        sampleCount = probeSamples(parser, value);
+                        break;
+                    case "additionalProperties":
+                        additionalProperties = probeAdditionalProperties(parser, value);
+                        break;
+                    default:
+                        parser.skipChildren();
+                        break;
+                }
+                if (requestId != null && isCmoRequest != null && sampleCount != null) {
+                    break;
+                }
+            }
+            if (additionalProperties == null) {
+                additionalProperties = new String[3];
+            }
+            String resolvedRequestId = firstNonNull(requestId, igoRequestId,
+                    additionalProperties[0], additionalProperties[1]);
+            String isCmo = firstNonNull(isCmoRequest, additionalProperties[2]);
+            Boolean cmo = isBlank(isCmo) ? Boolean.FALSE : Boolean.valueOf(isCmo);
+            return new RequestHeader(resolvedRequestId, cmo, (sampleCount == null) ? 0 : sampleCount);
+        } catch (JsonProcessingException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unexpected I/O error reading from a string", e);
+        }
+    }
+
+    /**
+     * Reads the routing fields from a JSON object that has already been parsed, with the
+     * same fallbacks as probe.
+     * @param jsonMap
+     * @return RequestHeader
+     */
+    public static RequestHeader of(Map<String, Object> jsonMap) {
+        String[] additionalProperties = new String[3];
+        Object additional = jsonMap.get("additionalProperties");
+        if (additional instanceof Map) {
+            Map<?, ?> properties = (Map<?, ?>) additional;
+            additionalProperties[0] = scalarValue(properties.get("requestId"));
+            additionalProperties[1] = scalarValue(properties.get("igoRequestId"));
+            additionalProperties[2] = scalarValue(properties.get("isCmoSample"));
+        }
+        String resolvedRequestId = firstNonNull(scalarValue(jsonMap.get("requestId")),
+                scalarValue(jsonMap.get("igoRequestId")), additionalProperties[0], additionalProperties[1]);
+        String isCmo = firstNonNull(scalarValue(jsonMap.get("isCmoRequest")), additionalProperties[2]);
+        Boolean cmo = isBlank(isCmo) ? Boolean.FALSE : Boolean.valueOf(isCmo);
+        Object samples = jsonMap.get("samples");
+        int sampleCount = 0;
+        if (samples instanceof Collection) {
+            sampleCount = ((Collection<?>) samples).size();
+        } else if (samples instanceof Object[]) {
+            sampleCount = ((Object[]) samples).length;
+        }
+        return new RequestHeader(resolvedRequestId, cmo, sampleCount);
+    }
+
+    /**
+     * Returns the request id, null if there is none.
+     * @return String
+     */
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public boolean hasRequestId() {
+        return !isBlank(requestId);
+    }
+
+    public Boolean isCmo() {
+        return cmo;
+    }
+
+    /**
+     * Returns whether 'samples' is a non-empty array.
+     * @return boolean
+     */
+    public boolean hasSamples() {
+        return sampleCount > 0;
+    }
+
+    /**
+     * Returns the number of elements of 'samples', 0 if it is not an array.
+     * @return int
+     */
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the number of elements if the value is an array, and moves past it.
+     */
+    private static int probeSamples(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return 0;
+        }
+        int sampleCount = 0;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            sampleCount++;
+            parser.skipChildren();
+        }
+        return sampleCount;
+    }
+
+    /**
+     * Returns requestId, igoRequestId and isCmoSample from 'additionalProperties'.
+     */
+    private static String[] probeAdditionalProperties(JsonParser parser, JsonToken value) throws IOException {
+        String[] fields = new String[3];
+        if (value != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return fields;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken fieldValue = parser.nextToken();
+            switch (field) {
+                case "requestId":
+                    fields[0] = scalarValue(parser, fieldValue);
+                    break;
+                case "igoRequestId":
+                    fields[1] = scalarValue(parser, fieldValue);
+                    break;
+                case "isCmoSample":
+                    fields[2] = scalarValue(parser, fieldValue);
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+        return fields;
+    }
+
+    private static String scalarValue(JsonParser parser, JsonToken value) throws IOException {
+        if (value.isStructStart()) {
+            parser.skipChildren();
+            return null;
+        }
+        return (value == JsonToken.VALUE_NULL) ? null : parser.getText();
+    }
+
+    private static String scalarValue(Object value) {
+        if (value == null || value instanceof Map || value instanceof Collection
+                || value instanceof Object[]) {
+            return null;
+        }
+        return value.toString();
+    }
+
+    private static String firstNonNull(String... values) {
+        for (String value : values) {
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank() || value.equals("null");
+    }
+}
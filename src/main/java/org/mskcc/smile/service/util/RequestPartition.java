@@ -0,0 +1,72 @@
+package org.mskcc.smile.service.util;
+
+/**
+ * The share of requests handled by one of several instances of the request filter
+ * consuming the same topics. Request ids are hashed onto a 32-bit range which is split
+ * into equal contiguous slices, one per instance, so every instance agrees on the owner
+ * of a request without any coordination and all messages for a request (the new request,
+ * its updates and its sample updates) are handled by the same instance, in order.
+ */
+public class RequestPartition {
+    private final int index;
+    private final int count;
+
+    /**
+     * RequestPartition constructor.
+     * @param index index of this instance, from 0 to count - 1
+     * @param count number of instances sharing the topics
+     */
+    public RequestPartition(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Invalid request partition " + index + " of " + count
+                    + ", the instance index must be from 0 to the instance count - 1");
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public boolean isPartitioned() {
+        return count > 1;
+    }
+
+    /**
+     * Returns whether this instance handles messages for the given request.
+     * Messages without a request id all belong to the first instance.
+     * @param requestId
+     * @return boolean
+     */
+    public boolean owns(String requestId) {
+        return !isPartitioned() || partitionOf(requestId, count) == index;
+    }
+
+    /**
+     * Returns the index of the instance that owns the given request.
+     * @param requestId
+     * @param count
+     * @return int
+     */
+    public static int partitionOf(String requestId, int count) {
+        // String.hashCode is fixed by the language spec so every JVM agrees on it,
+        // the mix spreads similar ids (e.g. 12345_A and 12345_B) over the whole range
+        int hash = (requestId == null) ? 0 : requestId.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return (int) (((hash & 0xffffffffL) * count) >>> 32);
+    }
+
+    @Override
+    public String toString() {
+        return "partition " + index + " of " + count;
+    }
+}
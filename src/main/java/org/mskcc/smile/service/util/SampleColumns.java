@@ -0,0 +1,366 @@
+package org.mskcc.smile.service.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Struct-of-arrays view of the sample fields read by the validation rules, for requests
+ * with too many samples to validate sample map by sample map.
+ *
+ * <p>Each field (a dotted path into the sample) is a column holding one int code per
+ * sample. Codes index a dictionary of the distinct values seen in that column, so a check
+ * is worked out once per distinct value and rules run as loops over the codes. Whether a
+ * sample has fastqs is kept as a flag. The columns are filled in one streaming pass over
+ * the request JSON without building any maps. The JSON is kept along with the offsets of
+ * each sample in it, so the samples can still be written out.
+ */
+public class SampleColumns {
+    // the sample has no such field, or a field on the way is not an object
+    public static final int MISSING = -1;
+    // the field is null
+    public static final int NULL = -2;
+    // the field is an object or an array
+    public static final int STRUCTURE = -3;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final String json;
+    private final int size;
+    private final Map<String, Column> columns;
+    private final boolean[] fastQs;
+    private final boolean[] empty;
+    private final int[] sampleStarts;
+    private final int[] sampleEnds;
+
+    /**
+     * Column of one sample field.
+     */
+    public static class Column {
+        private int[] codes;
+        private final List<Object> values = new ArrayList<>();
+        private final Map<Object, Integer> dictionary = new HashMap<>();
+
+        Column(int capacity) {
+            this.codes = new int[capacity];
+            Arrays.fill(codes, MISSING);
+        }
+
+        /**
+         * Returns the dictionary code of the sample's value, or MISSING, NULL or STRUCTURE.
+         * @param sample
+         * @return int
+         */
+        public int getCode(int sample) {
+            return codes[sample];
+        }
+
+        /**
+         * Returns the value for a dictionary code: a String, Boolean or Number.
+         * @param code
+         * @return Object
+         */
+        public Object getValue(int code) {
+            return values.get(code);
+        }
+
+        /**
+         * Tests every distinct value of the column once.
+         * @param predicate
+         * @return boolean[] indexed by dictionary code
+         */
+        public boolean[] matches(Predicate<Object> predicate) {
+            boolean[] matches = new boolean[values.size()];
+            for (int code = 0; code < matches.length; code++) {
+                matches[code] = predicate.test(values.get(code));
+            }
+            return matches;
+        }
+
+        private void grow(int capacity) {
+            int previous = codes.length;
+            codes = Arrays.copyOf(codes, capacity);
+            Arrays.fill(codes, previous, capacity, MISSING);
+        }
+
+        private void set(int sample, int code) {
+            codes[sample] = code;
+        }
+
+        private void set(int sample, JsonParser parser, JsonToken token) throws IOException {
+            if (token == JsonToken.VALUE_NULL) {
+                set(sample, NULL);
+                return;
+            }
+            if (token.isStructStart()) {
+                set(sample, STRUCTURE);
+                return;
+            }
+            Object value;
+            if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE) {
+                value = Boolean.valueOf(token == JsonToken.VALUE_TRUE);
+            } else if (token.isNumeric()) {
+                value = parser.getNumberValue();
+            } else {
+                value = parser.getText();
+            }
+            Integer code = dictionary.get(value);
+            if (code == null) {
+                code = values.size();
+                values.add(value);
+                dictionary.put(value, code);
+            }
+            set(sample, code);
+        }
+    }
+
+    /**
+     * Fields of the sample object to read, with the columns of those that are requested.
+     */
+    private static class FieldNode {
+        final Map<String, FieldNode> children = new HashMap<>();
+        Column column;
+    }
+
+    private SampleColumns(String json, int size, Map<String, Column> columns, boolean[] fastQs,
+            boolean[] empty, int[] sampleStarts, int[] sampleEnds) {
+        this.json = json;
+        this.size = size;
+        this.columns = columns;
+        this.fastQs = fastQs;
+        this.empty = empty;
+        this.sampleStarts = sampleStarts;
+        this.sampleEnds = sampleEnds;
+    }
+
+    /**
+     * Reads the given fields of every sample in the request's 'samples' array.
+     * @param json request JSON
+     * @param paths dotted paths of the sample fields to read
+     * @param expectedSize number of samples expected, used to size the columns
+     * @return SampleColumns or null if 'samples' is not an array of objects, or the JSON is
+     *     malformed or repeats a field name within an object - cases left to a full parse
+     * @throws IOException
+     */
+    public static SampleColumns read(String json, Collection<String> paths, int expectedSize)
+            throws IOException {
+        int capacity = Math.max(1, expectedSize);
+        FieldNode root = new FieldNode();
+        Map<String, Column> columns = new HashMap<>();
+        for (String path : paths) {
+            FieldNode node = root;
+            for (String field : path.split("\\.")) {
+                node = node.children.computeIfAbsent(field, f -> new FieldNode());
+            }
+            node.column = new Column(capacity);
+            columns.put(path, node.column);
+        }
+        // the whole request is parsed so that repeated field names are detected anywhere
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            parser.enable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION);
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            SampleColumns sampleColumns = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (field.equals("samples") && value == JsonToken.START_ARRAY) {
+                    sampleColumns = readSamples(json, parser, root, columns, capacity);
+                    if (sampleColumns == null) {
+                        return null;
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return sampleColumns;
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    public String getJson() {
+        return json;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the column of a field that was read.
+     * @param path
+     * @return Column
+     * @throws IllegalArgumentException if the field was not read
+     */
+    public Column getColumn(String path) {
+        Column column = columns.get(path);
+        if (column == null) {
+            throw new IllegalArgumentException("Sample field '" + path + "' was not read");
+        }
+        return column;
+    }
+
+    /**
+     * Returns whether the sample has the field, even if it is null.
+     * @param path
+     * @param sample
+     * @return boolean
+     */
+    public boolean has(String path, int sample) {
+        return getColumn(path).getCode(sample) != MISSING;
+    }
+
+    /**
+     * Returns the sample's value of the field, null if it is missing, null or not a scalar.
+     * @param path
+     * @param sample
+     * @return Object
+     */
+    public Object getValue(String path, int sample) {
+        Column column = getColumn(path);
+        int code = column.getCode(sample);
+        return (code >= 0) ? column.getValue(code) : null;
+    }
+
+    /**
+     * Returns whether any of the sample's libraries has a run with fastqs.
+     * @param sample
+     * @return boolean
+     */
+    public boolean hasFastQs(int sample) {
+        return fastQs[sample];
+    }
+
+    /**
+     * Returns whether the sample is an empty object.
+     * @param sample
+     * @return boolean
+     */
+    public boolean isEmpty(int sample) {
+        return empty[sample];
+    }
+
+    /**
+     * Returns the sample's JSON as it appears in the request.
+     * @param sample
+     * @return String
+     */
+    public String getSampleJson(int sample) {
+        return json.substring(sampleStarts[sample], sampleEnds[sample]);
+    }
+
+    private static SampleColumns readSamples(String json, JsonParser parser, FieldNode root,
+            Map<String, Column> columns, int capacity) throws IOException {
+        boolean[] fastQs = new boolean[capacity];
+        boolean[] empty = new boolean[capacity];
+        int[] sampleStarts = new int[capacity];
+        int[] sampleEnds = new int[capacity];
+        int size = 0;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            if (size == fastQs.length) {
+                int grown = fastQs.length * 2;
+                fastQs = Arrays.copyOf(fastQs, grown);
+                empty = Arrays.copyOf(empty, grown);
+                sampleStarts = Arrays.copyOf(sampleStarts, grown);
+                sampleEnds = Arrays.copyOf(sampleEnds, grown);
+                for (Column column : columns.values()) {
+                    column.grow(grown);
+                }
+            }
+            sampleStarts[size] = (int) parser.currentTokenLocation().getCharOffset();
+            empty[size] = !readObject(parser, root, size, fastQs);
+            sampleEnds[size] = (int) parser.currentLocation().getCharOffset();
+            size++;
+        }
+        return new SampleColumns(json, size, columns, fastQs, empty, sampleStarts, sampleEnds);
+    }
+
+    /**
+     * Reads the requested fields of the object the parser is at, returns whether it has
+     * any fields at all.
+     */
+    private static boolean readObject(JsonParser parser, FieldNode node, int sample, boolean[] fastQs)
+            throws IOException {
+        boolean hasFields = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            hasFields = true;
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            FieldNode child = node.children.get(field);
+            if (child != null && child.column != null) {
+                child.column.set(sample, parser, value);
+            }
+            if (fastQs != null && field.equals("libraries")) {
+                fastQs[sample] = readFastQs(parser, value);
+            } else if (child != null && value == JsonToken.START_OBJECT && !child.children.isEmpty()) {
+                readObject(parser, child, sample, null);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return hasFields;
+    }
+
+    /**
+     * Returns whether libraries -> runs -> fastqs has a non-empty list of fastqs, and
+     * moves past the libraries.
+     */
+    private static boolean readFastQs(JsonParser parser, JsonToken libraries) throws IOException {
+        if (libraries != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return false;
+        }
+        boolean hasFastQs = false;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                if (parser.nextToken() != JsonToken.START_ARRAY || !field.equals("runs")) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    if (parser.currentToken() != JsonToken.START_OBJECT) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String runField = parser.currentName();
+                        if (parser.nextToken() == JsonToken.START_ARRAY && runField.equals("fastqs")) {
+                            hasFastQs |= hasElements(parser);
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                }
+            }
+        }
+        return hasFastQs;
+    }
+
+    private static boolean hasElements(JsonParser parser) throws IOException {
+        boolean hasElements = false;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            hasElements = true;
+            parser.skipChildren();
+        }
+        return hasElements;
+    }
+}
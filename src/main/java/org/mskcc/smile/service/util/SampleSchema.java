@@ -0,0 +1,182 @@
+package org.mskcc.smile.service.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import org.apache.commons.lang3.ObjectUtils;
+
+/**
+ * Schema a sample's metadata is in, which decides where the fields the validation
+ * rules look at are found:
+ * - IGO: the IGO LIMS schema (igoId, specimenType, cmoSampleClass)
+ * - UNIVERSAL: the universal schema (primaryId, sampleClass, sampleType)
+ * - GENERIC: neither or both, every field falls back on its counterpart in the
+ *   other schema
+ * - MIXED: a request whose samples are not all in the same schema, each sample is
+ *   validated according to its own schema
+ *
+ * <p>The schema is detected once per message so the validators can read fields
+ * directly instead of probing both schemas for every field of every sample.
+ */
+public enum SampleSchema {
+    IGO("igoId", "specimenType", "cmoSampleClass"),
+    UNIVERSAL("primaryId", "sampleClass", "sampleType"),
+    GENERIC(null, null, null),
+    MIXED(null, null, null);
+
+    private final String sampleIdField;
+    private final String specimenTypeField;
+    private final String cmoSampleClassField;
+
+    SampleSchema(String sampleIdField, String specimenTypeField, String cmoSampleClassField) {
+        this.sampleIdField = sampleIdField;
+        this.specimenTypeField = specimenTypeField;
+        this.cmoSampleClassField = cmoSampleClassField;
+    }
+
+    /**
+     * Returns the top-level sample fields that are specific to this schema,
+     * empty for GENERIC and MIXED.
+     * @return List
+     */
+    public List<String> getFields() {
+        if (sampleIdField == null) {
+            return List.of();
+        }
+        return List.of(sampleIdField, specimenTypeField, cmoSampleClassField);
+    }
+
+    /**
+     * Returns the schema to validate the given sample of a message in this schema with.
+     * @param sampleMap
+     * @return SampleSchema
+     */
+    public SampleSchema forSample(Map<String, Object> sampleMap) {
+        return (this == MIXED) ? detect(sampleMap) : this;
+    }
+
+    public Object getSampleId(Map<String, Object> sampleMap) {
+        return get(sampleMap::get, sampleIdField, IGO.sampleIdField, UNIVERSAL.sampleIdField);
+    }
+
+    /**
+     * Returns the specimen type, 'sampleClass' in the universal schema.
+     * @param sampleMap
+     * @return Object
+     */
+    public Object getSpecimenType(Map<String, Object> sampleMap) {
+        return get(sampleMap::get, specimenTypeField, IGO.specimenTypeField, UNIVERSAL.specimenTypeField);
+    }
+
+    /**
+     * Returns the specimen type of a sample read into columns.
+     * @param columns
+     * @param sample
+     * @return Object
+     */
+    public Object getSpecimenType(SampleColumns columns, int sample) {
+        return get(field -> columns.getValue(field, sample), specimenTypeField, IGO.specimenTypeField,
+                UNIVERSAL.specimenTypeField);
+    }
+
+    /**
+     * Returns the CMO sample class, 'sampleType' in the universal schema.
+     * @param sampleMap
+     * @return Object
+     */
+    public Object getCmoSampleClass(Map<String, Object> sampleMap) {
+        return get(sampleMap::get, cmoSampleClassField, IGO.cmoSampleClassField,
+                UNIVERSAL.cmoSampleClassField);
+    }
+
+    /**
+     * Returns the CMO sample class of a sample read into columns.
+     * @param columns
+     * @param sample
+     * @return Object
+     */
+    public Object getCmoSampleClass(SampleColumns columns, int sample) {
+        return get(field -> columns.getValue(field, sample), cmoSampleClassField, IGO.cmoSampleClassField,
+                UNIVERSAL.cmoSampleClassField);
+    }
+
+    /**
+     * Returns the sample fields the schema is detected from.
+     * @return List
+     */
+    public static List<String> getSchemaFields() {
+        return List.of(IGO.sampleIdField, IGO.specimenTypeField, IGO.cmoSampleClassField,
+                UNIVERSAL.sampleIdField, UNIVERSAL.specimenTypeField, UNIVERSAL.cmoSampleClassField);
+    }
+
+    /**
+     * Detects the schema of a single sample.
+     * @param sampleMap
+     * @return SampleSchema IGO, UNIVERSAL or GENERIC
+     */
+    public static SampleSchema detect(Map<String, Object> sampleMap) {
+        if (sampleMap == null) {
+            return GENERIC;
+        }
+        boolean igo = containsAny(sampleMap, IGO);
+        boolean universal = containsAny(sampleMap, UNIVERSAL);
+        if (igo == universal) {
+            return GENERIC;
+        }
+        return igo ? IGO : UNIVERSAL;
+    }
+
+    /**
+     * Detects the schema of a sample read into columns, which must include the
+     * schema fields.
+     * @param columns
+     * @param sample
+     * @return SampleSchema IGO, UNIVERSAL or GENERIC
+     */
+    public static SampleSchema detect(SampleColumns columns, int sample) {
+        boolean igo = containsAny(columns, sample, IGO);
+        boolean universal = containsAny(columns, sample, UNIVERSAL);
+        if (igo == universal) {
+            return GENERIC;
+        }
+        return igo ? IGO : UNIVERSAL;
+    }
+
+    /**
+     * Detects the schema of the samples of a message, MIXED if they differ.
+     * @param samples sample maps
+     * @return SampleSchema
+     */
+    public static SampleSchema detect(List<Map<String, Object>> samples) {
+        SampleSchema schema = null;
+        for (Map<String, Object> sampleMap : samples) {
+            SampleSchema sampleSchema = detect(sampleMap);
+            if (schema == null) {
+                schema = sampleSchema;
+            } else if (schema != sampleSchema) {
+                return MIXED;
+            }
+        }
+        return (schema == null) ? GENERIC : schema;
+    }
+
+    private Object get(Function<String, Object> fields, String field, String igoField,
+            String universalField) {
+        if (field != null) {
+            return fields.apply(field);
+        }
+        return ObjectUtils.firstNonNull(fields.apply(igoField), fields.apply(universalField));
+    }
+
+    private static boolean containsAny(Map<String, Object> sampleMap, SampleSchema schema) {
+        return sampleMap.containsKey(schema.sampleIdField)
+                || sampleMap.containsKey(schema.specimenTypeField)
+                || sampleMap.containsKey(schema.cmoSampleClassField);
+    }
+
+    private static boolean containsAny(SampleColumns columns, int sample, SampleSchema schema) {
+        return columns.has(schema.sampleIdField, sample)
+                || columns.has(schema.specimenTypeField, sample)
+                || columns.has(schema.cmoSampleClassField, sample);
+    }
+}
@@ -0,0 +1,46 @@
+package org.mskcc.smile.service.util;
+
+import java.util.List;
+
+/**
+ * Result of validating a batch of sample updates: the CMO and non-CMO samples with their
+ * validation status attached, ready to publish, in the order they were received.
+ * Samples without a request id are left out.
+ */
+public class SampleUpdateBatch {
+    private final String requestId;
+    private final List<String> cmoSamples;
+    private final List<String> nonCmoSamples;
+    private final List<String> failedSamples;
+
+    /**
+     * SampleUpdateBatch constructor.
+     * @param requestId request id of the first sample that has one
+     * @param cmoSamples
+     * @param nonCmoSamples
+     * @param failedSamples samples of either kind that failed validation
+     */
+    public SampleUpdateBatch(String requestId, List<String> cmoSamples, List<String> nonCmoSamples,
+            List<String> failedSamples) {
+        this.requestId = requestId;
+        this.cmoSamples = cmoSamples;
+        this.nonCmoSamples = nonCmoSamples;
+        this.failedSamples = failedSamples;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public List<String> getCmoSamples() {
+        return cmoSamples;
+    }
+
+    public List<String> getNonCmoSamples() {
+        return nonCmoSamples;
+    }
+
+    public List<String> getFailedSamples() {
+        return failedSamples;
+    }
+}
@@ -0,0 +1,86 @@
+package org.mskcc.smile.service.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of validation results keyed by a digest of the validated payload,
+ * so checking the same payload again doesn't re-run the validation and the cache
+ * doesn't hold on to the (possibly large) payloads themselves.
+ */
+public class ValidationResultCache {
+    private final int maxEntries;
+    private final Map<String, String> results;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * ValidationResultCache constructor.
+     * @param maxEntries 0 disables caching
+     */
+    public ValidationResultCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.results = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > ValidationResultCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache key for a payload validated a given way.
+     * @param kind the kind of validation, results of different kinds are kept apart
+     * @param payload
+     * @return String
+     */
+    public static String key(String kind, byte[] payload) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return kind + ":" + HexFormat.of().formatHex(digest.digest(payload));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the cached result or null.
+     * @param key
+     * @return String
+     */
+    public String get(String key) {
+        String result = null;
+        if (maxEntries > 0) {
+            synchronized (results) {
+                result = results.get(key);
+            }
+        }
+        (result == null ? missCount : hitCount).incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Caches the result, evicting the least recently used result if the cache is full.
+     * @param key
+     * @param result
+     */
+    public void put(String key, String result) {
+        if (maxEntries > 0) {
+            synchronized (results) {
+                results.put(key, result);
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
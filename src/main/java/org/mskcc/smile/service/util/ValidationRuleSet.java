@@ -0,0 +1,694 @@
+package org.mskcc.smile.service.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import org.mskcc.smile.commons.enums.CmoSampleClass;
+import org.mskcc.smile.commons.enums.SampleOrigin;
+import org.mskcc.smile.commons.enums.SampleType;
+import org.mskcc.smile.commons.enums.SpecimenType;
+
+/**
+ * Sample validation rules compiled from a properties file. Each kind of sample
+ * (cmo, non_cmo, promoted) has an ordered list of rules, one per numbered property:
+ *
+ * <p>cmo.1=igoId: present igoId|primaryId => missing
+ * cmo.2=baitSet: present baitSet => missing || recipe: present cmoSampleIdFields.recipe => missing
+ *
+ * <p>A rule is "report key: check => report message", a rule with alternatives separated
+ * by || fails only if every alternative fails, and each failing alternative is added to
+ * the validation report. Checks:
+ * - present path|path...: the first of the fallback paths that is set is not blank
+ * - has path: the field exists (may be empty), e.g. has cmoSampleIdFields.naToExtract
+ * - true path: the field is boolean true
+ * - enum EnumName path|path...: the first path that is set is a value of SpecimenType,
+ *   CmoSampleClass, SampleOrigin or SampleType (case insensitive)
+ * - check name: one of the built-in checks supplied when compiling
+ * Paths are field names, dotted for fields of nested objects.
+ *
+ * <p>Rules are parsed once into predicates over the sample map, once per sample schema:
+ * the IGO and universal variants drop the fallback paths that belong to the other schema,
+ * so a sample whose schema is known is checked without probing. A rule set is immutable,
+ * so a new one can be swapped in while validations using the old one are still running.
+ *
+ * <p>Each check is also compiled into a loop over samples read into SampleColumns, so
+ * large requests can be validated one rule at a time over all of their samples. This
+ * works for a kind of sample only if all of its built-in checks have a column form.
+ */
+public class ValidationRuleSet {
+    public static final String CMO = "cmo";
+    public static final String NON_CMO = "non_cmo";
+    public static final String PROMOTED = "promoted";
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    private static final Map<String, Enum<?>[]> ENUMS = Map.of(
+            "SpecimenType", SpecimenType.values(),
+            "CmoSampleClass", CmoSampleClass.values(),
+            "SampleOrigin", SampleOrigin.values(),
+            "SampleType", SampleType.values());
+    private static final List<SampleSchema> COMPILED_SCHEMAS =
+            List.of(SampleSchema.IGO, SampleSchema.UNIVERSAL, SampleSchema.GENERIC);
+    // failing alternatives of a sample validated on columns are returned as bits of a long
+    private static final int MAX_COLUMN_ALTERNATIVES = Long.SIZE;
+
+    private final String source;
+    private final long version;
+    private final Map<String, Map<SampleSchema, List<Rule>>> rulesByKind;
+    private final Map<String, Set<String>> columnPathsByKind;
+
+    @FunctionalInterface
+    public interface BuiltinCheck {
+        boolean test(Map<String, Object> sampleMap, SampleSchema schema) throws JsonProcessingException;
+
+        /**
+         * Returns the same check over samples read into columns, null if there is none.
+         * @return BuiltinColumnCheck
+         */
+        default BuiltinColumnCheck getColumnCheck() {
+            return null;
+        }
+
+        default List<String> getColumnPaths() {
+            return List.of();
+        }
+
+        /**
+         * Pairs a check over sample maps with the same check over sample columns.
+         * @param check
+         * @param columnCheck
+         * @param columnPaths sample fields the column check reads
+         * @return BuiltinCheck
+         */
+        static BuiltinCheck withColumns(BuiltinCheck check, BuiltinColumnCheck columnCheck,
+                String... columnPaths) {
+            List<String> paths = List.of(columnPaths);
+            return new BuiltinCheck() {
+                @Override
+                public boolean test(Map<String, Object> sampleMap, SampleSchema schema)
+                        throws JsonProcessingException {
+                    return check.test(sampleMap, schema);
+                }
+
+                @Override
+                public BuiltinColumnCheck getColumnCheck() {
+                    return columnCheck;
+                }
+
+                @Override
+                public List<String> getColumnPaths() {
+                    return paths;
+                }
+            };
+        }
+    }
+
+    @FunctionalInterface
+    public interface BuiltinColumnCheck {
+        boolean test(SampleColumns columns, int sample, SampleSchema schema);
+    }
+
+    @FunctionalInterface
+    private interface SampleCheck {
+        boolean test(Map<String, Object> sampleMap) throws JsonProcessingException;
+    }
+
+    /**
+     * Sets passed[i] for the first count samples.
+     */
+    @FunctionalInterface
+    private interface ColumnCheck {
+        void test(SampleColumns columns, int[] samples, int count, boolean[] passed);
+    }
+
+    private static class Alternative {
+        final String reportKey;
+        // rules are profiled by name, report keys are shared between rules
+        final String profileKey;
+        final String columnProfileKey;
+        final String message;
+        final SampleCheck check;
+        final ColumnCheck columnCheck;
+        final long bit;
+
+        Alternative(String reportKey, String profileKey, String message, SampleCheck check,
+                ColumnCheck columnCheck, int index) {
+            this.reportKey = reportKey;
+            this.profileKey = profileKey;
+            this.columnProfileKey = profileKey + " (columns)";
+            this.message = message;
+            this.check = check;
+            this.columnCheck = columnCheck;
+            this.bit = (index < MAX_COLUMN_ALTERNATIVES) ? 1L << index : 0;
+        }
+    }
+
+    private static class Rule {
+        final Alternative[] alternatives;
+        final long bits;
+
+        Rule(Alternative[] alternatives) {
+            this.alternatives = alternatives;
+            long bits = 0;
+            for (Alternative alternative : alternatives) {
+                bits |= alternative.bit;
+            }
+            this.bits = bits;
+        }
+    }
+
+    /**
+     * Tests the first of the fallback fields that is set, working the test out once per
+     * distinct value of each field.
+     */
+    private static class FirstValueTest {
+        final SampleColumns.Column[] columns;
+        final boolean[][] matches;
+        final boolean structureMatches;
+
+        FirstValueTest(SampleColumns sampleColumns, String[] paths, Predicate<Object> predicate,
+                boolean structureMatches) {
+            this.columns = new SampleColumns.Column[paths.length];
+            this.matches = new boolean[paths.length][];
+            for (int i = 0; i < paths.length; i++) {
+                columns[i] = sampleColumns.getColumn(paths[i]);
+                matches[i] = columns[i].matches(predicate);
+            }
+            this.structureMatches = structureMatches;
+        }
+
+        boolean test(int sample) {
+            for (int i = 0; i < columns.length; i++) {
+                int code = columns[i].getCode(sample);
+                if (code >= 0) {
+                    return matches[i][code];
+                }
+                if (code == SampleColumns.STRUCTURE) {
+                    return structureMatches;
+                }
+            }
+            return false;
+        }
+    }
+
+    private ValidationRuleSet(String source, Map<String, Map<SampleSchema, List<Rule>>> rulesByKind,
+            Map<String, Set<String>> columnPathsByKind) {
+        this.source = source;
+        this.version = VERSIONS.incrementAndGet();
+        this.rulesByKind = rulesByKind;
+        this.columnPathsByKind = columnPathsByKind;
+    }
+
+    /**
+     * Loads and compiles the rules in the given file.
+     * @param path
+     * @param builtins
+     * @return ValidationRuleSet
+     * @throws IOException
+     */
+    public static ValidationRuleSet load(Path path, Map<String, BuiltinCheck> builtins) throws IOException {
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            Properties properties = new Properties();
+            properties.load(reader);
+            return compile(path.toString(), properties, builtins);
+        }
+    }
+
+    /**
+     * Loads and compiles the rules in the given classpath resource.
+     * @param resource
+     * @param builtins
+     * @return ValidationRuleSet
+     * @throws IOException
+     */
+    public static ValidationRuleSet loadResource(String resource, Map<String, BuiltinCheck> builtins)
+            throws IOException {
+        try (InputStream in = ValidationRuleSet.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("Validation rules resource not found: " + resource);
+            }
+            Properties properties = new Properties();
+            properties.load(in);
+            return compile("classpath:" + resource, properties, builtins);
+        }
+    }
+
+    /**
+     * Compiles the rules, throws IllegalArgumentException naming the first invalid rule.
+     * @param source where the rules came from, for logging
+     * @param properties
+     * @param builtins checks that can be referred to with "check name"
+     * @return ValidationRuleSet
+     */
+    public static ValidationRuleSet compile(String source, Properties properties,
+            Map<String, BuiltinCheck> builtins) {
+        Map<String, TreeMap<Integer, String>> orderedRules = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            int dot = name.lastIndexOf('.');
+            if (dot < 0) {
+                throw new IllegalArgumentException("Invalid rule name '" + name + "', expected <kind>.<n>");
+            }
+            String kind = name.substring(0, dot);
+            int order;
+            try {
+                order = Integer.parseInt(name.substring(dot + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid rule name '" + name + "', expected <kind>.<n>");
+            }
+            orderedRules.computeIfAbsent(kind, k -> new TreeMap<>()).put(order, name);
+        }
+        Map<String, Map<SampleSchema, List<Rule>>> rulesByKind = new HashMap<>();
+        Map<String, Set<String>> columnPathsByKind = new HashMap<>();
+        orderedRules.forEach((kind, names) -> {
+            Map<SampleSchema, List<Rule>> rulesBySchema = new EnumMap<>(SampleSchema.class);
+            Set<String> columnPaths = new HashSet<>(SampleSchema.getSchemaFields());
+            boolean columnsSupported = true;
+            for (SampleSchema schema : COMPILED_SCHEMAS) {
+                List<Rule> rules = new ArrayList<>();
+                int index = 0;
+                for (String name : names.values()) {
+                    Rule rule;
+                    try {
+                        rule = compileRule(name, properties.getProperty(name), builtins, schema, index,
+                                columnPaths);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Invalid rule " + name + ": " + e.getMessage(), e);
+                    }
+                    for (Alternative alternative : rule.alternatives) {
+                        columnsSupported &= (alternative.columnCheck != null && alternative.bit != 0);
+                    }
+                    index += rule.alternatives.length;
+                    rules.add(rule);
+                }
+                rulesBySchema.put(schema, List.copyOf(rules));
+            }
+            rulesByKind.put(kind, rulesBySchema);
+            if (columnsSupported) {
+                columnPathsByKind.put(kind, Set.copyOf(columnPaths));
+            }
+        });
+        for (String kind : List.of(CMO, NON_CMO, PROMOTED)) {
+            if (!rulesByKind.containsKey(kind)) {
+                throw new IllegalArgumentException("No rules given for '" + kind + "' samples");
+            }
+        }
+        return new ValidationRuleSet(source, rulesByKind, columnPathsByKind);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Increases every time a rule set is compiled, so results validated with
+     * different rule sets can be told apart.
+     * @return long
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Runs the rules for the given kind of sample, adding every failure to the report.
+     * The schema of the sample is detected first.
+     * @param kind
+     * @param sampleMap
+     * @param validationReport
+     * @param ruleProfiler
+     * @return boolean true if every rule passed
+     * @throws JsonProcessingException
+     */
+    public boolean evaluate(String kind, Map<String, Object> sampleMap, Map<String, String> validationReport,
+            RuleProfiler ruleProfiler) throws JsonProcessingException {
+        return evaluate(kind, SampleSchema.detect(sampleMap), sampleMap, validationReport, ruleProfiler);
+    }
+
+    /**
+     * Runs the rules for the given kind of sample in the given schema, adding every failure
+     * to the report. Without a report it stops at the first rule that fails.
+     * @param kind
+     * @param schema
+     * @param sampleMap
+     * @param validationReport null for a pass/fail answer only
+     * @param ruleProfiler
+     * @return boolean true if every rule passed
+     * @throws JsonProcessingException
+     */
+    public boolean evaluate(String kind, SampleSchema schema, Map<String, Object> sampleMap,
+            Map<String, String> validationReport, RuleProfiler ruleProfiler) throws JsonProcessingException {
+        boolean valid = true;
+        for (Rule rule : rulesByKind.get(kind).get(schema.forSample(sampleMap))) {
+            boolean passed = false;
+            List<Alternative> failed = null;
+            for (Alternative alternative : rule.alternatives) {
+                // the capturing lambda is only built when profiling
+                boolean alternativePassed = ruleProfiler.isEnabled()
+                        ? ruleProfiler.profiled(alternative.profileKey,
+                                () -> alternative.check.test(sampleMap))
+                        : alternative.check.test(sampleMap);
+                if (alternativePassed) {
+                    passed = true;
+                    break;
+                }
+                if (validationReport == null) {
+                    continue;
+                }
+                if (failed == null) {
+                    failed = new ArrayList<>(rule.alternatives.length);
+                }
+                failed.add(alternative);
+            }
+            if (!passed) {
+                if (validationReport == null) {
+                    return false;
+                }
+                valid = false;
+                for (Alternative alternative : failed) {
+                    validationReport.put(alternative.reportKey, alternative.message);
+                }
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Returns the sample fields to read into columns to validate the given kind of sample
+     * on columns, null if one of its built-in checks can only check sample maps.
+     * @param kind
+     * @return Set
+     */
+    public Set<String> getColumnPaths(String kind) {
+        return columnPathsByKind.get(kind);
+    }
+
+    /**
+     * Runs the rules for the given kind of sample over samples read into columns. Samples
+     * are grouped by schema, and each rule runs as one loop over the samples of a group.
+     * Later alternatives only run on the samples that failed the earlier ones.
+     * @param kind
+     * @param columns read with at least the fields from getColumnPaths
+     * @param ruleProfiler
+     * @return long[] the failing alternatives of each sample as bits for getReport,
+     *     0 if every rule passed
+     * @throws IllegalStateException if the kind can't be validated on columns
+     */
+    public long[] evaluate(String kind, SampleColumns columns, RuleProfiler ruleProfiler) {
+        if (!columnPathsByKind.containsKey(kind)) {
+            throw new IllegalStateException("'" + kind + "' rules can't be evaluated on sample columns");
+        }
+        int size = columns.size();
+        SampleSchema[] schemas = new SampleSchema[size];
+        for (int sample = 0; sample < size; sample++) {
+            schemas[sample] = SampleSchema.detect(columns, sample);
+        }
+        long[] failures = new long[size];
+        int[] samples = new int[size];
+        int[] failing = new int[size];
+        boolean[] passed = new boolean[size];
+        for (SampleSchema schema : COMPILED_SCHEMAS) {
+            int schemaSize = 0;
+            for (int sample = 0; sample < size; sample++) {
+                if (schemas[sample] == schema) {
+                    samples[schemaSize++] = sample;
+                }
+            }
+            if (schemaSize == 0) {
+                continue;
+            }
+            for (Rule rule : rulesByKind.get(kind).get(schema)) {
+                System.arraycopy(samples, 0, failing, 0, schemaSize);
+                int count = schemaSize;
+                for (Alternative alternative : rule.alternatives) {
+                    if (ruleProfiler.isEnabled()) {
+                        int failingCount = count;
+                        ruleProfiler.profiled(alternative.columnProfileKey, () -> {
+                            alternative.columnCheck.test(columns, failing, failingCount, passed);
+                            return null;
+                        });
+                    } else {
+                        alternative.columnCheck.test(columns, failing, count, passed);
+                    }
+                    int remaining = 0;
+                    for (int i = 0; i < count; i++) {
+                        if (!passed[i]) {
+                            failing[remaining++] = failing[i];
+                        }
+                    }
+                    count = remaining;
+                    if (count == 0) {
+                        break;
+                    }
+                }
+                for (int i = 0; i < count; i++) {
+                    failures[failing[i]] |= rule.bits;
+                }
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Returns the validation report for failures returned by evaluate over columns, the
+     * same report evaluating the sample map would have given.
+     * @param kind
+     * @param failures
+     * @return Map
+     */
+    public Map<String, String> getReport(String kind, long failures) {
+        Map<String, String> validationReport = new HashMap<>();
+        for (Rule rule : rulesByKind.get(kind).get(SampleSchema.GENERIC)) {
+            for (Alternative alternative : rule.alternatives) {
+                if ((failures & alternative.bit) != 0) {
+                    validationReport.put(alternative.reportKey, alternative.message);
+                }
+            }
+        }
+        return validationReport;
+    }
+
+    private static Rule compileRule(String name, String spec, Map<String, BuiltinCheck> builtins,
+            SampleSchema schema, int firstIndex, Set<String> columnPaths) {
+        String[] alternativeSpecs = spec.split("\\|\\|");
+        Alternative[] alternatives = new Alternative[alternativeSpecs.length];
+        for (int i = 0; i < alternativeSpecs.length; i++) {
+            String alternativeSpec = alternativeSpecs[i].strip();
+            int colon = alternativeSpec.indexOf(':');
+            int arrow = alternativeSpec.indexOf("=>");
+            if (colon <= 0 || arrow < colon) {
+                throw new IllegalArgumentException("expected 'report key: check => message' but got '"
+                        + alternativeSpec + "'");
+            }
+            String reportKey = alternativeSpec.substring(0, colon).strip();
+            String check = alternativeSpec.substring(colon + 1, arrow).strip();
+            String message = alternativeSpec.substring(arrow + 2).strip();
+            String profileKey = (i == 0) ? name : name + " (alternative " + (i + 1) + ")";
+            alternatives[i] = new Alternative(reportKey, profileKey, message,
+                    compileCheck(check, builtins, schema),
+                    compileColumnCheck(check, builtins, schema, columnPaths), firstIndex + i);
+        }
+        return new Rule(alternatives);
+    }
+
+    private static SampleCheck compileCheck(String check, Map<String, BuiltinCheck> builtins,
+            SampleSchema schema) {
+        String[] parts = check.split("\\s+");
+        switch (parts[0]) {
+            case "present":
+                requireArguments(parts, 2);
+                String[][] presentPaths = parsePaths(parts[1], schema);
+                return sampleMap -> !isBlank(firstValue(sampleMap, presentPaths));
+            case "has":
+                requireArguments(parts, 2);
+                String[] hasPath = parts[1].split("\\.");
+                String[] parentPath = Arrays.copyOf(hasPath, hasPath.length - 1);
+                String hasField = hasPath[hasPath.length - 1];
+                return sampleMap -> {
+                    Object parent = getField(sampleMap, parentPath);
+                    return (parent instanceof Map) && ((Map<?, ?>) parent).containsKey(hasField);
+                };
+            case "true":
+                requireArguments(parts, 2);
+                String[] truePath = parts[1].split("\\.");
+                return sampleMap -> Boolean.TRUE.equals(getField(sampleMap, truePath));
+            case "enum":
+                requireArguments(parts, 3);
+                Enum<?>[] constants = ENUMS.get(parts[1]);
+                if (constants == null) {
+                    throw new IllegalArgumentException("unknown enum '" + parts[1] + "', expected one of "
+                            + ENUMS.keySet());
+                }
+                Set<String> values = enumValues(constants);
+                String[][] enumPaths = parsePaths(parts[2], schema);
+                return sampleMap -> {
+                    Object value = firstValue(sampleMap, enumPaths);
+                    return value != null && values.contains(value.toString().toLowerCase(Locale.ROOT));
+                };
+            case "check":
+                requireArguments(parts, 2);
+                BuiltinCheck builtin = builtins.get(parts[1]);
+                if (builtin == null) {
+                    throw new IllegalArgumentException("unknown check '" + parts[1] + "', expected one of "
+                            + builtins.keySet());
+                }
+                return sampleMap -> builtin.test(sampleMap, schema);
+            default:
+                throw new IllegalArgumentException("unknown check type '" + parts[0] + "'");
+        }
+    }
+
+    /**
+     * Compiles the check into a loop over sample columns, adding the fields it reads to
+     * columnPaths. Returns null for built-in checks without a column form. The check has
+     * already been validated by compileCheck.
+     */
+    private static ColumnCheck compileColumnCheck(String check, Map<String, BuiltinCheck> builtins,
+            SampleSchema schema, Set<String> columnPaths) {
+        String[] parts = check.split("\\s+");
+        switch (parts[0]) {
+            case "present":
+                String[] presentPaths = joinPaths(parsePaths(parts[1], schema));
+                columnPaths.addAll(Arrays.asList(presentPaths));
+                return (columns, samples, count, passed) -> {
+                    FirstValueTest present = new FirstValueTest(columns, presentPaths,
+                            value -> !isBlank(value), true);
+                    for (int i = 0; i < count; i++) {
+                        passed[i] = present.test(samples[i]);
+                    }
+                };
+            case "has":
+                String hasPath = parts[1];
+                columnPaths.add(hasPath);
+                return (columns, samples, count, passed) -> {
+                    SampleColumns.Column column = columns.getColumn(hasPath);
+                    for (int i = 0; i < count; i++) {
+                        passed[i] = column.getCode(samples[i]) != SampleColumns.MISSING;
+                    }
+                };
+            case "true":
+                String[] truePath = {parts[1]};
+                columnPaths.add(parts[1]);
+                return (columns, samples, count, passed) -> {
+                    FirstValueTest isTrue = new FirstValueTest(columns, truePath, Boolean.TRUE::equals,
+                            false);
+                    for (int i = 0; i < count; i++) {
+                        passed[i] = isTrue.test(samples[i]);
+                    }
+                };
+            case "enum":
+                Set<String> values = enumValues(ENUMS.get(parts[1]));
+                String[] enumPaths = joinPaths(parsePaths(parts[2], schema));
+                columnPaths.addAll(Arrays.asList(enumPaths));
+                return (columns, samples, count, passed) -> {
+                    FirstValueTest isEnum = new FirstValueTest(columns, enumPaths,
+                            value -> values.contains(value.toString().toLowerCase(Locale.ROOT)), false);
+                    for (int i = 0; i < count; i++) {
+                        passed[i] = isEnum.test(samples[i]);
+                    }
+                };
+            default:
+                BuiltinColumnCheck builtin = builtins.get(parts[1]).getColumnCheck();
+                if (builtin == null) {
+                    return null;
+                }
+                columnPaths.addAll(builtins.get(parts[1]).getColumnPaths());
+                return (columns, samples, count, passed) -> {
+                    for (int i = 0; i < count; i++) {
+                        passed[i] = builtin.test(columns, samples[i], schema);
+                    }
+                };
+        }
+    }
+
+    private static String[] joinPaths(String[][] paths) {
+        return Arrays.stream(paths)
+                .map(path -> String.join(".", path))
+                .toArray(String[]::new);
+    }
+
+    private static void requireArguments(String[] parts, int count) {
+        if (parts.length != count) {
+            throw new IllegalArgumentException("'" + parts[0] + "' takes " + (count - 1) + " argument(s)");
+        }
+    }
+
+    /**
+     * Splits the fallback paths, leaving out the paths into fields of the other schema
+     * unless that would leave none.
+     */
+    private static String[][] parsePaths(String paths, SampleSchema schema) {
+        String[][] allPaths = Arrays.stream(paths.split("\\|"))
+                .map(path -> path.split("\\."))
+                .toArray(String[][]::new);
+        List<String> otherFields = (schema == SampleSchema.IGO) ? SampleSchema.UNIVERSAL.getFields()
+                : (schema == SampleSchema.UNIVERSAL) ? SampleSchema.IGO.getFields() : List.of();
+        String[][] schemaPaths = Arrays.stream(allPaths)
+                .filter(path -> !otherFields.contains(path[0]))
+                .toArray(String[][]::new);
+        return (schemaPaths.length > 0) ? schemaPaths : allPaths;
+    }
+
+    private static Set<String> enumValues(Enum<?>[] constants) {
+        Set<String> values = new HashSet<>();
+        for (Enum<?> constant : constants) {
+            values.add(enumValue(constant).toLowerCase(Locale.ROOT));
+        }
+        return values;
+    }
+
+    private static String enumValue(Enum<?> constant) {
+        if (constant instanceof SpecimenType) {
+            return ((SpecimenType) constant).getValue();
+        }
+        if (constant instanceof CmoSampleClass) {
+            return ((CmoSampleClass) constant).getValue();
+        }
+        if (constant instanceof SampleOrigin) {
+            return ((SampleOrigin) constant).getValue();
+        }
+        return ((SampleType) constant).getValue();
+    }
+
+    private static Object firstValue(Map<String, Object> sampleMap, String[][] paths) {
+        for (String[] path : paths) {
+            Object value = getField(sampleMap, path);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static Object getField(Map<String, Object> sampleMap, String[] path) {
+        Object value = sampleMap;
+        for (String field : path) {
+            if (!(value instanceof Map)) {
+                return null;
+            }
+            value = ((Map<?, ?>) value).get(field);
+        }
+        return value;
+    }
+
+    private static boolean isBlank(Object value) {
+        if (value == null) {
+            return true;
+        }
+        String text = value.toString();
+        return text.isBlank() || text.equals("null");
+    }
+}
@@ -0,0 +1,278 @@
+package org.mskcc.smile.web;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mskcc.smile.service.ValidRequestChecker;
+import org.mskcc.smile.service.util.NatsMsgUtil;
+import org.mskcc.smile.service.util.RuleProfiler;
+import org.mskcc.smile.service.util.ValidationResultCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Pre-flight validation over HTTP: answers whether a request, promoted request or sample
+ * would pass validation without publishing anything. The body is the raw JSON, either as
+ * is or encoded as a JSON string the way it is published over NATS.
+ *
+ * <p>At most validation.http.max_concurrent validations run at once, a caller that can't
+ * get a slot within validation.http.acquire_timeout_millis is told to retry (503), so a
+ * burst of checks can't starve the message handlers of cpu. Bodies larger than
+ * validation.http.max_request_bytes are rejected (413) before they are read in full.
+ * Results are cached by payload digest and rule set version so repeated checks of the
+ * same payload are cheap.
+ */
+@RestController
+@RequestMapping("/validate")
+public class ValidationController {
+    private static final Log LOG = LogFactory.getLog(ValidationController.class);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final ValidRequestChecker validRequestChecker;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Semaphore permits;
+    private final long acquireTimeoutMillis;
+    private final int maxRequestBytes;
+    private final ValidationResultCache resultCache;
+
+    @FunctionalInterface
+    private interface Validation {
+        Map<String, Object> validate(String json) throws Exception;
+    }
+
+    /**
+     * ValidationController constructor.
+     * @param validRequestChecker
+     * @param maxConcurrent 0 uses the number of cores
+     * @param acquireTimeoutMillis
+     * @param maxRequestBytes
+     * @param cacheSize
+     */
+    @Autowired
+    public ValidationController(ValidRequestChecker validRequestChecker,
+            @Value("${validation.http.max_concurrent:0}") int maxConcurrent,
+            @Value("${validation.http.acquire_timeout_millis:100}") long acquireTimeoutMillis,
+            @Value("${validation.http.max_request_bytes:10485760}") int maxRequestBytes,
+            @Value("${validation.http.cache_size:1000}") int cacheSize) {
+        this.validRequestChecker = validRequestChecker;
+        this.permits = new Semaphore((maxConcurrent > 0)
+                ? maxConcurrent : Runtime.getRuntime().availableProcessors());
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.maxRequestBytes = maxRequestBytes;
+        this.resultCache = new ValidationResultCache(cacheSize);
+    }
+
+    /**
+     * Validates a request the way the request filter does.
+     * @param contentLength
+     * @param body
+     * @return ResponseEntity
+     * @throws Exception
+     */
+    @PostMapping(value = "/request", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> validateRequest(
+            @RequestHeader(value = HttpHeaders.CONTENT_LENGTH, required = false) Long contentLength,
+            InputStream body) throws Exception {
+        return validate("request", contentLength, body, requestJson -> {
+            String filteredRequestJson = validRequestChecker.getFilteredValidRequestJson(requestJson);
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("requestId", validRequestChecker.getRequestId(requestJson));
+            if (filteredRequestJson == null) {
+                report.put("validationStatus", Boolean.FALSE);
+                return report;
+            }
+            report.putAll(getStatusReport(mapper.readValue(filteredRequestJson, Map.class)));
+            return report;
+        });
+    }
+
+    /**
+     * Validates a promoted request the way the promoted request handler does.
+     * @param contentLength
+     * @param body
+     * @return ResponseEntity
+     * @throws Exception
+     */
+    @PostMapping(value = "/promoted", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> validatePromotedRequest(
+            @RequestHeader(value = HttpHeaders.CONTENT_LENGTH, required = false) Long contentLength,
+            InputStream body) throws Exception {
+        return validate("promoted", contentLength, body, requestJson -> {
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("requestId", validRequestChecker.getRequestId(requestJson));
+            report.putAll(getStatusReport(
+                    validRequestChecker.generatePromotedRequestValidationMap(requestJson)));
+            return report;
+        });
+    }
+
+    /**
+     * Validates a sample (update) the way the sample update handler does. Whether it's
+     * validated as a CMO sample is taken from the sample unless cmo is given.
+     * @param cmo
+     * @param contentLength
+     * @param body
+     * @return ResponseEntity
+     * @throws Exception
+     */
+    @PostMapping(value = "/sample", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> validateSample(@RequestParam(value = "cmo", required = false) Boolean cmo,
+            @RequestHeader(value = HttpHeaders.CONTENT_LENGTH, required = false) Long contentLength,
+            InputStream body) throws Exception {
+        String kind = (cmo == null) ? "sample" : (cmo ? "cmo-sample" : "non-cmo-sample");
+        return validate(kind, contentLength, body, sampleJson -> {
+            Map<String, Object> sampleMap = mapper.readValue(sampleJson, Map.class);
+            boolean isCmoSample = (cmo == null) ? validRequestChecker.isCmo(sampleJson) : cmo;
+            Map<String, Object> sampleStatus = isCmoSample
+                    ? validRequestChecker.generateCmoSampleValidationMap(sampleMap)
+                    : validRequestChecker.generateNonCmoSampleValidationMap(sampleMap);
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("sampleId", getSampleId(sampleMap));
+            report.put("cmoSample", isCmoSample);
+            report.put("status", sampleStatus);
+            return report;
+        });
+    }
+
+    /**
+     * Returns the per-rule validation profile (see validation.profiling.enabled),
+     * optionally resetting it afterwards.
+     * @param reset
+     * @return ResponseEntity
+     * @throws Exception
+     */
+    @GetMapping(value = "/profile", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> getRuleProfile(@RequestParam(value = "reset", required = false,
+            defaultValue = "false") boolean reset) throws Exception {
+        RuleProfiler ruleProfiler = validRequestChecker.getRuleProfiler();
+        Map<String, Object> profile = new LinkedHashMap<>();
+        profile.put("enabled", ruleProfiler.isEnabled());
+        profile.put("rules", ruleProfiler.getProfile());
+        if (reset) {
+            ruleProfiler.reset();
+        }
+        return ResponseEntity.ok(mapper.writeValueAsString(profile));
+    }
+
+    private ResponseEntity<String> validate(String kind, Long contentLength, InputStream body,
+            Validation validation) throws Exception {
+        if (contentLength != null && contentLength > maxRequestBytes) {
+            return error(HttpStatus.PAYLOAD_TOO_LARGE, "Request body is larger than the limit of "
+                    + maxRequestBytes + " bytes");
+        }
+        if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "1")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(errorJson("Too many validations in progress, retry later"));
+        }
+        try {
+            byte[] payload = readBody(body);
+            if (payload == null) {
+                return error(HttpStatus.PAYLOAD_TOO_LARGE, "Request body is larger than the limit of "
+                        + maxRequestBytes + " bytes");
+            }
+            // results are kept apart per rule set so a reload of the rules isn't masked by the cache
+            String cacheKey = ValidationResultCache.key(
+                    kind + "@" + validRequestChecker.getValidationRuleSet().getVersion(), payload);
+            String result = resultCache.get(cacheKey);
+            if (result == null) {
+                String json = decode(payload);
+                if (json == null) {
+                    return error(HttpStatus.BAD_REQUEST, "Request body is not valid JSON");
+                }
+                result = mapper.writeValueAsString(validation.validate(json));
+                resultCache.put(cacheKey, result);
+            }
+            return ResponseEntity.ok(result);
+        } catch (JsonProcessingException e) {
+            return error(HttpStatus.BAD_REQUEST, "Request body could not be validated: "
+                    + e.getOriginalMessage());
+        } catch (Exception e) {
+            LOG.error("Error during " + kind + " validation over http", e);
+            return error(HttpStatus.INTERNAL_SERVER_ERROR, "Error during validation: " + e.getMessage());
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Reads the body, returns null as soon as it turns out to be over the size limit.
+     */
+    private byte[] readBody(InputStream body) throws IOException {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        int read;
+        while ((read = body.read(buffer)) != -1) {
+            if (payload.size() + read > maxRequestBytes) {
+                return null;
+            }
+            payload.write(buffer, 0, read);
+        }
+        return payload.toByteArray();
+    }
+
+    /**
+     * Payloads encoded as a JSON string (as published over NATS) are unwrapped.
+     */
+    private String decode(byte[] payload) throws JsonProcessingException {
+        String json = new String(payload, StandardCharsets.UTF_8).strip();
+        if (json.startsWith("\"")) {
+            return NatsMsgUtil.extractNatsJsonString(payload);
+        }
+        return json.isEmpty() ? null : json;
+    }
+
+    private Map<String, Object> getStatusReport(Map<String, Object> jsonMap) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        Map<String, Object> status = mapper.convertValue(jsonMap.get("status"), Map.class);
+        report.put("validationStatus", (status == null) ? null : status.get("validationStatus"));
+        report.put("status", status);
+        List<Object> sampleReports = new ArrayList<>();
+        if (jsonMap.get("samples") != null) {
+            for (Object sample : mapper.convertValue(jsonMap.get("samples"), Object[].class)) {
+                Map<String, Object> sampleMap = mapper.convertValue(sample, Map.class);
+                Map<String, Object> sampleReport = new LinkedHashMap<>();
+                sampleReport.put("sampleId", getSampleId(sampleMap));
+                sampleReport.put("status", sampleMap.get("status"));
+                sampleReports.add(sampleReport);
+            }
+        }
+        report.put("samples", sampleReports);
+        return report;
+    }
+
+    private Object getSampleId(Map<String, Object> sampleMap) {
+        Object sampleId = sampleMap.get("igoId");
+        return (sampleId != null) ? sampleId : sampleMap.get("primaryId");
+    }
+
+    private ResponseEntity<String> error(HttpStatus status, String message) throws JsonProcessingException {
+        return ResponseEntity.status(status).contentType(MediaType.APPLICATION_JSON).body(errorJson(message));
+    }
+
+    private String errorJson(String message) throws JsonProcessingException {
+        return mapper.writeValueAsString(Map.of("error", message));
+    }
+}
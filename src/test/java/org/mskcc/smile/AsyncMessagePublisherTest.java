@@ -0,0 +1,144 @@
+package org.mskcc.smile;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mskcc.cmo.messaging.Gateway;
+import org.mskcc.smile.service.impl.AsyncMessagePublisherImpl;
+
+public class AsyncMessagePublisherTest {
+    private static final String TOPIC = "TEST.TOPIC";
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * Gateway stand-in that records what was published and fails the first
+     * publishes it is asked to make.
+     */
+    private static class RecordingGateway {
+        final List<Object> published = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger attempts = new AtomicInteger();
+        final AtomicInteger failuresLeft = new AtomicInteger();
+        volatile long publishDelayMillis = 0;
+
+        Gateway asGateway() {
+            return (Gateway) Proxy.newProxyInstance(Gateway.class.getClassLoader(),
+                    new Class<?>[] {Gateway.class}, (proxy, method, args) -> {
+                        if (!method.getName().equals("publish")) {
+                            return method.getName().equals("isConnected") ? Boolean.TRUE : null;
+                        }
+                        attempts.incrementAndGet();
+                        if (publishDelayMillis > 0) {
+                            Thread.sleep(publishDelayMillis);
+                        }
+                        if (failuresLeft.getAndDecrement() > 0) {
+                            throw new IllegalStateException("Simulated publish failure");
+                        }
+                        published.add(args[args.length - 1]);
+                        return null;
+                    });
+        }
+    }
+
+    private AsyncMessagePublisherImpl createPublisher(RecordingGateway gateway, int publishInFlight,
+            int retryMaxAttempts) throws Exception {
+        AsyncMessagePublisherImpl publisher = new AsyncMessagePublisherImpl(publishInFlight, 100,
+                retryMaxAttempts, 1L, 5L, "", tempDir.resolve("dead_letter.ndjson").toString());
+        publisher.initialize(gateway.asGateway());
+        return publisher;
+    }
+
+    /**
+     * Tests that messages with the same ordering key are published in order.
+     */
+    @Test
+    public void testPublishInOrder() throws Exception {
+        RecordingGateway gateway = new RecordingGateway();
+        AsyncMessagePublisherImpl publisher = createPublisher(gateway, 4, 3);
+        List<Object> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            expected.add("message-" + i);
+            publisher.publishInOrder("REQ_A", TOPIC, "message-" + i);
+        }
+        publisher.shutdown();
+        Assertions.assertEquals(expected, gateway.published);
+        Assertions.assertEquals(0L, publisher.getDeadLetterCount());
+    }
+
+    /**
+     * Tests that a failed publish is retried until it succeeds.
+     */
+    @Test
+    public void testRetryThenSuccess() throws Exception {
+        for (int publishInFlight : new int[] {0, 2}) {
+            RecordingGateway gateway = new RecordingGateway();
+            gateway.failuresLeft.set(2);
+            AsyncMessagePublisherImpl publisher = createPublisher(gateway, publishInFlight, 5);
+            CountDownLatch published = new CountDownLatch(1);
+            publisher.publish("REQ_A", TOPIC, "message", published::countDown);
+            Assertions.assertTrue(published.await(10, TimeUnit.SECONDS));
+            Assertions.assertEquals(1, gateway.published.size());
+            Assertions.assertEquals(3, gateway.attempts.get());
+            Assertions.assertEquals(0, publisher.getRetryQueueDepth());
+            publisher.shutdown();
+            Assertions.assertEquals(0L, publisher.getDeadLetterCount());
+        }
+    }
+
+    /**
+     * Tests that a message which fails every attempt is written to the dead-letter file.
+     */
+    @Test
+    public void testExhaustedRetriesAreDeadLettered() throws Exception {
+        RecordingGateway gateway = new RecordingGateway();
+        gateway.failuresLeft.set(Integer.MAX_VALUE);
+        AsyncMessagePublisherImpl publisher = createPublisher(gateway, 1, 3);
+        CountDownLatch deadLettered = new CountDownLatch(1);
+        publisher.publish("REQ_A", TOPIC, "message", deadLettered::countDown);
+        Assertions.assertTrue(deadLettered.await(10, TimeUnit.SECONDS));
+        publisher.shutdown();
+        Assertions.assertEquals(1L, publisher.getDeadLetterCount());
+
+        Assertions.assertEquals(3, gateway.attempts.get());
+        List<String> deadLetters = Files.readAllLines(tempDir.resolve("dead_letter.ndjson"));
+        Assertions.assertEquals(1, deadLetters.size());
+        Map<String, Object> deadLetter = mapper.readValue(deadLetters.get(0), Map.class);
+        Assertions.assertEquals(TOPIC, deadLetter.get("topic"));
+        Assertions.assertEquals(3, deadLetter.get("attempts"));
+        Assertions.assertEquals("message", deadLetter.get("message"));
+    }
+
+    /**
+     * Tests that shutdown publishes everything already buffered and that no message is
+     * accepted afterwards, whether publishing is asynchronous or inline.
+     */
+    @Test
+    public void testShutdownDrainsBuffer() throws Exception {
+        for (int publishInFlight : new int[] {0, 2}) {
+            RecordingGateway gateway = new RecordingGateway();
+            gateway.publishDelayMillis = 2;
+            AsyncMessagePublisherImpl publisher = createPublisher(gateway, publishInFlight, 3);
+            for (int i = 0; i < 50; i++) {
+                publisher.publishInOrder("REQ_" + (i % 5), TOPIC, "message-" + i);
+            }
+            publisher.shutdown();
+            Assertions.assertEquals(50, gateway.published.size());
+            Assertions.assertThrows(IllegalStateException.class,
+                    () -> publisher.publish("REQ_A", TOPIC, "late message"));
+            Assertions.assertEquals(50, gateway.attempts.get());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.mskcc.smile;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mskcc.smile.service.impl.BatchValidatorImpl;
+import org.mskcc.smile.service.impl.ValidRequestCheckerImpl;
+
+public class BatchValidatorTest {
+    private static final String INCOMING_REQUESTS = "data/incoming_requests";
+    private static final String MALFORMED_REQUEST = "{\"requestId\": \"MALFORMED\", \"samples\": [";
+
+    @TempDir
+    Path tempDir;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final ValidRequestCheckerImpl validRequestChecker = new ValidRequestCheckerImpl(false, 0, 0);
+
+    /**
+     * Tests that a directory of request files is validated in parallel into one result
+     * line per file, in file name order, each matching the request validated on its own.
+     */
+    @Test
+    public void testDirectoryInput() throws Exception {
+        Path directory = Paths.get(getClass().getClassLoader().getResource(INCOMING_REQUESTS).toURI());
+        List<Path> fixtures;
+        try (Stream<Path> paths = Files.list(directory)) {
+            fixtures = paths.filter(path -> path.toString().endsWith(".json"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        List<Map<String, Object>> results = validate(directory.toString(), 4);
+
+        Assertions.assertEquals(fixtures.size(), results.size());
+        int valid = 0;
+        for (int i = 0; i < fixtures.size(); i++) {
+            Map<String, Object> result = results.get(i);
+            String requestJson = Files.readString(fixtures.get(i));
+            Assertions.assertEquals(fixtures.get(i).toString(), result.get("source"));
+            Assertions.assertNull(result.get("error"), fixtures.get(i) + ": " + result.get("error"));
+            Assertions.assertEquals(validRequestChecker.getRequestId(requestJson), result.get("requestId"));
+
+            String filteredRequestJson = validRequestChecker.getFilteredValidRequestJson(requestJson);
+            Assertions.assertEquals(filteredRequestJson != null, result.containsKey("filteredRequest"));
+            String report = (filteredRequestJson == null) ? null
+                    : validRequestChecker.generateValidationReport(requestJson, filteredRequestJson);
+            Assertions.assertEquals(report, result.get("validationReport"), fixtures.get(i).toString());
+            if (filteredRequestJson != null && report == null) {
+                valid++;
+            }
+        }
+        Assertions.assertTrue(valid > 0 && valid < fixtures.size(),
+                "Expected both valid requests and requests with reports, valid: " + valid);
+    }
+
+    /**
+     * Tests that a malformed line of an NDJSON input gives an error result on its own
+     * line without stopping the batch, and that blank lines are skipped but counted
+     * in the line numbers.
+     */
+    @Test
+    public void testNdjsonInputWithMalformedLine() throws Exception {
+        Path directory = Paths.get(getClass().getClassLoader().getResource(INCOMING_REQUESTS).toURI());
+        List<String> requests = new ArrayList<>();
+        for (String fixture : List.of("mocked_request1_complete_tumor_normal.json",
+                "mocked_request3_pooled_normals.json", "mocked_request5_pt_multi_samples.json")) {
+            // one request per line
+            Object request = mapper.readValue(Files.readString(directory.resolve(fixture)), Object.class);
+            requests.add(mapper.writeValueAsString(request));
+        }
+        Path input = tempDir.resolve("requests.ndjson");
+        Files.write(input, List.of(requests.get(0), "", MALFORMED_REQUEST, requests.get(1), requests.get(2)),
+                StandardCharsets.UTF_8);
+        List<Map<String, Object>> results = validate(input.toString(), 2);
+
+        Assertions.assertEquals(4, results.size());
+        List<String> sources = new ArrayList<>();
+        for (Map<String, Object> result : results) {
+            sources.add((String) result.get("source"));
+        }
+        Assertions.assertEquals(List.of(input + ":1", input + ":3", input + ":4", input + ":5"), sources);
+
+        Map<String, Object> malformed = results.remove(1);
+        Assertions.assertNotNull(malformed.get("error"));
+        Assertions.assertFalse(malformed.containsKey("filteredRequest"));
+        for (int i = 0; i < requests.size(); i++) {
+            Map<String, Object> result = results.get(i);
+            Assertions.assertNull(result.get("error"), result.get("source") + ": " + result.get("error"));
+            Assertions.assertEquals(validRequestChecker.getRequestId(requests.get(i)),
+                    result.get("requestId"));
+            Assertions.assertTrue(result.containsKey("validationReport"));
+        }
+    }
+
+    private List<Map<String, Object>> validate(String input, int threads) throws Exception {
+        Path output = tempDir.resolve("validated.ndjson");
+        new BatchValidatorImpl(validRequestChecker, input, output.toString(), threads).validate();
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (String line : Files.readAllLines(output, StandardCharsets.UTF_8)) {
+            results.add(mapper.readValue(line, Map.class));
+        }
+        return results;
+    }
+}
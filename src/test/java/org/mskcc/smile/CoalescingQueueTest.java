@@ -0,0 +1,111 @@
+package org.mskcc.smile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.CoalescingQueue;
+
+public class CoalescingQueueTest {
+    private static final long HOLD_MILLIS = 300;
+
+    /**
+     * Tests that a newer value for a queued key replaces the older one.
+     */
+    @Test
+    public void testNewerValueSupersedesQueuedValue() throws Exception {
+        CoalescingQueue<String, String> queue = new CoalescingQueue<>(0, TimeUnit.MILLISECONDS);
+        Assertions.assertNull(queue.put("REQ_A", "v1"));
+        Assertions.assertEquals("v1", queue.put("REQ_A", "v2"));
+        Assertions.assertEquals("v2", queue.put("REQ_A", "v3"));
+        Assertions.assertEquals(1, queue.size());
+        Assertions.assertEquals(2L, queue.getSupersededCount());
+        Assertions.assertEquals("v3", queue.poll(0, TimeUnit.MILLISECONDS));
+        Assertions.assertNull(queue.poll(0, TimeUnit.MILLISECONDS));
+        // a key that was already taken is queued again
+        Assertions.assertNull(queue.put("REQ_A", "v4"));
+        Assertions.assertEquals("v4", queue.poll(0, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Tests that a key with a single version is released without waiting for the
+     * hold time.
+     */
+    @Test
+    public void testSingleVersionIsNotHeld() throws Exception {
+        CoalescingQueue<String, String> queue = new CoalescingQueue<>(10, TimeUnit.SECONDS);
+        queue.put("REQ_A", "v1");
+        long start = System.nanoTime();
+        Assertions.assertEquals("v1", queue.poll(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000,
+                "Value with no newer version was held");
+    }
+
+    /**
+     * Tests that a superseded key is held until the hold time after its first arrival,
+     * and no longer.
+     */
+    @Test
+    public void testSupersededKeyIsHeldUntilHoldTime() throws Exception {
+        CoalescingQueue<String, String> queue =
+                new CoalescingQueue<>(HOLD_MILLIS, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        queue.put("REQ_A", "v1");
+        queue.put("REQ_A", "v2");
+        Assertions.assertNull(queue.poll(0, TimeUnit.MILLISECONDS));
+        List<String> drained = new ArrayList<>();
+        Assertions.assertEquals(0, queue.drainReady(drained, 10));
+
+        Assertions.assertEquals("v2", queue.poll(5, TimeUnit.SECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assertions.assertTrue(elapsedMillis >= HOLD_MILLIS, "Released after " + elapsedMillis + "ms");
+        Assertions.assertTrue(elapsedMillis < HOLD_MILLIS + 2000, "Released after " + elapsedMillis + "ms");
+    }
+
+    /**
+     * Tests that values are released in order of first arrival, that a replaced value
+     * keeps its position and that a held key does not block the keys behind it.
+     */
+    @Test
+    public void testReleaseOrder() throws Exception {
+        CoalescingQueue<String, String> queue = new CoalescingQueue<>(0, TimeUnit.MILLISECONDS);
+        queue.put("REQ_A", "a1");
+        queue.put("REQ_B", "b1");
+        queue.put("REQ_C", "c1");
+        queue.put("REQ_A", "a2");
+        Assertions.assertEquals("a2", queue.poll(0, TimeUnit.MILLISECONDS));
+        Assertions.assertEquals("b1", queue.poll(0, TimeUnit.MILLISECONDS));
+        Assertions.assertEquals("c1", queue.poll(0, TimeUnit.MILLISECONDS));
+
+        CoalescingQueue<String, String> holdingQueue =
+                new CoalescingQueue<>(HOLD_MILLIS, TimeUnit.MILLISECONDS);
+        holdingQueue.put("REQ_A", "a1");
+        holdingQueue.put("REQ_B", "b1");
+        holdingQueue.put("REQ_A", "a2");
+        holdingQueue.put("REQ_C", "c1");
+        Assertions.assertEquals("b1", holdingQueue.poll(0, TimeUnit.MILLISECONDS));
+        Assertions.assertEquals("c1", holdingQueue.poll(0, TimeUnit.MILLISECONDS));
+        Assertions.assertEquals("a2", holdingQueue.poll(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Tests that only the matching values are drained and the others keep their order.
+     */
+    @Test
+    public void testDrainReadyWithFilter() throws Exception {
+        CoalescingQueue<String, String> queue = new CoalescingQueue<>(0, TimeUnit.MILLISECONDS);
+        queue.put("S1", "REQ_A:1");
+        queue.put("S2", "REQ_B:2");
+        queue.put("S3", "REQ_A:3");
+        queue.put("S4", "REQ_B:4");
+        queue.put("S5", "REQ_A:5");
+        List<String> drained = new ArrayList<>();
+        Assertions.assertEquals(2, queue.drainReady(drained, 2, value -> value.startsWith("REQ_A")));
+        Assertions.assertEquals(List.of("REQ_A:1", "REQ_A:3"), drained);
+        Assertions.assertEquals("REQ_B:2", queue.poll(0, TimeUnit.MILLISECONDS));
+        Assertions.assertEquals("REQ_B:4", queue.poll(0, TimeUnit.MILLISECONDS));
+        Assertions.assertEquals("REQ_A:5", queue.poll(0, TimeUnit.MILLISECONDS));
+        Assertions.assertEquals(0, queue.size());
+    }
+}
@@ -0,0 +1,80 @@
+package org.mskcc.smile;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.impl.ValidRequestCheckerImpl;
+import org.mskcc.smile.service.util.RuleProfiler;
+
+public class ColumnarValidationTest {
+    private static final String INCOMING_REQUESTS = "data/incoming_requests";
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Tests that requests validated on sample columns come out byte for byte the same as
+     * when validated on sample maps, over every mocked incoming request. Between them the
+     * requests have samples sharing a status and CMO samples dropped for missing a CMO
+     * patient id.
+     */
+    @Test
+    public void testColumnarOutputMatchesSampleMaps() throws Exception {
+        ValidRequestCheckerImpl mapChecker = createChecker(0);
+        ValidRequestCheckerImpl columnarChecker = createChecker(1);
+        RuleProfiler columnarProfiler = columnarChecker.getRuleProfiler();
+        columnarProfiler.setEnabled(true);
+
+        boolean sharedStatus = false;
+        boolean droppedSample = false;
+        for (Path fixture : listFixtures()) {
+            String requestJson = Files.readString(fixture);
+            List<?> samples = (List<?>) mapper.readValue(requestJson, Map.class).get("samples");
+            if (samples == null || samples.isEmpty()) {
+                continue;
+            }
+            columnarProfiler.reset();
+            String expected = mapChecker.getFilteredValidRequestJson(requestJson);
+            String actual = columnarChecker.getFilteredValidRequestJson(requestJson);
+            Assertions.assertTrue(isColumnar(columnarProfiler), fixture + " was not validated on columns");
+            Assertions.assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8),
+                    actual.getBytes(StandardCharsets.UTF_8), fixture.toString());
+
+            List<Map<String, Object>> filteredSamples =
+                    (List<Map<String, Object>>) mapper.readValue(actual, Map.class).get("samples");
+            Set<Object> statuses = new HashSet<>();
+            for (Map<String, Object> sample : filteredSamples) {
+                sharedStatus |= !statuses.add(sample.get("status"));
+            }
+            droppedSample |= filteredSamples.size() < samples.size();
+        }
+        Assertions.assertTrue(sharedStatus, "No request had samples sharing a status");
+        Assertions.assertTrue(droppedSample, "No request had samples dropped");
+    }
+
+    private boolean isColumnar(RuleProfiler ruleProfiler) {
+        return ruleProfiler.getProfile().stream()
+                .anyMatch(ruleProfile -> ((String) ruleProfile.get("rule")).endsWith(" (columns)"));
+    }
+
+    private List<Path> listFixtures() throws Exception {
+        Path directory = Paths.get(getClass().getClassLoader().getResource(INCOMING_REQUESTS).toURI());
+        try (Stream<Path> fixtures = Files.list(directory)) {
+            return fixtures.filter(path -> path.toString().endsWith(".json"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private ValidRequestCheckerImpl createChecker(int columnarMinSamples) {
+        return new ValidRequestCheckerImpl(false, 0, columnarMinSamples);
+    }
+}
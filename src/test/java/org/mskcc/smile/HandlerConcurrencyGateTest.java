@@ -0,0 +1,117 @@
+package org.mskcc.smile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.HandlerConcurrencyGate;
+import org.mskcc.smile.service.impl.HandlerConcurrencyGateImpl;
+import org.mskcc.smile.service.util.MessageSource;
+import org.mskcc.smile.service.util.QueuedMessage;
+
+public class HandlerConcurrencyGateTest {
+
+    private HandlerConcurrencyGate createGate(boolean enabled, int maxConcurrentHandlers,
+            int newRequestWeight, int sampleUpdateWeight) {
+        return new HandlerConcurrencyGateImpl(enabled, maxConcurrentHandlers, newRequestWeight, 1, 1,
+                sampleUpdateWeight, 0);
+    }
+
+    @Test
+    public void testDisabledGate() {
+        Assertions.assertFalse(createGate(false, 1, 1, 1).isEnabled());
+        Assertions.assertTrue(createGate(true, 1, 1, 1).isEnabled());
+    }
+
+    /**
+     * Tests that no more handlers than the configured number of workers run at once and
+     * that every queued message is handled.
+     */
+    @Test
+    public void testLimitsConcurrentHandlers() throws Exception {
+        HandlerConcurrencyGate gate = createGate(true, 2, 8, 1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch handled = new CountDownLatch(12);
+        for (String messageClass : List.of(HandlerConcurrencyGate.NEW_REQUEST,
+                HandlerConcurrencyGate.SAMPLE_UPDATE)) {
+            gate.register(messageClass, queue(messageClass, 6), message -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(20);
+                running.decrementAndGet();
+                handled.countDown();
+            }, "Handler failed");
+        }
+        Assertions.assertTrue(handled.await(10, TimeUnit.SECONDS), "Queued messages were not all handled");
+        Assertions.assertTrue(maxRunning.get() <= 2, "Ran " + maxRunning.get() + " handlers at once");
+    }
+
+    /**
+     * Tests that queued messages are taken in proportion to the weight of their message
+     * class, even with one queue per class.
+     */
+    @Test
+    public void testQueuesServedByWeight() throws Exception {
+        HandlerConcurrencyGate gate = createGate(true, 1, 3, 1);
+        CountDownLatch releaseWorker = new CountDownLatch(1);
+        CountDownLatch workerTaken = new CountDownLatch(1);
+        gate.register(HandlerConcurrencyGate.PROMOTED_REQUEST, queue("blocker", 1), message -> {
+            workerTaken.countDown();
+            releaseWorker.await();
+        }, "Handler failed");
+        Assertions.assertTrue(workerTaken.await(10, TimeUnit.SECONDS));
+
+        // both backlogs are queued before the only worker is freed
+        List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch allHandled = new CountDownLatch(8);
+        for (String messageClass : List.of(HandlerConcurrencyGate.NEW_REQUEST,
+                HandlerConcurrencyGate.SAMPLE_UPDATE)) {
+            gate.register(messageClass, queue(messageClass, 4), message -> {
+                handled.add(message.getMessage());
+                allHandled.countDown();
+            }, "Handler failed");
+        }
+        releaseWorker.countDown();
+        Assertions.assertTrue(allHandled.await(10, TimeUnit.SECONDS));
+
+        int newRequests = Collections.frequency(handled.subList(0, 4), HandlerConcurrencyGate.NEW_REQUEST);
+        Assertions.assertEquals(3, newRequests, "Unexpected handling order: " + handled);
+    }
+
+    /**
+     * Tests that a queue is only removed once every message in it has been handled.
+     */
+    @Test
+    public void testDrainAndRemove() throws Exception {
+        HandlerConcurrencyGate gate = createGate(true, 2, 1, 1);
+        AtomicInteger handled = new AtomicInteger();
+        HandlerConcurrencyGate.Registration registration = gate.register(HandlerConcurrencyGate.NEW_REQUEST,
+                queue(HandlerConcurrencyGate.NEW_REQUEST, 10), message -> {
+                    Thread.sleep(5);
+                    handled.incrementAndGet();
+                }, "Handler failed");
+        registration.drainAndRemove();
+        Assertions.assertEquals(10, handled.get());
+    }
+
+    @Test
+    public void testUnknownMessageClass() {
+        HandlerConcurrencyGate gate = createGate(true, 1, 1, 1);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> gate.register("unknown",
+                queue("unknown", 0), message -> { }, "Handler failed"));
+    }
+
+    private MessageSource<QueuedMessage<String>> queue(String message, int count) {
+        BlockingQueue<QueuedMessage<String>> queue = new LinkedBlockingQueue<>();
+        for (int i = 0; i < count; i++) {
+            queue.add(new QueuedMessage<>(message, null, message.length(), System.nanoTime()));
+        }
+        return MessageSource.of(queue);
+    }
+}
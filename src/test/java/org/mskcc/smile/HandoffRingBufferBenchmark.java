@@ -0,0 +1,117 @@
+package org.mskcc.smile;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.mskcc.smile.service.util.HandoffRingBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+/**
+ * Compares handing messages from subscriber threads to handler threads through the
+ * LinkedBlockingQueue used by default against the handoff ring with each wait strategy.
+ * The spsc group matches the single subscriber feeding the handlers, the mpmc group
+ * several producers and consumers sharing the queue.
+ *
+ * <p>Run with: mvn -P benchmark test-compile exec:exec -Dbenchmark.include=HandoffRingBufferBenchmark
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandoffRingBufferBenchmark {
+    private static final String MESSAGE = "{\"requestId\":\"REQ_A\"}";
+    private static final int CAPACITY = 1024;
+
+    @Param({"linked_blocking_queue", "blocking", "yielding", "busy_spin"})
+    public String handoff;
+
+    private LinkedBlockingQueue<String> queue;
+    private HandoffRingBuffer<String> ring;
+
+    /**
+     * Creates an empty queue or ring for each iteration so that nothing left over from
+     * the previous one is counted.
+     */
+    @Setup(Level.Iteration)
+    public void setUp() {
+        if (handoff.equals("linked_blocking_queue")) {
+            queue = new LinkedBlockingQueue<>(CAPACITY);
+            ring = null;
+        } else {
+            queue = null;
+            ring = new HandoffRingBuffer<>(CAPACITY,
+                    HandoffRingBuffer.WaitStrategy.valueOf(handoff.toUpperCase()));
+        }
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public boolean spscPut(Control control) {
+        return put(control);
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public String spscTake(Control control) throws InterruptedException {
+        return take(control);
+    }
+
+    @Benchmark
+    @Group("mpmc")
+    @GroupThreads(4)
+    public boolean mpmcPut(Control control) {
+        return put(control);
+    }
+
+    @Benchmark
+    @Group("mpmc")
+    @GroupThreads(4)
+    public String mpmcTake(Control control) throws InterruptedException {
+        return take(control);
+    }
+
+    /**
+     * Puts a message, giving up once the iteration ends so that a producer facing a full
+     * queue doesn't hang after the consumers have stopped.
+     */
+    private boolean put(Control control) {
+        while (!control.stopMeasurement) {
+            if ((queue != null) ? queue.offer(MESSAGE) : ring.offer(MESSAGE)) {
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+        return false;
+    }
+
+    /**
+     * Takes a message the way the handlers do, waiting on the queue while it is empty.
+     */
+    private String take(Control control) throws InterruptedException {
+        while (!control.stopMeasurement) {
+            String message = (queue != null)
+                    ? queue.poll(1, TimeUnit.MILLISECONDS) : ring.poll(1, TimeUnit.MILLISECONDS);
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,100 @@
+package org.mskcc.smile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.HandoffRingBuffer;
+
+public class HandoffRingBufferTest {
+    private static final int PRODUCERS = 4;
+    private static final int CONSUMERS = 4;
+    private static final int MESSAGES_PER_PRODUCER = 1000;
+
+    /**
+     * Tests that a single producer and consumer see the messages in order and that
+     * polling an empty ring times out.
+     */
+    @Test
+    public void testFifoAndEmptyPoll() throws Exception {
+        for (HandoffRingBuffer.WaitStrategy waitStrategy : HandoffRingBuffer.WaitStrategy.values()) {
+            HandoffRingBuffer<Integer> ring = new HandoffRingBuffer<>(3, waitStrategy);
+            Assertions.assertEquals(4, ring.getCapacity());
+            Assertions.assertNull(ring.poll(5, TimeUnit.MILLISECONDS));
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 4; i++) {
+                    Assertions.assertTrue(ring.offer(i));
+                }
+                Assertions.assertFalse(ring.offer(4));
+                Assertions.assertEquals(4, ring.size());
+                for (int i = 0; i < 4; i++) {
+                    Assertions.assertEquals(Integer.valueOf(i), ring.poll(0, TimeUnit.MILLISECONDS));
+                }
+                Assertions.assertEquals(0, ring.size());
+            }
+        }
+    }
+
+    /**
+     * Tests that with several producers and consumers sharing a small ring every message
+     * is taken exactly once, with each wait strategy.
+     */
+    @Test
+    public void testMultipleProducersAndConsumers() throws Exception {
+        for (HandoffRingBuffer.WaitStrategy waitStrategy : HandoffRingBuffer.WaitStrategy.values()) {
+            HandoffRingBuffer<Integer> ring = new HandoffRingBuffer<>(16, waitStrategy);
+            int total = PRODUCERS * MESSAGES_PER_PRODUCER;
+            AtomicIntegerArray timesTaken = new AtomicIntegerArray(total);
+            AtomicLong taken = new AtomicLong();
+            List<Thread> threads = new ArrayList<>();
+            for (int p = 0; p < PRODUCERS; p++) {
+                int first = p * MESSAGES_PER_PRODUCER;
+                threads.add(start(() -> {
+                    for (int i = first; i < first + MESSAGES_PER_PRODUCER; i++) {
+                        ring.put(i);
+                    }
+                }));
+            }
+            for (int c = 0; c < CONSUMERS; c++) {
+                threads.add(start(() -> {
+                    while (taken.get() < total) {
+                        Integer message = ring.poll(1, TimeUnit.MILLISECONDS);
+                        if (message != null) {
+                            timesTaken.incrementAndGet(message);
+                            taken.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.join(TimeUnit.SECONDS.toMillis(30));
+                Assertions.assertFalse(thread.isAlive(), "Thread did not finish with " + waitStrategy);
+            }
+            Assertions.assertEquals(total, taken.get());
+            for (int i = 0; i < total; i++) {
+                Assertions.assertEquals(1, timesTaken.get(i), "Message " + i + " with " + waitStrategy);
+            }
+            Assertions.assertEquals(0, ring.size());
+        }
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        void run() throws InterruptedException;
+    }
+
+    private Thread start(Task task) {
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
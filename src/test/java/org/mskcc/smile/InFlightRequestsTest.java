@@ -0,0 +1,40 @@
+package org.mskcc.smile;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.InFlightRequests;
+
+public class InFlightRequestsTest {
+
+    /**
+     * Tests that newer versions of a request follow the first one into its lane until
+     * every version has been released.
+     */
+    @Test
+    public void testVersionsFollowRequestInFlight() {
+        InFlightRequests<String> inFlightRequests = new InFlightRequests<>();
+        Assertions.assertEquals("bulk", inFlightRequests.route("REQ_A", "bulk"));
+        Assertions.assertEquals("bulk", inFlightRequests.route("REQ_A", "regular"));
+        Assertions.assertEquals("regular", inFlightRequests.route("REQ_B", "regular"));
+        Assertions.assertEquals(2, inFlightRequests.size());
+
+        inFlightRequests.release("REQ_A");
+        Assertions.assertEquals("bulk", inFlightRequests.route("REQ_A", "regular"));
+        inFlightRequests.release("REQ_A");
+        inFlightRequests.release("REQ_A");
+        Assertions.assertEquals(1, inFlightRequests.size());
+        Assertions.assertEquals("regular", inFlightRequests.route("REQ_A", "regular"));
+    }
+
+    /**
+     * Tests that messages without a request id are routed on their own merits.
+     */
+    @Test
+    public void testMissingRequestIdIsNotTracked() {
+        InFlightRequests<String> inFlightRequests = new InFlightRequests<>();
+        Assertions.assertEquals("bulk", inFlightRequests.route(null, "bulk"));
+        Assertions.assertEquals("regular", inFlightRequests.route("", "regular"));
+        inFlightRequests.release(null);
+        Assertions.assertEquals(0, inFlightRequests.size());
+    }
+}
@@ -0,0 +1,172 @@
+package org.mskcc.smile;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.nats.client.impl.NatsMessage;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mskcc.cmo.messaging.Gateway;
+import org.mskcc.cmo.messaging.MessageConsumer;
+import org.mskcc.smile.service.impl.HandlerConcurrencyGateImpl;
+import org.mskcc.smile.service.impl.MappedArchiveReplayerImpl;
+import org.mskcc.smile.service.impl.MessagePipelineImpl;
+
+public class MappedArchiveReplayerTest {
+    private static final String REQUEST_TOPIC = "IGO.REQUEST_FILTER";
+    private static final String SAMPLE_UPDATE_TOPIC = "IGO.VALIDATE_SAMPLE_UPDATE";
+    private static final int CHUNK_MB = 1;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @TempDir
+    Path tempDir;
+
+    private final Map<String, MessageConsumer> consumers = new ConcurrentHashMap<>();
+    private final List<String> receivedTopics = Collections.synchronizedList(new ArrayList<>());
+    private final List<byte[]> receivedData = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> receivedNanos = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Tests that messages captured by the pipeline are delivered again byte for byte and in
+     * order when the capture is replayed in chunks much smaller than the capture, with lines
+     * straddling the chunk boundaries.
+     */
+    @Test
+    public void testCaptureRoundTrip() throws Exception {
+        Path captureFile = tempDir.resolve("capture.ndjson");
+        List<String> topics = new ArrayList<>();
+        List<byte[]> payloads = new ArrayList<>();
+        // json encoded strings as published over nats, with characters that need escaping
+        topics.add(REQUEST_TOPIC);
+        payloads.add(mapper.writeValueAsBytes(
+                "{\"requestId\": \"12345_B\", \"note\": \"tab\\t\\\"\u00e9\\\"\\n\"}"));
+        // not a string, taken as is
+        topics.add(SAMPLE_UPDATE_TOPIC);
+        payloads.add("[{\"igoId\": \"12345_B_1\"}, {\"igoId\": null}]".getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < 7; i++) {
+            topics.add((i % 2 == 0) ? REQUEST_TOPIC : SAMPLE_UPDATE_TOPIC);
+            payloads.add(mapper.writeValueAsBytes(largeRequest("LARGE" + i, 300 * 1024)));
+        }
+
+        MessagePipelineImpl capturePipeline = createPipeline(captureFile.toString());
+        Gateway gateway = createGateway();
+        capturePipeline.subscribe(gateway, REQUEST_TOPIC, msg -> { });
+        capturePipeline.subscribe(gateway, SAMPLE_UPDATE_TOPIC, msg -> { });
+        for (int i = 0; i < payloads.size(); i++) {
+            consumers.get(topics.get(i)).onMessage(
+                    NatsMessage.builder().subject(topics.get(i)).data(payloads.get(i)).build(), null);
+        }
+        capturePipeline.shutdown();
+        Assertions.assertTrue(Files.size(captureFile) > 2L * CHUNK_MB * 1024 * 1024,
+                "Capture fits in fewer than three chunks");
+
+        replay(captureFile, 0);
+        Assertions.assertEquals(topics, receivedTopics);
+        for (int i = 0; i < payloads.size(); i++) {
+            Assertions.assertArrayEquals(payloads.get(i), receivedData.get(i), "Message " + i);
+        }
+    }
+
+    /**
+     * Tests that a line longer than a chunk fails the replay instead of being split, after
+     * the lines before it have been delivered.
+     */
+    @Test
+    public void testLineLongerThanChunk() throws Exception {
+        Path captureFile = tempDir.resolve("capture.ndjson");
+        String longRequest = mapper.writeValueAsString(largeRequest("LONG", CHUNK_MB * 1024 * 1024 + 1));
+        Files.write(captureFile, List.of(captureLine(REQUEST_TOPIC, 1000, "\"short\""),
+                captureLine(REQUEST_TOPIC, 1001, longRequest),
+                captureLine(REQUEST_TOPIC, 1002, "\"after\"")), StandardCharsets.UTF_8);
+
+        IllegalStateException e = Assertions.assertThrows(IllegalStateException.class,
+                () -> replay(captureFile, 0));
+        Assertions.assertTrue(e.getMessage().contains("replay.chunk_mb"), e.getMessage());
+        Assertions.assertEquals(1, receivedData.size());
+        Assertions.assertEquals("\"short\"", new String(receivedData.get(0), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Tests that replay.rate paces messages by their capture timestamps, and that lines
+     * which can't be delivered are skipped.
+     */
+    @Test
+    public void testPacing() throws Exception {
+        Path captureFile = tempDir.resolve("capture.ndjson");
+        Files.write(captureFile, List.of(captureLine(REQUEST_TOPIC, 10000, "\"first\""),
+                "not json",
+                captureLine("UNSUBSCRIBED.TOPIC", 10500, "\"unsubscribed\""),
+                captureLine(SAMPLE_UPDATE_TOPIC, 11000, "\"second\""),
+                captureLine(REQUEST_TOPIC, 12000, "\"third\"")), StandardCharsets.UTF_8);
+
+        // two seconds of captured traffic replayed at 5x
+        replay(captureFile, 5);
+        Assertions.assertEquals(List.of(REQUEST_TOPIC, SAMPLE_UPDATE_TOPIC, REQUEST_TOPIC), receivedTopics);
+        long firstToSecond = receivedNanos.get(1) - receivedNanos.get(0);
+        long firstToThird = receivedNanos.get(2) - receivedNanos.get(0);
+        Assertions.assertTrue(firstToSecond >= TimeUnit.MILLISECONDS.toNanos(190),
+                "Replayed too fast: " + TimeUnit.NANOSECONDS.toMillis(firstToSecond) + " ms");
+        Assertions.assertTrue(firstToThird >= TimeUnit.MILLISECONDS.toNanos(390),
+                "Replayed too fast: " + TimeUnit.NANOSECONDS.toMillis(firstToThird) + " ms");
+        Assertions.assertTrue(firstToThird < TimeUnit.MILLISECONDS.toNanos(1500),
+                "Replayed at the captured rate: " + TimeUnit.NANOSECONDS.toMillis(firstToThird) + " ms");
+    }
+
+    private void replay(Path captureFile, double rate) throws Exception {
+        MessagePipelineImpl replayPipeline = createPipeline("");
+        Gateway gateway = createGateway();
+        for (String topic : List.of(REQUEST_TOPIC, SAMPLE_UPDATE_TOPIC)) {
+            replayPipeline.subscribe(gateway, topic, msg -> {
+                receivedNanos.add(System.nanoTime());
+                receivedTopics.add(topic);
+                receivedData.add(msg.getData());
+            });
+        }
+        try {
+            new MappedArchiveReplayerImpl(replayPipeline, captureFile.toString(), rate, CHUNK_MB).replay();
+        } finally {
+            replayPipeline.shutdown();
+        }
+    }
+
+    /**
+     * Only subscribing, capturing and delivering are used, so the pipeline runs without a
+     * journal or environment.
+     */
+    private MessagePipelineImpl createPipeline(String captureFile) {
+        return new MessagePipelineImpl(handlerGroup -> { },
+                new HandlerConcurrencyGateImpl(false, 0, 1, 1, 1, 1, 0), null, null, false, captureFile,
+                TimeUnit.MINUTES.toMillis(1));
+    }
+
+    private Gateway createGateway() {
+        return (Gateway) Proxy.newProxyInstance(Gateway.class.getClassLoader(),
+                new Class<?>[] {Gateway.class}, (proxy, method, args) -> {
+                    if ("subscribe".equals(method.getName())) {
+                        consumers.put((String) args[0], (MessageConsumer) args[2]);
+                    }
+                    return null;
+                });
+    }
+
+    private String largeRequest(String requestId, int size) throws Exception {
+        StringBuilder notes = new StringBuilder();
+        while (notes.length() < size) {
+            notes.append("line ").append(notes.length()).append("\n");
+        }
+        return mapper.writeValueAsString(Map.of("requestId", requestId, "notes", notes.toString()));
+    }
+
+    private String captureLine(String topic, long timestamp, String data) {
+        return "{\"topic\":\"" + topic + "\",\"timestamp\":" + timestamp + ",\"data\":" + data + "}";
+    }
+}
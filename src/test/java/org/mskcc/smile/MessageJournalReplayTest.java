@@ -0,0 +1,169 @@
+package org.mskcc.smile;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mskcc.cmo.messaging.Gateway;
+import org.mskcc.smile.service.HandlerConcurrencyGate;
+import org.mskcc.smile.service.impl.AsyncMessagePublisherImpl;
+import org.mskcc.smile.service.impl.MappedMessageJournalImpl;
+import org.mskcc.smile.service.util.PendingAck;
+
+public class MessageJournalReplayTest {
+    private static final String STREAM = HandlerConcurrencyGate.NEW_REQUEST;
+    private static final String TOPIC = "TEST.TOPIC";
+    private static final String STUCK_REQUEST = "request-stuck";
+    private static final String UNDELIVERABLE_REQUEST = "request-undeliverable";
+    private static final String MALFORMED_REQUEST = "{\"requestId\": ";
+
+    @TempDir
+    Path tempDir;
+
+    private final List<String> acknowledged = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch firstAcknowledgements = new CountDownLatch(2);
+    // the send of the stuck request never returns, as if the process died during it
+    private final CountDownLatch stuckSendReleased = new CountDownLatch(1);
+
+    /**
+     * Tests that a message is only acknowledged in the journal once its result has been
+     * published or dead-lettered. A message still waiting to be sent when the process
+     * dies, or whose handler failed, is replayed on the next startup.
+     */
+    @Test
+    public void testUnpublishedMessagesAreReplayed() throws Exception {
+        AsyncMessagePublisherImpl publisher = createPublisher();
+        MappedMessageJournalImpl journal = createJournal(publisher);
+        try {
+            handle(journal, publisher, "request-published", false);
+            handle(journal, publisher, UNDELIVERABLE_REQUEST, false);
+            Assertions.assertTrue(firstAcknowledgements.await(10, TimeUnit.SECONDS));
+            handle(journal, publisher, "request-failed", true);
+            handle(journal, publisher, STUCK_REQUEST, false);
+            Assertions.assertEquals(List.of("request-published", UNDELIVERABLE_REQUEST), acknowledged);
+            Assertions.assertEquals(1L, publisher.getDeadLetterCount());
+
+            // restart on the same journal file without shutting down the first instance
+            List<String> replayed = new ArrayList<>();
+            createJournal(publisher).replay(STREAM, replayed::add);
+            Assertions.assertEquals(List.of("request-failed", STUCK_REQUEST), replayed);
+        } finally {
+            stuckSendReleased.countDown();
+            publisher.shutdown();
+        }
+    }
+
+    /**
+     * Tests that a message whose handler fails on every replay is dead-lettered after
+     * journal.max_replay_attempts instead of being replayed on every startup.
+     */
+    @Test
+    public void testFailingMessageIsDeadLettered() throws Exception {
+        AsyncMessagePublisherImpl publisher = createPublisher();
+        try {
+            MappedMessageJournalImpl journal = createJournal(publisher);
+            handle(journal, publisher, MALFORMED_REQUEST, true);
+            List<String> replayed = new ArrayList<>();
+            for (int startup = 0; startup < 3; startup++) {
+                MappedMessageJournalImpl restarted = createJournal(publisher);
+                restarted.replay(STREAM, payload -> {
+                    replayed.add(payload);
+                    handle(restarted, publisher, payload, true);
+                });
+            }
+            // handled once and replayed twice before it is dead-lettered on the third startup
+            Assertions.assertEquals(List.of(MALFORMED_REQUEST, MALFORMED_REQUEST), replayed);
+            Assertions.assertEquals(1L, publisher.getDeadLetterCount());
+            Assertions.assertTrue(Files.readString(tempDir.resolve("dead_letter.ndjson"))
+                    .contains("\"attempts\":3"));
+            createJournal(publisher).replay(STREAM, payload -> Assertions.fail("Replayed " + payload));
+        } finally {
+            publisher.shutdown();
+        }
+    }
+
+    /**
+     * Tests that compacting a full journal keeps every unacknowledged record, in order,
+     * and leaves no compaction file behind.
+     */
+    @Test
+    public void testCompactionKeepsUnacknowledgedRecords() throws Exception {
+        AsyncMessagePublisherImpl publisher = createPublisher();
+        try {
+            MappedMessageJournalImpl journal = createJournal(publisher);
+            String padding = "x".repeat(64 * 1024);
+            List<String> outstanding = new ArrayList<>();
+            // about three times the size of the journal, every tenth message is left outstanding
+            for (int i = 0; i < 50; i++) {
+                String payload = i + padding;
+                journal.append(STREAM, payload, payload);
+                if (i % 10 == 0) {
+                    outstanding.add(payload);
+                } else {
+                    journal.ack(payload);
+                }
+            }
+            Assertions.assertFalse(Files.exists(tempDir.resolve("message_journal.dat.compact")));
+            List<String> replayed = new ArrayList<>();
+            createJournal(publisher).replay(STREAM, replayed::add);
+            Assertions.assertEquals(outstanding, replayed);
+        } finally {
+            publisher.shutdown();
+        }
+    }
+
+    /**
+     * Journals and handles a message the way the message handling services do.
+     */
+    private void handle(MappedMessageJournalImpl journal, AsyncMessagePublisherImpl publisher,
+            String requestJson, boolean handlerFails) throws Exception {
+        journal.append(STREAM, requestJson, requestJson);
+        PendingAck pendingAck = new PendingAck(() -> {
+            journal.ack(requestJson);
+            acknowledged.add(requestJson);
+            firstAcknowledgements.countDown();
+        });
+        try {
+            if (handlerFails) {
+                throw new IllegalStateException("Simulated handler failure");
+            }
+            publisher.publish(requestJson, TOPIC, requestJson, pendingAck.track());
+            pendingAck.complete();
+        } catch (IllegalStateException e) {
+            // logged and dropped by the handler group
+            journal.release(requestJson);
+        }
+    }
+
+    private MappedMessageJournalImpl createJournal(AsyncMessagePublisherImpl publisher) {
+        return new MappedMessageJournalImpl(publisher, true,
+                tempDir.resolve("message_journal.dat").toString(), 1, 3);
+    }
+
+    private AsyncMessagePublisherImpl createPublisher() throws Exception {
+        AsyncMessagePublisherImpl publisher = new AsyncMessagePublisherImpl(1, 10, 2, 1L, 5L, "",
+                tempDir.resolve("dead_letter.ndjson").toString());
+        Gateway gateway = (Gateway) Proxy.newProxyInstance(Gateway.class.getClassLoader(),
+                new Class<?>[] {Gateway.class}, (proxy, method, args) -> {
+                    if (!method.getName().equals("publish")) {
+                        return null;
+                    }
+                    Object message = args[args.length - 1];
+                    if (STUCK_REQUEST.equals(message)) {
+                        stuckSendReleased.await();
+                    } else if (UNDELIVERABLE_REQUEST.equals(message)) {
+                        throw new IllegalStateException("Simulated publish failure");
+                    }
+                    return null;
+                });
+        publisher.initialize(gateway);
+        return publisher;
+    }
+}
@@ -0,0 +1,90 @@
+package org.mskcc.smile;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.OffHeapRingBuffer;
+
+public class OffHeapRingBufferTest {
+    // each 10 byte payload takes up 22 bytes of the ring with its length and timestamp
+    private static final int PAYLOAD_SIZE = 10;
+
+    /**
+     * Tests that a record which doesn't fit at the end of the ring is written at the start,
+     * both when the skipped space can hold a wrap marker and when it can't.
+     */
+    @Test
+    public void testWrapAround() throws Exception {
+        for (int capacity : new int[] {48, 46}) {
+            OffHeapRingBuffer buffer = new OffHeapRingBuffer("test", capacity);
+            buffer.put(payload('a'));
+            buffer.put(payload('b'));
+            assertPayload('a', buffer.poll(0, TimeUnit.MILLISECONDS));
+            buffer.put(payload('c'));
+            Assertions.assertEquals(capacity, buffer.getUsedBytes());
+            assertPayload('b', buffer.poll(0, TimeUnit.MILLISECONDS));
+            assertPayload('c', buffer.poll(0, TimeUnit.MILLISECONDS));
+            Assertions.assertEquals(0, buffer.getUsedBytes());
+            Assertions.assertEquals(0L, buffer.getOverflowCount());
+        }
+    }
+
+    /**
+     * Tests that payloads overflow onto the heap once the ring is full and that the
+     * order of the payloads is kept while the overflow drains.
+     */
+    @Test
+    public void testFullRingOverflowsInOrder() throws Exception {
+        OffHeapRingBuffer buffer = new OffHeapRingBuffer("test", 56);
+        buffer.put(payload('a'));
+        buffer.put(payload('b'));
+        buffer.put(payload('c'));
+        // would fit in the space left in the ring but has to queue behind the overflow
+        buffer.put(new byte[0]);
+        Assertions.assertEquals(4, buffer.size());
+        Assertions.assertEquals(2L, buffer.getOverflowCount());
+
+        assertPayload('a', buffer.poll(0, TimeUnit.MILLISECONDS));
+        assertPayload('b', buffer.poll(0, TimeUnit.MILLISECONDS));
+        assertPayload('c', buffer.poll(0, TimeUnit.MILLISECONDS));
+        Assertions.assertEquals(0, buffer.poll(0, TimeUnit.MILLISECONDS).length);
+
+        // a payload larger than the whole ring still gets through
+        byte[] oversized = new byte[80];
+        buffer.put(oversized);
+        Assertions.assertArrayEquals(oversized, buffer.poll(0, TimeUnit.MILLISECONDS));
+        Assertions.assertEquals(3L, buffer.getOverflowCount());
+    }
+
+    /**
+     * Tests that polling an empty buffer waits out the timeout and returns null.
+     */
+    @Test
+    public void testPollEmptyTimesOut() throws Exception {
+        OffHeapRingBuffer buffer = new OffHeapRingBuffer("test", 32);
+        long start = System.nanoTime();
+        Assertions.assertNull(buffer.poll(20, TimeUnit.MILLISECONDS));
+        Assertions.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        Assertions.assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void testCapacityInMegabytes() {
+        Assertions.assertEquals(0, OffHeapRingBuffer.ofMegabytes("test", 1).getUsedBytes());
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> OffHeapRingBuffer.ofMegabytes("test", 0));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> OffHeapRingBuffer.ofMegabytes("test", OffHeapRingBuffer.MAX_CAPACITY_MB + 1));
+    }
+
+    private static byte[] payload(char c) {
+        byte[] data = new byte[PAYLOAD_SIZE];
+        Arrays.fill(data, (byte) c);
+        return data;
+    }
+
+    private static void assertPayload(char expected, byte[] actual) {
+        Assertions.assertArrayEquals(payload(expected), actual);
+    }
+}
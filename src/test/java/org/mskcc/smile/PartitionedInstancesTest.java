@@ -0,0 +1,220 @@
+package org.mskcc.smile;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.nats.client.impl.NatsMessage;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mskcc.cmo.messaging.Gateway;
+import org.mskcc.cmo.messaging.MessageConsumer;
+import org.mskcc.smile.service.impl.AsyncMessagePublisherImpl;
+import org.mskcc.smile.service.impl.HandlerConcurrencyGateImpl;
+import org.mskcc.smile.service.impl.MappedMessageJournalImpl;
+import org.mskcc.smile.service.impl.MessagePipelineImpl;
+import org.mskcc.smile.service.impl.RequestFilterMsgHandlingServiceIml;
+import org.mskcc.smile.service.impl.ValidRequestCheckerImpl;
+import org.mskcc.smile.service.impl.ValidateUpdatesMsgHandlingServiceImpl;
+import org.mskcc.smile.service.util.RequestHeader;
+import org.springframework.core.env.Environment;
+
+public class PartitionedInstancesTest {
+    private static final int INSTANCE_COUNT = 3;
+    private static final int NUM_REQUESTS = 30;
+    private static final String REQUEST_FILTER_TOPIC = "IGO.REQUEST_FILTER";
+    private static final String SAMPLE_UPDATE_TOPIC = "IGO.VALIDATE_SAMPLE_UPDATE";
+    private static final String REQUEST_FIXTURE =
+            "data/incoming_requests/mocked_request1_complete_tumor_normal.json";
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * In-memory stand-in for the NATS gateway: every instance connected to it receives
+     * every message sent to the topics it subscribed to, and whatever an instance
+     * publishes is recorded against that instance.
+     */
+    private class InMemoryGateway {
+        final Map<String, List<MessageConsumer>> subscribers = new ConcurrentHashMap<>();
+        // request ids of the messages published by each instance
+        final Map<String, Set<Integer>> publishers = new ConcurrentHashMap<>();
+        final List<String> published = new CopyOnWriteArrayList<>();
+        // one request and one sample update result is published per request
+        final CountDownLatch allPublished = new CountDownLatch(2 * NUM_REQUESTS);
+
+        Gateway connect(int instance) {
+            return (Gateway) Proxy.newProxyInstance(Gateway.class.getClassLoader(),
+                    new Class<?>[] {Gateway.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "subscribe":
+                                subscribers.computeIfAbsent((String) args[0],
+                                        t -> new CopyOnWriteArrayList<>()).add((MessageConsumer) args[2]);
+                                return null;
+                            case "publish":
+                                String requestId = getPublishedRequestId(args[args.length - 1]);
+                                publishers.computeIfAbsent(requestId,
+                                        r -> ConcurrentHashMap.newKeySet()).add(instance);
+                                published.add(requestId);
+                                allPublished.countDown();
+                                return null;
+                            case "isConnected":
+                                return Boolean.TRUE;
+                            default:
+                                return null;
+                        }
+                    });
+        }
+
+        void send(String topic, Object message) throws Exception {
+            byte[] data = mapper.writeValueAsBytes(mapper.writeValueAsString(message));
+            for (MessageConsumer consumer : subscribers.getOrDefault(topic, List.of())) {
+                consumer.onMessage(NatsMessage.builder().subject(topic).data(data).build(), null);
+            }
+        }
+
+        private String getPublishedRequestId(Object message) throws Exception {
+            // cmo sample updates are published as a list, everything else one at a time
+            Object json = (message instanceof List) ? ((List<?>) message).get(0) : message;
+            return RequestHeader.probe((String) json).getRequestId();
+        }
+    }
+
+    /**
+     * Tests that several instances partitioning the same topics between them, each with
+     * its own handlers and publisher, handle each new request and each sample update in
+     * exactly one instance.
+     */
+    @Test
+    public void testEachRequestHandledByOneInstance() throws Exception {
+        InMemoryGateway gateway = new InMemoryGateway();
+        List<Instance> instances = new ArrayList<>();
+        for (int i = 0; i < INSTANCE_COUNT; i++) {
+            instances.add(new Instance(i, gateway.connect(i)));
+        }
+        try {
+            Map<String, Object> request = loadRequest();
+            for (int r = 0; r < NUM_REQUESTS; r++) {
+                String requestId = "MOCKREQUEST" + r + "_B";
+                request.put("requestId", requestId);
+                gateway.send(REQUEST_FILTER_TOPIC, request);
+                gateway.send(SAMPLE_UPDATE_TOPIC, sampleUpdates(requestId));
+            }
+            Assertions.assertTrue(gateway.allPublished.await(10, TimeUnit.SECONDS),
+                    "Published " + gateway.published.size() + " of " + 2 * NUM_REQUESTS + " results");
+        } finally {
+            for (Instance instance : instances) {
+                instance.shutdown();
+            }
+        }
+        // shutting down drains the handlers and publishers, so a request handled twice
+        // has been published twice by now
+        Assertions.assertEquals(2 * NUM_REQUESTS, gateway.published.size());
+
+        Set<Integer> handlingInstances = new HashSet<>();
+        for (int r = 0; r < NUM_REQUESTS; r++) {
+            String requestId = "MOCKREQUEST" + r + "_B";
+            Assertions.assertEquals(2, Collections.frequency(gateway.published, requestId));
+            Set<Integer> owners = gateway.publishers.get(requestId);
+            Assertions.assertEquals(1, owners.size(), "Request " + requestId
+                    + " was handled by instances " + owners);
+            handlingInstances.addAll(owners);
+        }
+        Assertions.assertEquals(INSTANCE_COUNT, handlingInstances.size(),
+                "Requests were not spread between the instances: " + handlingInstances);
+    }
+
+    /**
+     * The sample without a request id is dropped, the partition is picked by the first
+     * sample that has one.
+     */
+    private List<Object> sampleUpdates(String requestId) {
+        List<Object> samples = new ArrayList<>();
+        samples.add(new LinkedHashMap<>(Map.of("igoId", "unknown")));
+        Map<String, Object> sample = new LinkedHashMap<>();
+        sample.put("igoId", requestId + "_1");
+        sample.put("additionalProperties",
+                new LinkedHashMap<>(Map.of("requestId", requestId, "isCmoSample", "false")));
+        samples.add(sample);
+        return samples;
+    }
+
+    private Map<String, Object> loadRequest() throws Exception {
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(REQUEST_FIXTURE)) {
+            return mapper.readValue(in, Map.class);
+        }
+    }
+
+    /**
+     * One application instance: the request filter and update handling services wired
+     * with their own pipeline and publisher, owning one partition of the requests.
+     */
+    private class Instance {
+        final MessagePipelineImpl pipeline;
+        final AsyncMessagePublisherImpl publisher;
+        final RequestFilterMsgHandlingServiceIml requestFilterService;
+        final ValidateUpdatesMsgHandlingServiceImpl updatesService;
+
+        Instance(int index, Gateway gateway) throws Exception {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("partition.instance_index", index);
+            properties.put("partition.instance_count", INSTANCE_COUNT);
+            properties.put("igo.request_filter_topic", REQUEST_FILTER_TOPIC);
+            properties.put("igo.cmo_label_generator_topic", "CMO_LABEL_GENERATOR");
+            properties.put("igo.new_request_topic", "IGO_NEW_REQUEST");
+            properties.put("igo.validate_request_update_topic", "IGO.VALIDATE_REQUEST_UPDATE");
+            properties.put("igo.validate_sample_update_topic", SAMPLE_UPDATE_TOPIC);
+            properties.put("igo.cmo_label_update_topic", "CMO_LABEL_UPDATE");
+            properties.put("smile.request_update_topic", "SERVER_REQUEST_UPDATE");
+            properties.put("smile.sample_update_topic", "SERVER_SAMPLE_UPDATE");
+            properties.put("num.bulk_request_handler_threads", 0);
+            Environment environment = (Environment) Proxy.newProxyInstance(
+                    Environment.class.getClassLoader(), new Class<?>[] {Environment.class},
+                    (proxy, method, args) -> {
+                        Object value = properties.get(args[0]);
+                        boolean hasDefault = args.length == 3
+                                || (args.length == 2 && !(args[1] instanceof Class));
+                        return (value != null || !hasDefault) ? value : args[args.length - 1];
+                    });
+
+            publisher = new AsyncMessagePublisherImpl(0, 100, 1, 1L, 5L, "",
+                    tempDir.resolve("dead_letter_" + index).toString());
+            publisher.initialize(gateway);
+
+            MappedMessageJournalImpl journal = new MappedMessageJournalImpl(publisher, false,
+                    tempDir.resolve("message_journal_" + index).toString(), 1, 3);
+            pipeline = new MessagePipelineImpl(handlerGroup -> { },
+                    new HandlerConcurrencyGateImpl(false, 0, 1, 1, 1, 1, 0), journal, environment,
+                    false, "", 1000);
+            ValidRequestCheckerImpl validRequestChecker = new ValidRequestCheckerImpl(false, 0, 0);
+
+            requestFilterService = new RequestFilterMsgHandlingServiceIml(validRequestChecker, publisher,
+                    pipeline);
+            updatesService = new ValidateUpdatesMsgHandlingServiceImpl(validRequestChecker, publisher,
+                    pipeline);
+            requestFilterService.initialize(gateway);
+            updatesService.initialize(gateway);
+        }
+
+        void shutdown() throws Exception {
+            requestFilterService.shutdown();
+            updatesService.shutdown();
+            pipeline.shutdown();
+            publisher.shutdown();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.mskcc.smile;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.util.RequestPartition;
+
+public class RequestPartitionTest {
+    private static final int NUM_REQUESTS = 10000;
+
+    /**
+     * Tests that each request is handled by exactly one of several instances
+     * and that requests are spread evenly between them.
+     */
+    @Test
+    public void testEachRequestHasOneOwner() {
+        int instanceCount = 4;
+        List<RequestPartition> instances = new ArrayList<>();
+        for (int i = 0; i < instanceCount; i++) {
+            instances.add(new RequestPartition(i, instanceCount));
+        }
+        int[] handledCounts = new int[instanceCount];
+        for (int r = 0; r < NUM_REQUESTS; r++) {
+            String requestId = String.format("%05d_%s", 10000 + r / 3, (char) ('A' + r % 3));
+            int owners = 0;
+            for (RequestPartition instance : instances) {
+                if (instance.owns(requestId)) {
+                    owners++;
+                    handledCounts[instance.getIndex()]++;
+                }
+            }
+            Assertions.assertEquals(1, owners, "Request " + requestId + " has " + owners + " owners");
+        }
+        for (int handled : handledCounts) {
+            Assertions.assertTrue(Math.abs(handled - NUM_REQUESTS / instanceCount) < NUM_REQUESTS / 20,
+                    "Requests are not spread evenly between instances: " + handled);
+        }
+    }
+
+    /**
+     * Tests that instances configured separately agree on the owner of a request.
+     */
+    @Test
+    public void testOwnerIsDeterministic() {
+        RequestPartition instance = new RequestPartition(1, 3);
+        Assertions.assertEquals(RequestPartition.partitionOf("12345_B", 3),
+                RequestPartition.partitionOf("12345_B", 3));
+        Assertions.assertEquals(RequestPartition.partitionOf("12345_B", 3) == 1,
+                instance.owns("12345_B"));
+        // messages without a request id all go to the first instance
+        Assertions.assertTrue(new RequestPartition(0, 3).owns(null));
+        Assertions.assertFalse(instance.owns(null));
+    }
+
+    /**
+     * Tests that a single instance handles every request.
+     */
+    @Test
+    public void testSingleInstanceOwnsAll() {
+        RequestPartition instance = new RequestPartition(0, 1);
+        Assertions.assertFalse(instance.isPartitioned());
+        Assertions.assertTrue(instance.owns("12345_B"));
+        Assertions.assertTrue(instance.owns(null));
+    }
+
+    @Test
+    public void testInvalidPartition() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RequestPartition(3, 3));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RequestPartition(0, 0));
+    }
+}
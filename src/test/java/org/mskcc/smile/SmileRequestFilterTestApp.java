@@ -16,7 +16,7 @@ import org.springframework.context.annotation.Bean;
 public class SmileRequestFilterTestApp {
     @Bean
     public ValidRequestCheckerImpl validRequestCheckerImpl() {
-        return new ValidRequestCheckerImpl();
+        return new ValidRequestCheckerImpl(false, 0, 0);
     }
 
     @MockBean
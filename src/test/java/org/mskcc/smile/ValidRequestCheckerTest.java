@@ -6,12 +6,19 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import org.apache.commons.lang3.StringUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.mskcc.smile.config.MockDataConfig;
 import org.mskcc.smile.model.MockJsonTestData;
 import org.mskcc.smile.service.ValidRequestChecker;
+import org.mskcc.smile.service.util.RequestHeader;
+import org.mskcc.smile.service.util.RuleProfiler;
+import org.mskcc.smile.service.util.SampleColumns;
+import org.mskcc.smile.service.util.SampleSchema;
+import org.mskcc.smile.service.util.SampleUpdateBatch;
+import org.mskcc.smile.service.util.ValidationRuleSet;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.Import;
@@ -312,6 +319,18 @@ public class ValidRequestCheckerTest {
         Assertions.assertTrue(StringUtils.isBlank(ddogValidationReport));
     }
 
+    @Test
+    public void testValidPromotedRequestFailFast() throws Exception {
+        String requestJson = "{\"requestId\":\"1456_T\",\"isCmoRequest\":true,\"samples\":["
+                + "{\"igoId\":\"1456_T_1\"},{\"primaryId\":\"1456_T_2\",\"cmoPatientId\":\"C-8484\"}]}";
+        Assertions.assertTrue(validRequestChecker.isValidPromotedRequest(requestJson));
+        Assertions.assertFalse(validRequestChecker.isValidPromotedRequest(
+                "{\"requestId\":\"1456_T\",\"samples\":[{\"igoId\":\"1456_T_1\"}]}"));
+        Assertions.assertFalse(validRequestChecker.isValidPromotedRequest(
+                "{\"projectId\":\"1456\",\"samples\":[{\"igoId\":\"1456_T_1\",\"cmoPatientId\":\"C-1\"}]}"));
+        Assertions.assertFalse(validRequestChecker.isValidPromotedRequest("{\"requestId\":\"1456_T\"}"));
+    }
+
     /**
      * Test for handling request with 2 samples missing fastqs. This would still
      * pass the sanity check but the request will be logged with warnings.
@@ -470,6 +489,216 @@ public class ValidRequestCheckerTest {
         Assertions.assertTrue((Boolean) sampleStatus.get("validationStatus"));
     }
 
+    /**
+     * Tests that the validation map is attached to the json as its status.
+     * @throws Exception
+     */
+    @Test
+    public void testUpdateJsonWithValidationMap() throws Exception {
+        Map<String, Object> sampleMap = getIgoSampleMap("17892_4", "17892", "Non-PDX",
+            "Unknown Tumor", "Curls/Punches", "DNA", null,
+            Boolean.TRUE, Boolean.TRUE, Boolean.TRUE, Boolean.TRUE,
+            "C-MKHNXX", "NORMPTID", "INV_SID");
+        Map<String, Object> sampleStatus = validRequestChecker.generateCmoSampleValidationMap(sampleMap);
+        String sampleWithStatus = validRequestChecker.updateJsonWithValidationMap(
+                mapper.writeValueAsString(sampleMap), sampleStatus);
+        Map<String, Object> sampleWithStatusMap = mapper.readValue(sampleWithStatus, Map.class);
+        Assertions.assertEquals("17892_4", sampleWithStatusMap.get("igoId"));
+        Map<String, Object> status = mapper.convertValue(sampleWithStatusMap.get("status"), Map.class);
+        Assertions.assertEquals(sampleStatus.get("validationStatus"), status.get("validationStatus"));
+    }
+
+    /**
+     * Tests that the rule profiler counts rule invocations only while enabled.
+     * @throws Exception
+     */
+    @Test
+    public void testRuleProfiler() throws Exception {
+        RuleProfiler ruleProfiler = validRequestChecker.getRuleProfiler();
+        Map<String, Object> sampleMap = getIgoSampleMap("17892_4", "17892", "Non-PDX",
+            "Unknown Tumor", "Curls/Punches", "DNA", null,
+            Boolean.TRUE, Boolean.TRUE, Boolean.TRUE, Boolean.TRUE,
+            "C-MKHNXX", "NORMPTID", "INV_SID");
+        ruleProfiler.reset();
+        validRequestChecker.generateCmoSampleValidationMap(sampleMap);
+        Assertions.assertTrue(ruleProfiler.getProfile().isEmpty());
+
+        ruleProfiler.setEnabled(true);
+        try {
+            validRequestChecker.generateCmoSampleValidationMap(sampleMap);
+            validRequestChecker.generateCmoSampleValidationMap(sampleMap);
+        } finally {
+            ruleProfiler.setEnabled(false);
+        }
+        Map<String, Long> invocations = new HashMap<>();
+        for (Map<String, Object> ruleProfile : ruleProfiler.getProfile()) {
+            invocations.put((String) ruleProfile.get("rule"), (Long) ruleProfile.get("invocations"));
+        }
+        ruleProfiler.reset();
+        Assertions.assertEquals(2L, invocations.get("cmo.5"));
+        Assertions.assertEquals(2L, invocations.get("cmo.6"));
+        // rules sharing a report key are profiled apart
+        Assertions.assertEquals(2L, invocations.get("cmo.2"));
+        Assertions.assertNull(invocations.get("igoId"));
+    }
+
+    /**
+     * Tests that rules compiled from properties check fallback fields, nested fields
+     * and enum values, and report each failing alternative.
+     * @throws Exception
+     */
+    @Test
+    public void testCompiledValidationRules() throws Exception {
+        Properties rules = new Properties();
+        rules.setProperty("cmo.1", "igoId: present igoId|primaryId => missing");
+        rules.setProperty("cmo.2", "sampleOrigin: enum SampleOrigin sampleOrigin => invalid "
+                + "|| naToExtract: has cmoSampleIdFields.naToExtract => missing");
+        rules.setProperty("non_cmo.1", "baitSet: present baitSet => missing");
+        rules.setProperty("promoted.1", "igoComplete: true igoComplete => false");
+        ValidationRuleSet ruleSet = ValidationRuleSet.compile("test", rules, Map.of());
+
+        Map<String, Object> sampleMap = new HashMap<>();
+        sampleMap.put("primaryId", "17892_4");
+        sampleMap.put("sampleOrigin", "plasma");
+        Map<String, String> report = new HashMap<>();
+        Assertions.assertTrue(ruleSet.evaluate(ValidationRuleSet.CMO, sampleMap, report,
+                validRequestChecker.getRuleProfiler()));
+        Assertions.assertTrue(report.isEmpty());
+
+        sampleMap.put("sampleOrigin", "unknown");
+        sampleMap.put("cmoSampleIdFields", Map.of("naToExtract", ""));
+        Assertions.assertTrue(ruleSet.evaluate(ValidationRuleSet.CMO, sampleMap, report,
+                validRequestChecker.getRuleProfiler()));
+
+        sampleMap.remove("primaryId");
+        sampleMap.remove("cmoSampleIdFields");
+        Assertions.assertFalse(ruleSet.evaluate(ValidationRuleSet.CMO, sampleMap, report,
+                validRequestChecker.getRuleProfiler()));
+        Assertions.assertEquals(Map.of("igoId", "missing", "sampleOrigin", "invalid",
+                "naToExtract", "missing"), report);
+
+        rules.setProperty("cmo.3", "fastQs: check fastQs => missing");
+        Assertions.assertThrows(IllegalArgumentException.class,
+            () -> ValidationRuleSet.compile("test", rules, Map.of()));
+    }
+
+    /**
+     * Tests that samples are detected as IGO or universal schema, and that requests
+     * mixing both are detected as mixed and validate each sample by its own schema.
+     * @throws Exception
+     */
+    @Test
+    public void testSampleSchemaDetection() throws Exception {
+        Map<String, Object> igoSample = getIgoSampleMap("17892_4", "17892", "Non-PDX",
+            "Unknown Tumor", "Curls/Punches", "DNA", null,
+            Boolean.TRUE, Boolean.TRUE, Boolean.TRUE, Boolean.TRUE,
+            "C-MKHNXX", "NORMPTID", "INV_SID");
+        Map<String, Object> universalSample = new HashMap<>(igoSample);
+        universalSample.put("primaryId", universalSample.remove("igoId"));
+        universalSample.put("sampleClass", universalSample.remove("specimenType"));
+        universalSample.put("sampleType", universalSample.remove("cmoSampleClass"));
+        Assertions.assertEquals(SampleSchema.IGO, SampleSchema.detect(igoSample));
+        Assertions.assertEquals(SampleSchema.UNIVERSAL, SampleSchema.detect(universalSample));
+        Assertions.assertEquals(SampleSchema.GENERIC, SampleSchema.detect(new HashMap<>()));
+        Assertions.assertEquals(SampleSchema.MIXED,
+                SampleSchema.detect(Arrays.asList(igoSample, universalSample)));
+        Assertions.assertEquals(SampleSchema.UNIVERSAL, SampleSchema.MIXED.forSample(universalSample));
+
+        Map<String, Object> igoStatus = validRequestChecker.generateCmoSampleValidationMap(igoSample);
+        Map<String, Object> universalStatus =
+                validRequestChecker.generateCmoSampleValidationMap(universalSample);
+        Assertions.assertEquals(igoStatus, universalStatus);
+    }
+
+    @Test
+    public void testRequestHeaderProbe() throws Exception {
+        RequestHeader header = RequestHeader.probe("{\"projectId\": \"1\", \"samples\": [{\"igoId\": \"1_1\","
+                + " \"libraries\": [[]]}], \"isCmoRequest\": true, \"requestId\": \"1\"}");
+        Assertions.assertEquals("1", header.getRequestId());
+        Assertions.assertTrue(header.isCmo());
+        Assertions.assertTrue(header.hasSamples());
+
+        header = RequestHeader.probe("{\"requestId\": null, \"samples\": [], \"additionalProperties\":"
+                + " {\"igoRequestId\": \"2\", \"isCmoSample\": \"false\"}}");
+        Assertions.assertEquals("2", header.getRequestId());
+        Assertions.assertFalse(header.isCmo());
+        Assertions.assertFalse(header.hasSamples());
+
+        Assertions.assertFalse(RequestHeader.probe("{}").hasRequestId());
+    }
+
+    @Test
+    public void testValidateSampleUpdates() throws Exception {
+        Map<String, Object> cmoSample = getIgoSampleMap("17892_4", "17892", "Non-PDX",
+            "Unknown Tumor", "Curls/Punches", "DNA", null,
+            Boolean.TRUE, Boolean.TRUE, Boolean.TRUE, Boolean.TRUE,
+            "C-MKHNXX", "NORMPTID", "INV_SID");
+        Map<String, Object> nonCmoSample = getIgoSampleMap("17892_5", "17892", "Non-PDX",
+            "Unknown Tumor", "Curls/Punches", "DNA", null,
+            Boolean.TRUE, Boolean.FALSE, Boolean.FALSE, Boolean.TRUE,
+            "C-MKHNXX", "NORMPTID", "INV_SID");
+        Map<String, Object> noRequestIdSample = new HashMap<>(cmoSample);
+        noRequestIdSample.remove("igoRequestId");
+
+        SampleUpdateBatch batch = validRequestChecker.validateSampleUpdates(
+                Arrays.asList(noRequestIdSample, cmoSample, nonCmoSample));
+        Assertions.assertEquals("17892", batch.getRequestId());
+        Assertions.assertEquals(1, batch.getCmoSamples().size());
+        Assertions.assertEquals(1, batch.getNonCmoSamples().size());
+        // the non-cmo sample is missing its bait set
+        Assertions.assertEquals(batch.getNonCmoSamples(), batch.getFailedSamples());
+        Assertions.assertFalse(cmoSample.containsKey("status"));
+
+        Map<String, Object> cmoSampleWithStatus = mapper.readValue(batch.getCmoSamples().get(0), Map.class);
+        Assertions.assertEquals(validRequestChecker.generateCmoSampleValidationMap(cmoSample),
+                cmoSampleWithStatus.get("status"));
+    }
+
+    /**
+     * Tests that rules evaluated over sample columns give the same status and report as
+     * over each sample map, and that JSON repeating a field name is left to the maps.
+     * @throws Exception
+     */
+    @Test
+    public void testColumnarValidation() throws Exception {
+        List<Map<String, Object>> samples = new ArrayList<>();
+        samples.add(getIgoSampleMap("17892_4", "17892", "Non-PDX",
+            "Unknown Tumor", "Curls/Punches", "DNA", null,
+            Boolean.TRUE, Boolean.TRUE, Boolean.TRUE, Boolean.TRUE,
+            "C-MKHNXX", "NORMPTID", "INV_SID"));
+        samples.add(getIgoSampleMap("17892_5", "17892", "cfDNA",
+            "Unknown Tumor", null, "DNA", null,
+            Boolean.FALSE, Boolean.TRUE, Boolean.TRUE, Boolean.TRUE,
+            null, "NORMPTID", "INV_SID"));
+        samples.add(getIgoSampleMap("17892_6", "17892", "cfDNA",
+            "Unknown Tumor", "Pooled Library", null, "Plasma",
+            Boolean.TRUE, Boolean.FALSE, Boolean.TRUE, Boolean.FALSE,
+            "C-MKHNXX", null, "INV_SID"));
+        samples.add(new HashMap<>());
+        String requestJson = mapper.writeValueAsString(Map.of("requestId", "17892", "samples", samples));
+
+        ValidationRuleSet ruleSet = validRequestChecker.getValidationRuleSet();
+        Assertions.assertNotNull(ruleSet.getColumnPaths(ValidationRuleSet.CMO));
+        SampleColumns columns = SampleColumns.read(requestJson,
+                ruleSet.getColumnPaths(ValidationRuleSet.CMO), samples.size());
+        Assertions.assertEquals(samples.size(), columns.size());
+        Assertions.assertTrue(columns.isEmpty(3));
+        long[] failures = ruleSet.evaluate(ValidationRuleSet.CMO, columns,
+                validRequestChecker.getRuleProfiler());
+        for (int sample = 0; sample < 3; sample++) {
+            Map<String, Object> status =
+                    validRequestChecker.generateCmoSampleValidationMap(samples.get(sample));
+            Assertions.assertEquals(status.get("validationStatus"), failures[sample] == 0);
+            Assertions.assertEquals(mapper.readValue((String) status.get("validationReport"), Map.class),
+                    ruleSet.getReport(ValidationRuleSet.CMO, failures[sample]));
+        }
+        Assertions.assertEquals(0, failures[0]);
+        Assertions.assertNotEquals(0, failures[1]);
+
+        Assertions.assertNull(SampleColumns.read("{\"samples\": [{\"igoId\": \"1\", \"igoId\": \"2\"}]}",
+                ruleSet.getColumnPaths(ValidationRuleSet.CMO), 1));
+    }
+
     /**
      * Returns a mocked sampleMap.
      * @param igoId
@@ -0,0 +1,132 @@
+package org.mskcc.smile;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mskcc.smile.service.impl.ValidRequestCheckerImpl;
+import org.mskcc.smile.service.util.RuleProfiler;
+import org.mskcc.smile.web.ValidationController;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+public class ValidationControllerTest {
+    private static final String REQUEST_FIXTURE =
+            "data/incoming_requests/mocked_request1_complete_tumor_normal.json";
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Tests that bodies over the size limit are rejected, whether the content length
+     * gives them away or they turn out too large while being read.
+     */
+    @Test
+    public void testRejectsLargeBodies() throws Exception {
+        byte[] sample = getSampleJson();
+        ValidationController controller = new ValidationController(new ValidRequestCheckerImpl(false, 0, 0),
+                1, 100, sample.length, 10);
+        Assertions.assertEquals(HttpStatus.OK,
+                controller.validateSample(true, (long) sample.length, body(sample)).getStatusCode());
+        Assertions.assertEquals(HttpStatus.PAYLOAD_TOO_LARGE,
+                controller.validateSample(true, (long) sample.length + 1, body(sample)).getStatusCode());
+
+        byte[] largeSample = new byte[sample.length + 1];
+        System.arraycopy(sample, 0, largeSample, 0, sample.length);
+        largeSample[sample.length] = ' ';
+        Assertions.assertEquals(HttpStatus.PAYLOAD_TOO_LARGE,
+                controller.validateSample(true, null, body(largeSample)).getStatusCode());
+    }
+
+    /**
+     * Tests that a caller is told to retry when all validation slots are taken, and that
+     * the validation holding the slot still completes.
+     */
+    @Test
+    public void testRetryWhenBusy() throws Exception {
+        byte[] sample = getSampleJson();
+        ValidationController controller = new ValidationController(new ValidRequestCheckerImpl(false, 0, 0),
+                1, 50, 1024 * 1024, 10);
+        CountDownLatch slotTaken = new CountDownLatch(1);
+        CountDownLatch releaseBody = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // the body is read once a slot is taken, so a stalled body holds the only slot
+            Future<ResponseEntity<String>> stalled = executor.submit(() -> controller.validateSample(true,
+                    null, new ByteArrayInputStream(sample) {
+                        @Override
+                        public synchronized int read(byte[] buffer, int offset, int length) {
+                            slotTaken.countDown();
+                            try {
+                                releaseBody.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            return super.read(buffer, offset, length);
+                        }
+                    }));
+            Assertions.assertTrue(slotTaken.await(10, TimeUnit.SECONDS));
+
+            ResponseEntity<String> busy = controller.validateSample(true, null, body(sample));
+            Assertions.assertEquals(HttpStatus.SERVICE_UNAVAILABLE, busy.getStatusCode());
+            Assertions.assertEquals("1", busy.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+
+            releaseBody.countDown();
+            Assertions.assertEquals(HttpStatus.OK, stalled.get(10, TimeUnit.SECONDS).getStatusCode());
+            Assertions.assertEquals(HttpStatus.OK,
+                    controller.validateSample(true, null, body(sample)).getStatusCode());
+        } finally {
+            releaseBody.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Tests that a payload checked again is answered from the cache without running the
+     * validation rules, and that the same payload validated another way is not.
+     */
+    @Test
+    public void testCachesResults() throws Exception {
+        byte[] sample = getSampleJson();
+        ValidRequestCheckerImpl validRequestChecker = new ValidRequestCheckerImpl(false, 0, 0);
+        RuleProfiler ruleProfiler = validRequestChecker.getRuleProfiler();
+        ruleProfiler.setEnabled(true);
+        ValidationController controller = new ValidationController(validRequestChecker, 1, 100,
+                1024 * 1024, 10);
+
+        ResponseEntity<String> first = controller.validateSample(true, null, body(sample));
+        Assertions.assertEquals(HttpStatus.OK, first.getStatusCode());
+        Assertions.assertFalse(ruleProfiler.getProfile().isEmpty());
+
+        ruleProfiler.reset();
+        ResponseEntity<String> second = controller.validateSample(true, null, body(sample));
+        Assertions.assertEquals(HttpStatus.OK, second.getStatusCode());
+        Assertions.assertEquals(first.getBody(), second.getBody());
+        Assertions.assertTrue(ruleProfiler.getProfile().isEmpty(), "Cached result was validated again");
+
+        ResponseEntity<String> nonCmo = controller.validateSample(false, null, body(sample));
+        Assertions.assertEquals(HttpStatus.OK, nonCmo.getStatusCode());
+        Assertions.assertFalse(ruleProfiler.getProfile().isEmpty());
+        Assertions.assertNotEquals(first.getBody(), nonCmo.getBody());
+    }
+
+    private byte[] getSampleJson() throws Exception {
+        try (InputStream fixture = getClass().getClassLoader().getResourceAsStream(REQUEST_FIXTURE)) {
+            Map<String, Object> requestMap = mapper.readValue(fixture, Map.class);
+            Object sample = ((List<?>) requestMap.get("samples")).get(0);
+            return mapper.writeValueAsString(sample).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private InputStream body(byte[] payload) {
+        return new ByteArrayInputStream(payload);
+    }
+}